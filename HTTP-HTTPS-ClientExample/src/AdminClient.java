@@ -0,0 +1,661 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A client for the admin web service that can be shared by many commands.
+ * Connections are kept open and reused, so a command normally pays neither
+ * TCP nor TLS setup. The SSL context is set up once by the caller and used
+ * only by this client, leaving the JVM wide HttpsURLConnection defaults
+ * alone. When a password is given the client logs in on first use and
+ * keeps the token, logging in again when the service rejects it as
+ * expired.
+ *
+ * A response is returned as a String, or passed as it arrives to a
+ * BodyReader, which can pick fields out of a large response with a
+ * JsonReader without holding all of it.
+ *
+ * Asynchronous commands run on a pool of maxConnections threads, each
+ * using at most one connection at a time, so at most maxConnections
+ * connections are open for them. Commands past that wait for a thread.
+ * Idle connections are closed after IDLE_TIMEOUT_MS. A command on a reused
+ * connection that the server closed while it was idle, so that the request
+ * could not be written or the connection ended before any of the response
+ * arrived, is sent again on a new one. Other failures, timeouts included,
+ * are not retried. A request that could not be written to a new connection
+ * fails with a RequestNotSentException, so that the caller knows the
+ * server did not act on it. A connection not accepted within
+ * CONNECT_TIMEOUT_MS fails with a ConnectException, as a refused one does.
+ *
+ * As in the original example, the server's host name is not checked
+ * against its certificate, which KVLite issues for its own name.
+ */
+public class AdminClient implements AutoCloseable {
+
+    static final String LOGIN_PATH = "/V0/nosql/admin/login";
+
+    /* idle connections older than this are closed rather than reused */
+    static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+    /* how long to wait for a connection to be accepted */
+    static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    /* how long to wait for a response */
+    static final int READ_TIMEOUT_MS = 60 * 1000;
+
+    private final String host;
+    private final int port;
+
+    /* null for HTTP */
+    private final SSLSocketFactory socketFactory;
+
+    /* the login credentials, or null if the service is not secured */
+    private final String basicAuth;
+
+    /* the Authorization header for commands, or null before login */
+    private volatile String bearer;
+
+    /* connections not in use, most recently used last */
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+    private final ExecutorService executor;
+
+    private volatile boolean closed;
+
+    /**
+     * @param sslContext the context for HTTPS, or null for HTTP
+     * @param user the user to log in as, ignored if password is null
+     * @param password the password, or null if the service is not secured
+     * @param maxConnections the most commands run, and connections open,
+     * at a time
+     */
+    public AdminClient(String host,
+                       int port,
+                       SSLContext sslContext,
+                       String user,
+                       String password,
+                       int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.socketFactory =
+            (sslContext != null ? sslContext.getSocketFactory() : null);
+        this.basicAuth = (password == null ? null :
+                          "Basic " + Base64.getEncoder().encodeToString(
+                              (user + ":" + password).getBytes(
+                                  StandardCharsets.UTF_8)));
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxConnections, r -> {
+                final Thread t = new Thread(
+                    r, "admin-client-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Returns an SSL context that trusts the certificates in a JKS trust
+     * store, such as the client.trust file of a secured KVLite
+     */
+    public static SSLContext loadTrustContext(String trustFile)
+        throws IOException, GeneralSecurityException {
+
+        final KeyStore ts = KeyStore.getInstance("JKS");
+        try (InputStream is = new FileInputStream(trustFile)) {
+            ts.load(is, null);
+        }
+        final TrustManagerFactory tmf =
+            TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ts);
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Reads the body of a response as it arrives. The stream ends with the
+     * body and does not need to be closed. Anything left unread is
+     * discarded when read returns.
+     */
+    public interface BodyReader<T> {
+        T read(int status, InputStream body) throws IOException;
+    }
+
+    /**
+     * Posts a JSON command on a pool thread. The future fails with a
+     * CompletionException wrapping the IOException if the command could
+     * not be sent or answered.
+     */
+    public CompletableFuture<Response> executeAsync(String path, String json) {
+        return executeAsync(path, json, Response::read);
+    }
+
+    /**
+     * Posts a JSON command on a pool thread, passing the response body to
+     * reader as it arrives, so that a large response need not be held in
+     * memory. The future completes with the reader's result.
+     */
+    public <T> CompletableFuture<T> executeAsync(String path,
+                                                 String json,
+                                                 BodyReader<T> reader) {
+        return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return execute(path, json, reader);
+                } catch (IOException ioe) {
+                    throw new CompletionException(ioe);
+                }
+            }, executor);
+    }
+
+    /**
+     * Posts a JSON command and waits for its response, on the calling
+     * thread
+     */
+    public Response execute(String path, String json) throws IOException {
+        return execute(path, json, Response::read);
+    }
+
+    /**
+     * Posts a JSON command and passes its response to reader, on the
+     * calling thread
+     */
+    public <T> T execute(String path, String json, BodyReader<T> reader)
+        throws IOException {
+        return send("POST", path, json, false, reader);
+    }
+
+    /**
+     * Returns the Authorization header for a command, logging in if there
+     * is no token yet or if the current one is the one that was rejected
+     */
+    private String authorization(String rejected) throws IOException {
+        if (basicAuth == null) {
+            return null;
+        }
+        final String current = bearer;
+        if (current != null && !current.equals(rejected)) {
+            return current;
+        }
+
+        /* one thread logs in, the others wait and use its token */
+        synchronized (this) {
+            if (bearer == null || bearer.equals(rejected)) {
+                bearer = "Bearer " + login();
+            }
+            return bearer;
+        }
+    }
+
+    private String login() throws IOException {
+        return send("GET", LOGIN_PATH, null, true, (status, body) -> {
+                if (status != 200) {
+                    throw new IOException("Login failed with status " +
+                                          status + ": " +
+                                          Response.read(status, body)
+                                          .getBody());
+                }
+
+                /* the token is the only field needed from the response */
+                try (JsonReader json = new JsonReader(body)) {
+                    if (!json.seek("token")) {
+                        throw new IllegalStateException(
+                            "Cannot find login token");
+                    }
+                    return json.nextString();
+                }
+            });
+    }
+
+    /**
+     * Sends a request and reads its response, on a pooled connection if
+     * there is one. A command rejected with 401 is sent once more after
+     * logging in again.
+     *
+     * @param login true to send the login credentials rather than the token
+     */
+    private <T> T send(String method,
+                       String path,
+                       String body,
+                       boolean login,
+                       BodyReader<T> reader) throws IOException {
+        String auth = (login ? basicAuth : authorization(null));
+        boolean renewed = login;
+        while (true) {
+            final Connection conn = borrow();
+            try {
+                final int status = conn.exchange(method, path, body, auth);
+                if (status == 401 && !renewed && basicAuth != null) {
+                    /* the token has expired */
+                    finish(conn);
+                    auth = authorization(auth);
+                    renewed = true;
+                    continue;
+                }
+                final T result = reader.read(status, conn.body);
+                finish(conn);
+                return result;
+            } catch (IOException ioe) {
+                conn.close();
+                if (!conn.reused || !conn.closedWhileIdle) {
+                    if (!conn.requestSent) {
+                        throw new RequestNotSentException(ioe);
+                    }
+                    throw ioe;
+                }
+                /* closed by the server while idle, try another */
+            } catch (RuntimeException re) {
+                conn.close();
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * Discards what is left of the response and returns the connection to
+     * the pool, or closes it if it can't be reused
+     */
+    private void finish(Connection conn) throws IOException {
+        if (conn.body.discard()) {
+            release(conn);
+        } else {
+            conn.close();
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        if (closed) {
+            throw new IOException("AdminClient is closed");
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (idle) {
+            Connection conn;
+            while ((conn = idle.pollLast()) != null) {
+                if (now - conn.lastUsed < IDLE_TIMEOUT_MS) {
+                    conn.reused = true;
+                    return conn;
+                }
+                conn.close();
+            }
+        }
+        return new Connection(open());
+    }
+
+    private void release(Connection conn) {
+        conn.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!closed) {
+                idle.addLast(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Opens a connection, layering TLS on it if configured. A connect
+     * timeout is reported as a ConnectException, so that it is not taken
+     * for a read timeout on a request already sent.
+     */
+    private Socket open() throws IOException {
+        final Socket plain = new Socket();
+        Socket socket = plain;
+        try {
+            plain.setTcpNoDelay(true);
+            plain.connect(new InetSocketAddress(host, port),
+                          CONNECT_TIMEOUT_MS);
+            if (socketFactory != null) {
+                socket = socketFactory.createSocket(plain, host, port, true);
+            }
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            return socket;
+        } catch (SocketTimeoutException ste) {
+            plain.close();
+            final ConnectException ce =
+                new ConnectException("Connect to " + host + ":" + port +
+                                     " timed out");
+            ce.initCause(ste);
+            throw ce;
+        } catch (IOException ioe) {
+            plain.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Stops accepting commands and closes idle connections. Commands
+     * already submitted complete, and their connections are closed when
+     * they finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        synchronized (idle) {
+            Connection conn;
+            while ((conn = idle.poll()) != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Thrown when a request could not be written to a new connection. The
+     * server cannot have acted on it, so it is safe to send elsewhere.
+     */
+    public static final class RequestNotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestNotSentException(IOException cause) {
+            super("Request not sent: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * The status and body of a command's response
+     */
+    public static final class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * Reads a whole body as UTF-8 text
+         */
+        static Response read(int status, InputStream body)
+            throws IOException {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                content.write(buf, 0, n);
+            }
+            return new Response(status,
+                                new String(content.toByteArray(),
+                                           StandardCharsets.UTF_8));
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A persistent HTTP/1.1 connection, used by one thread at a time
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        /* the body of the current response */
+        final Body body = new Body();
+
+        long lastUsed;
+
+        /* true if the connection was taken from the idle pool */
+        boolean reused;
+
+        /* true once any of the current response has been read */
+        boolean responseStarted;
+
+        /*
+         * true if the current request failed because the connection had
+         * been closed, the write failing or the connection ending before
+         * any of the response
+         */
+        boolean closedWhileIdle;
+
+        /* true once the current request has been written */
+        boolean requestSent;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Sends a request and reads the head of its response. The body is
+         * then read from body.
+         *
+         * @return the response status
+         */
+        int exchange(String method,
+                     String path,
+                     String content,
+                     String authorization) throws IOException {
+            responseStarted = false;
+            closedWhileIdle = false;
+            requestSent = false;
+            final byte[] bytes = (content == null ? new byte[0] :
+                                  content.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            sb.append(method).append(' ').append(path)
+                .append(" HTTP/1.1\r\nHost: ").append(host).append(':')
+                .append(port).append("\r\n");
+            if (authorization != null) {
+                sb.append("Authorization: ").append(authorization)
+                    .append("\r\n");
+            }
+            if (content != null) {
+                sb.append("Content-Type: application/json\r\n");
+            }
+            sb.append("Content-Length: ").append(bytes.length)
+                .append("\r\n\r\n");
+            try {
+                out.write(sb.toString().getBytes(
+                              StandardCharsets.ISO_8859_1));
+                out.write(bytes);
+                out.flush();
+            } catch (IOException ioe) {
+                closedWhileIdle = true;
+                throw ioe;
+            }
+            requestSent = true;
+
+            return readHead();
+        }
+
+        private int readHead() throws IOException {
+            final String statusLine = readLine();
+            final String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            final int status;
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+
+            long length = -1;
+            boolean chunked = false;
+            boolean keepAlive = parts[0].equals("HTTP/1.1");
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String name = line.substring(0, colon).trim();
+                final String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = !value.equalsIgnoreCase("close");
+                }
+            }
+            if (status == 204 || status == 304) {
+                /* these never have a body, whatever the headers say */
+                length = 0;
+                chunked = false;
+            }
+            body.start(length, chunked, keepAlive);
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    closedWhileIdle = !responseStarted;
+                    throw new EOFException("Connection closed by the " +
+                                           "server");
+                }
+                responseStarted = true;
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                /* nothing more to do */
+            }
+        }
+
+        /**
+         * The body of the current response, delimited by its length or by
+         * chunked encoding. A body with neither is taken to be empty rather
+         * than read until the connection ends, and the connection is then
+         * not reused.
+         */
+        final class Body extends InputStream {
+
+            /* bytes left in the body, or in the current chunk */
+            private long remaining;
+            private boolean chunked;
+            private boolean chunkStarted;
+            private boolean keepAlive;
+            private boolean done;
+
+            /**
+             * @param length the Content-Length, or -1 if there is none
+             * @param chunkedBody true if the body is chunked
+             * @param reusable false if the server will close the connection
+             */
+            void start(long length, boolean chunkedBody, boolean reusable) {
+                remaining = (chunkedBody ? 0 : Math.max(length, 0));
+                chunked = chunkedBody;
+                chunkStarted = false;
+                keepAlive = reusable && (chunkedBody || length >= 0);
+                done = (!chunkedBody && length <= 0);
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1 ? -1 : b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (done || (remaining == 0 && !nextChunk())) {
+                    return -1;
+                }
+                final int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n == -1) {
+                    throw new EOFException("Connection closed in the " +
+                                           "middle of a response");
+                }
+                remaining -= n;
+                if (remaining == 0 && !chunked) {
+                    done = true;
+                }
+                return n;
+            }
+
+            /**
+             * Moves to the next chunk of a chunked body
+             *
+             * @return false at the end of the body
+             */
+            private boolean nextChunk() throws IOException {
+                if (!chunked) {
+                    done = true;
+                    return false;
+                }
+                if (remaining == 0 && chunkStarted) {
+                    /* the CRLF after the previous chunk */
+                    readLine();
+                }
+                String size = readLine();
+                final int ext = size.indexOf(';');
+                if (ext >= 0) {
+                    size = size.substring(0, ext);
+                }
+                remaining = Long.parseLong(size.trim(), 16);
+                chunkStarted = true;
+                if (remaining > 0) {
+                    return true;
+                }
+
+                /* skip any trailers */
+                String trailer;
+                do {
+                    trailer = readLine();
+                } while (!trailer.isEmpty());
+                done = true;
+                return false;
+            }
+
+            /**
+             * Reads and discards the rest of the body
+             *
+             * @return true if the connection can be reused
+             */
+            boolean discard() throws IOException {
+                if (keepAlive) {
+                    final byte[] buf = new byte[8192];
+                    while (read(buf, 0, buf.length) != -1) {
+                        /* discard */
+                    }
+                }
+                return keepAlive;
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Runs admin commands concurrently against a store with several admin
+ * endpoints. Each endpoint has an AdminClient, with its pooled connections
+ * and login token, shared by all commands.
+ *
+ * A command is sent to the preferred endpoint, initially the first. If the
+ * endpoint cannot be reached, because its host is unknown or has no route,
+ * the connection is refused or times out, or the request could not be
+ * written, the command is sent to the next endpoint, and so on until each
+ * has been tried. A failover moves the preferred endpoint on, so that
+ * later commands go straight to an admin that answered. Other failures,
+ * such as a read timeout or a connection lost after the request was sent,
+ * are results: the admin may have run the command, so it is not sent
+ * again. Retrying a connection that went stale while idle is left to the
+ * AdminClient. An HTTP error status is a result too.
+ *
+ * Results are delivered as commands complete, with the endpoint that
+ * answered and the time from submitting the command, including any
+ * failovers.
+ */
+public class AdminCommandExecutor implements AutoCloseable {
+
+    private final List<Endpoint> endpoints;
+
+    /* the index of the endpoint commands are sent to first */
+    private final AtomicInteger preferred = new AtomicInteger();
+
+    /**
+     * @param endpoints admin endpoints as host:port, in order of preference
+     * @param sslContext the context for HTTPS, or null for HTTP
+     * @param password the password, or null if the store is not secured
+     * @param maxConnections the most commands run at a time on each
+     * endpoint
+     */
+    public AdminCommandExecutor(List<String> endpoints,
+                                SSLContext sslContext,
+                                String user,
+                                String password,
+                                int maxConnections) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No admin endpoints");
+        }
+        final List<Endpoint> list = new ArrayList<Endpoint>();
+        for (String endpoint : endpoints) {
+            final int colon = endpoint.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException(
+                    "Admin endpoint is not host:port: " + endpoint);
+            }
+            final String host = endpoint.substring(0, colon);
+            final int port = Integer.parseInt(endpoint.substring(colon + 1));
+            list.add(new Endpoint(endpoint,
+                                  new AdminClient(host, port, sslContext,
+                                                  user, password,
+                                                  maxConnections)));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Sends a command. The future always completes normally, with a result
+     * that holds the failure if no endpoint could answer.
+     */
+    public CompletableFuture<Result> submit(Command command) {
+        final CompletableFuture<Result> result =
+            new CompletableFuture<Result>();
+        attempt(command, preferred.get(), 1, System.nanoTime(), result);
+        return result;
+    }
+
+    /**
+     * Sends all commands at once and passes each result to onResult as it
+     * completes. onResult may be called by several threads at a time.
+     *
+     * @return a future that completes once every result has been passed on
+     */
+    public CompletableFuture<Void> submitAll(List<Command> commands,
+                                             Consumer<Result> onResult) {
+        final CompletableFuture<?>[] all =
+            new CompletableFuture<?>[commands.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = submit(commands.get(i)).thenAccept(onResult);
+        }
+        return CompletableFuture.allOf(all);
+    }
+
+    private void attempt(Command command,
+                         int index,
+                         int attempts,
+                         long start,
+                         CompletableFuture<Result> result) {
+        final Endpoint endpoint = endpoints.get(index);
+        final CompletableFuture<AdminClient.Response> response;
+        try {
+            response = endpoint.client.executeAsync(command.getPath(),
+                                                    command.getJson());
+        } catch (RuntimeException re) {
+            /* the client's pool is shut down */
+            result.complete(new Result(command, endpoint.name, null, re,
+                                       attempts, System.nanoTime() - start));
+            return;
+        }
+        response.whenComplete((r, t) -> {
+                final Throwable cause =
+                    (t instanceof CompletionException && t.getCause() != null ?
+                     t.getCause() : t);
+                if (isUnreachable(cause) && attempts < endpoints.size()) {
+                    final int next = (index + 1) % endpoints.size();
+                    preferred.compareAndSet(index, next);
+                    attempt(command, next, attempts + 1, start, result);
+                    return;
+                }
+                result.complete(new Result(command, endpoint.name, r, cause,
+                                           attempts,
+                                           System.nanoTime() - start));
+            });
+    }
+
+    /**
+     * Returns true if a command failed without reaching its endpoint, so
+     * that it can be sent to another
+     */
+    private static boolean isUnreachable(Throwable t) {
+        return (t instanceof ConnectException ||
+                t instanceof NoRouteToHostException ||
+                t instanceof UnknownHostException ||
+                t instanceof AdminClient.RequestNotSentException);
+    }
+
+    /**
+     * Closes the clients of all endpoints
+     */
+    @Override
+    public void close() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.client.close();
+        }
+    }
+
+    /**
+     * An admin command: a path and a JSON payload posted to it
+     */
+    public static final class Command {
+        private final String path;
+        private final String json;
+
+        public Command(String path, String json) {
+            this.path = path;
+            this.json = json;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return path + " " + json;
+        }
+    }
+
+    /**
+     * The outcome of a command
+     */
+    public static final class Result {
+        private final Command command;
+        private final String endpoint;
+        private final AdminClient.Response response;
+        private final Throwable failure;
+        private final int attempts;
+        private final long latencyNanos;
+
+        Result(Command command,
+               String endpoint,
+               AdminClient.Response response,
+               Throwable failure,
+               int attempts,
+               long latencyNanos) {
+            this.command = command;
+            this.endpoint = endpoint;
+            this.response = response;
+            this.failure = failure;
+            this.attempts = attempts;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        /**
+         * Returns the endpoint that answered, or the last one tried if the
+         * command failed
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * Returns the response, or null if the command failed
+         */
+        public AdminClient.Response getResponse() {
+            return response;
+        }
+
+        /**
+         * Returns why no endpoint could answer, or null
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Returns the number of endpoints tried
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getLatency(TimeUnit unit) {
+            return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static final class Endpoint {
+        final String name;
+        final AdminClient client;
+
+        Endpoint(String name, AdminClient client) {
+            this.name = name;
+            this.client = client;
+        }
+    }
+}
@@ -1,24 +1,18 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.KeyStore;
-import java.util.Base64;
-import java.util.Scanner;
-
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  */
 public class HttpClientExample {
 
+    /**
+     * The most admin commands run at a time by the client.
+     */
+    static final int MAX_CONNECTIONS = 4;
+
     /**
      * The admin web service host name. Default value is localhost.
      */
@@ -29,6 +23,19 @@ public class HttpClientExample {
      */
     String hostPort = "5001";
 
+    /**
+     * Admin web service endpoints as host:port, tried in order when one
+     * cannot be reached. Default value is the -host and -port.
+     */
+    List<String> endpoints = new ArrayList<String>();
+
+    /**
+     * Commands to run at once, as path and JSON payload pairs. Default value
+     * is show topology.
+     */
+    List<AdminCommandExecutor.Command> commands =
+        new ArrayList<AdminCommandExecutor.Command>();
+
     /**
      * The absolute root directory where KVLite create the service. Default
      * value is "/tmp/kvroot".
@@ -72,6 +79,16 @@ public class HttpClientExample {
                 if (argc < nArgs) {
                     hostPort = args[argc++];
                 }
+            } else if (thisArg.equals("-hosts")) {
+                if (argc < nArgs) {
+                    endpoints.addAll(Arrays.asList(args[argc++].split(",")));
+                }
+            } else if (thisArg.equals("-command")) {
+                if (argc + 1 < nArgs) {
+                    commands.add(new AdminCommandExecutor.Command(
+                        args[argc], args[argc + 1]));
+                    argc += 2;
+                }
             } else if (thisArg.equals("-root")) {
                 if (argc < nArgs) {
                     kvroot = args[argc++];
@@ -95,6 +112,9 @@ public class HttpClientExample {
         System.out.println("usage: " + getClass().getName());
         System.out.println("\t-host <host name> (default: localhost) " +
                            "-port <port number> (default: 5000)" +
+                           "-hosts <host:port,...> (default: -host:-port)" +
+                           "-command <path> <json> (default: show " +
+                           "topology, may be repeated)" +
                            "-root <root path> (default: /tmp/kvroot)" +
                            "-user <user name> (default: admin)" +
                            "-password <password> (If not specify, " +
@@ -113,132 +133,42 @@ public class HttpClientExample {
         final String jsonPayload =
             "{\"command\" : \"show\"}";
 
-        /* HTTPS access secured KVLite */
-        if (password != null && !password.isEmpty()) {
-            runShowTopology(createHttpsConn(commandPath), jsonPayload);
-            return;
+        if (commands.isEmpty()) {
+            commands.add(
+                new AdminCommandExecutor.Command(commandPath, jsonPayload));
         }
-
-        /* HTTP access non-secured KVLite */
-        runShowTopology(createHttpConn(commandPath), jsonPayload);
-    }
-
-    private void runShowTopology(HttpURLConnection urlConn, String json)
-        throws Exception {
-
-        /* Show topology require POST HTTP method */
-        urlConn.setRequestMethod("POST");
-
-        /* Send the JSON in HTTP payload */
-        urlConn.setDoOutput(true);
-        final DataOutputStream output =
-                new DataOutputStream(urlConn.getOutputStream());
-        output.writeBytes(json);
-        output.close();
-
-        /* Read the show topology result */
-        final DataInputStream input =
-            new DataInputStream(urlConn.getInputStream());
-        final StringBuffer showTopoResult = new StringBuffer();
-        int readChar = input.read();
-        while (readChar != -1) {
-            showTopoResult.append((char)readChar);
-            readChar = input.read();
+        if (endpoints.isEmpty()) {
+            endpoints.add(hostName + ":" + hostPort);
         }
-        input.close();
-
-        /* Display the show topology result */
-        System.out.println(showTopoResult);
-    }
-
-    /*
-     * Create HTTP connection for target command.
-     */
-    private HttpURLConnection createHttpConn(String commandPath)
-        throws Exception {
-        final URL url =
-            new URL("http://" + hostName + ":" + hostPort + commandPath);
-        final HttpURLConnection urlConn =
-            (HttpURLConnection) url.openConnection();
-        return urlConn;
-    }
-
-    /*
-     * Create the HTTPS connection, login to obtain token, then inject the
-     * token in request header for target command.
-     */
-    private HttpURLConnection createHttpsConn(String commandPath)
-        throws Exception {
-
-        /* Generate the login URL */
-        final String loginAPI = "/V0/nosql/admin/login";
-        URL url = new URL("https://" + hostName + ":" + hostPort + loginAPI);
-
-        /* Load the client trust file for HTTPS */
-        final String trustFileLocation = kvroot + "/security/client.trust";
-        final InputStream is = new FileInputStream(trustFileLocation);
-        final String trustStoreType = "JKS";
-        final KeyStore ts = KeyStore.getInstance(trustStoreType);
-        ts.load(is, null);
-        final String algorithm = "SunX509";
-        final TrustManagerFactory tmf =
-            TrustManagerFactory.getInstance(algorithm);
-        tmf.init(ts);
-
-        /* Create SSL context for HTTPS */
-        final String protocol = "TLS";
-        SSLContext sslContext = SSLContext.getInstance(protocol);
-        sslContext.init(null,tmf.getTrustManagers(),null);
-        HttpsURLConnection.setDefaultSSLSocketFactory(
-            sslContext.getSocketFactory());
-
-        /* Create an all host valid verifier */
-        HostnameVerifier allHostsValid = new HostnameVerifier() {
-            @Override
-            public boolean verify(String host, SSLSession sess) {
-                return true;
-            }
-        };
-
-        HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
-
-        HttpsURLConnection urlConn = (HttpsURLConnection) url.openConnection();
-
-        /* Set basic authentication information */
-        final String encoded =
-            Base64.getEncoder().encodeToString(
-                (user + ":" + password).getBytes());
-        urlConn.setRequestProperty("Authorization", "Basic " + encoded);
-
-        /* Read the request result */
-        final Scanner scanner = new Scanner(urlConn.getInputStream());
 
         /*
-         * Extract the login token.
-         * User can also use an external json library to parse a string to
-         * json object ro read the json field
+         * HTTPS access secured KVLite, HTTP access non-secured KVLite. The
+         * clients are meant to be kept and shared by many commands, which
+         * reuse their connections and login tokens.
          */
-        String token = null;
-        while (scanner.hasNext()) {
-            final String lineText = scanner.nextLine();
-            if (lineText.contains("token")) {
-                final String tokenValue = lineText.split(":")[1];
-                token =
-                    tokenValue.substring(tokenValue.indexOf("\"") + 1,
-                                         tokenValue.lastIndexOf("\""));
-            }
+        final boolean secured = (password != null && !password.isEmpty());
+        try (AdminCommandExecutor executor = new AdminCommandExecutor(
+                 endpoints,
+                 (secured ? AdminClient.loadTrustContext(
+                     kvroot + "/security/client.trust") : null),
+                 user, (secured ? password : null), MAX_CONNECTIONS)) {
+
+            /* Run the commands at once and display results as they arrive */
+            executor.submitAll(commands, result -> {
+                    final StringBuilder sb = new StringBuilder();
+                    sb.append(result.getCommand()).append(" on ")
+                        .append(result.getEndpoint()).append(", ")
+                        .append(result.getLatency(TimeUnit.MILLISECONDS))
+                        .append(" ms: ");
+                    if (result.getFailure() != null) {
+                        sb.append("failed: ").append(result.getFailure());
+                    } else {
+                        sb.append(result.getResponse().getStatus())
+                            .append('\n')
+                            .append(result.getResponse().getBody());
+                    }
+                    System.out.println(sb);
+                }).get();
         }
-        scanner.close();
-
-        if (token == null) {
-            throw new IllegalStateException("Cannot find login token");
-        }
-
-        /* Open a new connection for target command */
-        url = new URL("https://" + hostName + ":" + hostPort + commandPath);
-        urlConn = (HttpsURLConnection) url.openConnection();
-        /* Inject login token in request header */
-        urlConn.setRequestProperty("Authorization", "Bearer " + token);
-        return urlConn;
     }
 }
@@ -0,0 +1,709 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A streaming JSON reader for admin responses. The document is read from
+ * the stream a buffer at a time as the caller pulls tokens, so fields of
+ * interest, such as the login token or the storage nodes of a topology,
+ * can be picked out of a large response without building it as a String
+ * or a tree. Values that are skipped are scanned but not decoded.
+ *
+ * Tokens are pulled with the usual calls: beginObject, nextName,
+ * nextString and so on, with hasNext to find the end of an object or
+ * array. findName moves to a field of the current object and seek to the
+ * next field with a name at any depth.
+ *
+ * Strings are decoded as UTF-8. The read buffer is taken from a pool
+ * shared by all readers and returned to it by close, which does not close
+ * the stream. A reader is used by one thread at a time.
+ */
+public final class JsonReader implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING,
+        NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /* most buffers kept in the pool */
+    private static final int MAX_POOLED = 16;
+
+    private static final ArrayBlockingQueue<byte[]> POOL =
+        new ArrayBlockingQueue<byte[]>(MAX_POOLED);
+
+    /* scopes on the stack */
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final InputStream in;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /* the stream offset of buf[0], for error messages */
+    private long offset;
+
+    /* the token at the reader's position, or null if not yet read */
+    private Token peeked;
+
+    private int[] stack = new int[32];
+    private int depth;
+
+    /* decoded bytes of the current string or literal */
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    public JsonReader(InputStream in) {
+        this.in = in;
+        final byte[] pooled = POOL.poll();
+        this.buf = (pooled != null ? pooled : new byte[BUFFER_SIZE]);
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Returns the buffer to the pool. The reader can't be used after this.
+     */
+    @Override
+    public void close() {
+        if (buf != null) {
+            POOL.offer(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Returns the type of the next token without consuming it
+     */
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    /**
+     * Returns true if the current object or array has another element
+     */
+    public boolean hasNext() throws IOException {
+        final Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY &&
+            t != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+        peeked = null;
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+        peeked = null;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+        peeked = null;
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+        peeked = null;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        readString();
+        stack[depth - 1] = DANGLING_NAME;
+        peeked = null;
+        return scratchString();
+    }
+
+    /**
+     * Returns a string value, or the text of a number
+     */
+    public String nextString() throws IOException {
+        final Token t = peek();
+        if (t == Token.STRING) {
+            readString();
+        } else if (t == Token.NUMBER) {
+            readLiteral();
+        } else {
+            throw unexpected(Token.STRING);
+        }
+        peeked = null;
+        return scratchString();
+    }
+
+    /**
+     * Returns a number, or a string holding one, as a long. The number must
+     * be an integer in the range of a long, but may be written with a
+     * fraction or exponent, such as 1.0 or 1e3.
+     */
+    public long nextLong() throws IOException {
+        final String s;
+        if (peek() == Token.NUMBER) {
+            readLiteral();
+            peeked = null;
+            final long value = parseLong();
+            if (value != Long.MIN_VALUE) {
+                return value;
+            }
+            s = scratchString();
+        } else {
+            s = nextString();
+        }
+
+        /* exact, where a double would lose digits past 2^53 */
+        try {
+            return new BigDecimal(s).longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw syntaxError("Not a long: " + s);
+        }
+    }
+
+    public int nextInt() throws IOException {
+        final long value = nextLong();
+        if (value != (int) value) {
+            throw syntaxError("Not an int: " + value);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        return Double.parseDouble(nextString());
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        readLiteral();
+        peeked = null;
+        if (literalIs("true")) {
+            return true;
+        }
+        if (literalIs("false")) {
+            return false;
+        }
+        throw syntaxError("Bad literal " + scratchString());
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral();
+        peeked = null;
+        if (!literalIs("null")) {
+            throw syntaxError("Bad literal " + scratchString());
+        }
+    }
+
+    /**
+     * Skips the next value, with all it contains, or the next field if the
+     * reader is at a name. Nothing skipped is decoded.
+     */
+    public void skipValue() throws IOException {
+        int level = 0;
+        while (true) {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                level++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                level++;
+                break;
+            case END_OBJECT:
+                if (level == 0) {
+                    throw new IllegalStateException("No value to skip");
+                }
+                endObject();
+                level--;
+                break;
+            case END_ARRAY:
+                if (level == 0) {
+                    throw new IllegalStateException("No value to skip");
+                }
+                endArray();
+                level--;
+                break;
+            case NAME:
+                skipString();
+                stack[depth - 1] = DANGLING_NAME;
+                peeked = null;
+
+                /* the name's value follows */
+                continue;
+            case STRING:
+                skipString();
+                peeked = null;
+                break;
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                readLiteral();
+                peeked = null;
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("No value to skip");
+            }
+            if (level == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves to the value of the named field of the current object,
+     * skipping the fields before it.
+     *
+     * @return false, with the reader at the end of the object, if the
+     * object has no more fields with that name
+     */
+    public boolean findName(String name) throws IOException {
+        final byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        while (peek() == Token.NAME) {
+            if (nextNameEquals(target)) {
+                return true;
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the value of the next field with the given name, at any
+     * depth. The reader is left inside the objects and arrays that hold
+     * it.
+     *
+     * @return false, at the end of the document, if there is no such
+     * field
+     */
+    public boolean seek(String name) throws IOException {
+        final byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                break;
+            case END_OBJECT:
+                endObject();
+                break;
+            case END_ARRAY:
+                endArray();
+                break;
+            case NAME:
+                if (nextNameEquals(target)) {
+                    return true;
+                }
+                break;
+            case END_DOCUMENT:
+                return false;
+            default:
+                skipValue();
+            }
+        }
+    }
+
+    private boolean nextNameEquals(byte[] target) throws IOException {
+        expect(Token.NAME);
+        readString();
+        stack[depth - 1] = DANGLING_NAME;
+        peeked = null;
+        if (scratchLength != target.length) {
+            return false;
+        }
+        for (int i = 0; i < scratchLength; i++) {
+            if (scratch[i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Token doPeek() throws IOException {
+        final int scope = stack[depth - 1];
+        int c;
+        switch (scope) {
+        case EMPTY_ARRAY:
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            if (nextNonWhitespace(false) == ']') {
+                pos++;
+                return Token.END_ARRAY;
+            }
+            return peekValue();
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace(true);
+            if (c == ']') {
+                return Token.END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            return peekValue();
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = nextNonWhitespace(true);
+            if (c == '}') {
+                return Token.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+                c = nextNonWhitespace(true);
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name");
+            }
+            return Token.NAME;
+        case DANGLING_NAME:
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace(true) != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            return peekValue();
+        case EMPTY_DOCUMENT:
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+            return peekValue();
+        default:
+            if (nextNonWhitespace(false) == -1) {
+                return Token.END_DOCUMENT;
+            }
+            throw syntaxError("Expected the end of the document");
+        }
+    }
+
+    /**
+     * Returns the type of the value at the reader's position. The opening
+     * character of an object, array or string is consumed, literals are
+     * left to be read whole.
+     */
+    private Token peekValue() throws IOException {
+        final int c = nextNonWhitespace(false);
+        switch (c) {
+        case '{':
+            pos++;
+            return Token.BEGIN_OBJECT;
+        case '[':
+            pos++;
+            return Token.BEGIN_ARRAY;
+        case '"':
+            pos++;
+            return Token.STRING;
+        case 't':
+        case 'f':
+            return Token.BOOLEAN;
+        case 'n':
+            return Token.NULL;
+        case -1:
+            throw syntaxError("Unexpected end of document");
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return Token.NUMBER;
+            }
+            throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * Returns the next character that is not whitespace, or -1 at the end
+     * of the stream
+     *
+     * @param consume true to move past the character
+     */
+    private int nextNonWhitespace(boolean consume) throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            final int c = buf[pos];
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+                continue;
+            }
+            if (consume) {
+                pos++;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Reads more of the stream into the buffer, replacing what has been
+     * consumed
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (buf == null) {
+            throw new IllegalStateException("JsonReader is closed");
+        }
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        final int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Reads the rest of a string, after its opening quote, into scratch
+     * with escapes decoded. Other bytes are copied as they are, so UTF-8
+     * sequences stay whole for scratchString to decode.
+     */
+    private void readString() throws IOException {
+        scratchLength = 0;
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                final byte b = buf[pos];
+                if (b == '"' || b == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            appendScratch(buf, start, pos - start);
+            if (pos == limit) {
+                if (!fill()) {
+                    throw syntaxError("Unterminated string");
+                }
+                continue;
+            }
+            if (buf[pos++] == '"') {
+                return;
+            }
+            readEscape();
+        }
+    }
+
+    private void readEscape() throws IOException {
+        final int c = nextByte();
+        switch (c) {
+        case 'b':
+            appendScratch('\b');
+            break;
+        case 'f':
+            appendScratch('\f');
+            break;
+        case 'n':
+            appendScratch('\n');
+            break;
+        case 'r':
+            appendScratch('\r');
+            break;
+        case 't':
+            appendScratch('\t');
+            break;
+        case 'u':
+            int cp = readHex4();
+            if (Character.isHighSurrogate((char) cp)) {
+                if (nextByte() != '\\' || nextByte() != 'u') {
+                    throw syntaxError("Unpaired surrogate");
+                }
+                final int low = readHex4();
+                if (!Character.isLowSurrogate((char) low)) {
+                    throw syntaxError("Unpaired surrogate");
+                }
+                cp = Character.toCodePoint((char) cp, (char) low);
+            } else if (Character.isLowSurrogate((char) cp)) {
+                throw syntaxError("Unpaired surrogate");
+            }
+            appendCodePoint(cp);
+            break;
+        default:
+            /* \" \\ \/ and, leniently, any other character */
+            appendScratch(c);
+        }
+    }
+
+    private int readHex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int digit = Character.digit(nextByte(), 16);
+            if (digit < 0) {
+                throw syntaxError("Bad \\u escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Skips the rest of a string without decoding it
+     */
+    private void skipString() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                final byte b = buf[pos++];
+                if (b == '"') {
+                    return;
+                }
+                if (b == '\\') {
+                    nextByte();
+                }
+            }
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    /**
+     * Reads a number, true, false or null into scratch
+     */
+    private void readLiteral() throws IOException {
+        scratchLength = 0;
+        while (true) {
+            final int start = pos;
+            while (pos < limit && !isDelimiter(buf[pos])) {
+                pos++;
+            }
+            appendScratch(buf, start, pos - start);
+            if (pos < limit || !fill()) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isDelimiter(byte b) {
+        switch (b) {
+        case ',':
+        case ':':
+        case ']':
+        case '}':
+        case ' ':
+        case '\n':
+        case '\r':
+        case '\t':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Parses scratch as a long, returning Long.MIN_VALUE if it is not a
+     * plain integer or is out of range
+     */
+    private long parseLong() {
+        int i = 0;
+        final boolean negative = (scratchLength > 0 && scratch[0] == '-');
+        if (negative) {
+            i++;
+        }
+        if (i == scratchLength || scratchLength - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < scratchLength; i++) {
+            final int digit = scratch[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return (negative ? -value : value);
+    }
+
+    private boolean literalIs(String literal) {
+        if (scratchLength != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < scratchLength; i++) {
+            if (scratch[i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nextByte() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unexpected end of document");
+        }
+        return buf[pos++];
+    }
+
+    private void appendScratch(byte[] src, int start, int length) {
+        ensureScratch(length);
+        System.arraycopy(src, start, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    private void appendScratch(int b) {
+        ensureScratch(1);
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private void appendCodePoint(int cp) {
+        if (cp < 0x80) {
+            appendScratch(cp);
+        } else if (cp < 0x800) {
+            appendScratch(0xc0 | (cp >> 6));
+            appendScratch(0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            appendScratch(0xe0 | (cp >> 12));
+            appendScratch(0x80 | ((cp >> 6) & 0x3f));
+            appendScratch(0x80 | (cp & 0x3f));
+        } else {
+            appendScratch(0xf0 | (cp >> 18));
+            appendScratch(0x80 | ((cp >> 12) & 0x3f));
+            appendScratch(0x80 | ((cp >> 6) & 0x3f));
+            appendScratch(0x80 | (cp & 0x3f));
+        }
+    }
+
+    private void ensureScratch(int more) {
+        if (scratchLength + more > scratch.length) {
+            scratch = Arrays.copyOf(scratch,
+                                    Math.max(scratch.length * 2,
+                                             scratchLength + more));
+        }
+    }
+
+    private String scratchString() {
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = scope;
+    }
+
+    private void expect(Token expected) throws IOException {
+        if (peek() != expected) {
+            throw unexpected(expected);
+        }
+    }
+
+    private IOException unexpected(Token expected) {
+        return syntaxError("Expected " + expected + " but was " + peeked);
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + (offset + pos));
+    }
+}
@@ -0,0 +1,170 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import oracle.nosql.common.contextlogger.LogContext;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Checks the heap allocated per request by ProxyRequestHandler dispatch
+ * against a budget, so that allocation creeping back into the request path
+ * is caught. Allocation is read from the JMX per thread allocation counters,
+ * see BenchmarkRunner. Requests are handled on the calling thread, with a
+ * service that returns a new empty response. Every case creates one
+ * response, by the service or as a bad request, so the allocation of the
+ * service is measured separately and not counted.
+ *
+ * The program exits with status 1 if any case is over budget. The LogControl
+ * in use may allocate a LogContext per request; that is counted.
+ *
+ * usage: AllocationBudget
+ *     -budget <bytes per request> (default: 256)
+ *     -warmup <ms> (default: 2000)
+ *     -time <ms per iteration> (default: 1000)
+ *     -iterations <n> (default: 5)
+ */
+public class AllocationBudget {
+
+    private int budget = 256;
+    private int warmup = 2000;
+    private int time = 1000;
+    private int iterations = 5;
+
+    public static void main(String args[]) throws Exception {
+        if (!new AllocationBudget(args).run()) {
+            System.exit(1);
+        }
+    }
+
+    private AllocationBudget(String args[]) {
+        int argc = 0;
+        while (argc < args.length) {
+            final String thisArg = args[argc++];
+            if (argc >= args.length) {
+                usage("Missing value for " + thisArg);
+            }
+            final String value = args[argc++];
+            if (thisArg.equals("-budget")) {
+                budget = Integer.parseInt(value);
+            } else if (thisArg.equals("-warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (thisArg.equals("-time")) {
+                time = Integer.parseInt(value);
+            } else if (thisArg.equals("-iterations")) {
+                iterations = Integer.parseInt(value);
+            } else {
+                usage("Unknown argument: " + thisArg);
+            }
+        }
+    }
+
+    private void usage(String message) {
+        System.out.println("\n" + message + "\n");
+        System.out.println("usage: " + getClass().getName());
+        System.out.println("\t-budget <bytes per request> " +
+                           "-warmup <ms> -time <ms per iteration> " +
+                           "-iterations <n>");
+        System.exit(1);
+    }
+
+    /**
+     * @return false if any case is over budget
+     */
+    private boolean run() throws Exception {
+        final Logger jul = Logger.getLogger(AllocationBudget.class.getName());
+        jul.setLevel(Level.WARNING);
+        final SkLogger logger = new SkLogger(jul);
+        final BenchmarkRunner runner =
+            new BenchmarkRunner(warmup, time, iterations);
+
+        final EmptyResponseService service = new EmptyResponseService();
+        final ProxyRequestHandler handler =
+            new ProxyRequestHandler(new LogControl(), logger);
+        handler.addService("data", service, ServiceRoute.prefix("V0/data"));
+        handler.setUnknownServiceRateLimit(0, 0);
+
+        final EmbeddedChannel channel =
+            new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        final ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        final FullHttpRequest routed = newRequest("/V0/data/query");
+        final FullHttpRequest query = newRequest("/V0/data/query?limit=10");
+        final FullHttpRequest unknown = newRequest("/V0/unknown");
+
+        try {
+            final double serviceBytes =
+                runner.run("service only",
+                           () -> status(service.handleRequest(routed, ctx,
+                                                              null)))
+                .bytesPerOp;
+
+            boolean ok = true;
+            ok &= check(runner.run("handleRequest routed",
+                                   () -> status(handler.handleRequest(routed,
+                                                                      ctx))),
+                        serviceBytes);
+            ok &= check(runner.run("handleRequest routed with query",
+                                   () -> status(handler.handleRequest(query,
+                                                                      ctx))),
+                        serviceBytes);
+            ok &= check(runner.run("handleRequest unknown service",
+                                   () -> status(handler.handleRequest(unknown,
+                                                                      ctx))),
+                        serviceBytes);
+            return ok;
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * Checks the allocation of a case, less the allocation of one response
+     */
+    private boolean check(BenchmarkRunner.Result result, double serviceBytes) {
+        final double bytes = result.bytesPerOp - serviceBytes;
+        if (bytes > budget) {
+            System.out.printf("OVER BUDGET %s: %.0f B/request, budget " +
+                              "%d B/request%n", result.name, bytes, budget);
+            return false;
+        }
+        return true;
+    }
+
+    private static FullHttpRequest newRequest(String uri) {
+        return new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.POST, uri,
+                                          Unpooled.EMPTY_BUFFER);
+    }
+
+    private static long status(FullHttpResponse response) {
+        return response.status().code();
+    }
+
+    /**
+     * A service that does as little as a service can
+     */
+    private static final class EmptyResponseService implements Service {
+
+        @Override
+        public FullHttpResponse handleRequest(FullHttpRequest request,
+                                              ChannelHandlerContext ctx,
+                                              LogContext lc) {
+            return new DefaultFullHttpResponse(HTTP_1_1, OK,
+                                               Unpooled.EMPTY_BUFFER);
+        }
+
+        @Override
+        public boolean lookupService(String uri) {
+            return false;
+        }
+    }
+}
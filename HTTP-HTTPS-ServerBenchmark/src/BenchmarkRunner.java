@@ -0,0 +1,218 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs microbenchmarks with warmup and repeated measurement iterations, and
+ * reports time and heap allocation per operation. Allocation is the growth
+ * of the allocated bytes of all live JVM threads, so work done on event
+ * loop threads is included.
+ *
+ * Results can be saved and later used as a baseline. A run compared with a
+ * baseline fails if any benchmark is slower, or allocates more, than the
+ * baseline by more than a tolerance.
+ */
+final class BenchmarkRunner {
+
+    /**
+     * One operation of a benchmark. The result is accumulated so that the
+     * JIT cannot remove the work.
+     */
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    /* most operations between clock reads */
+    private static final int MAX_BATCH = 256;
+
+    /* operations are batched until a batch takes at least this long */
+    private static final long MIN_BATCH_NANOS = 100000;
+
+    /* allocation differences smaller than this are measurement noise */
+    private static final double MIN_ALLOC_DELTA = 16;
+
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final int iterations;
+    private final com.sun.management.ThreadMXBean threads;
+    private final List<Result> results = new ArrayList<Result>();
+
+    /* keeps operation results live */
+    private volatile long sink;
+
+    BenchmarkRunner(int warmupMillis, int measureMillis, int iterations) {
+        this.warmupNanos = warmupMillis * 1000000L;
+        this.measureNanos = measureMillis * 1000000L;
+        this.iterations = iterations;
+        this.threads = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Warms up and measures an operation, prints and keeps the result.
+     * The reported time is the median over the measurement iterations.
+     */
+    Result run(String name, Operation op) throws Exception {
+        runFor(op, warmupNanos);
+
+        final double[] nanosPerOp = new double[iterations];
+        double bytesPerOp = 0;
+        for (int i = 0; i < iterations; i++) {
+            final Map<Long, Long> bytes0 = allocatedBytes();
+            final long t0 = System.nanoTime();
+            final long ops = runFor(op, measureNanos);
+            final long elapsed = System.nanoTime() - t0;
+            final long bytes = allocatedSince(bytes0, allocatedBytes());
+            nanosPerOp[i] = (double) elapsed / ops;
+            bytesPerOp += (double) bytes / ops;
+        }
+        Arrays.sort(nanosPerOp);
+        final Result result = new Result(name,
+                                         nanosPerOp[iterations / 2],
+                                         bytesPerOp / iterations);
+        System.out.println(result);
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * Runs the operation for at least the given time. Fast operations are
+     * run in batches so that reading the clock does not dominate.
+     *
+     * @return the number of operations run
+     */
+    private long runFor(Operation op, long nanos) throws Exception {
+        long now = System.nanoTime();
+        final long end = now + nanos;
+        long ops = 0;
+        long acc = 0;
+        int batch = 1;
+        do {
+            for (int i = 0; i < batch; i++) {
+                acc += op.run();
+            }
+            ops += batch;
+            final long prev = now;
+            now = System.nanoTime();
+            if (batch < MAX_BATCH && now - prev < MIN_BATCH_NANOS) {
+                batch <<= 1;
+            }
+        } while (now < end);
+        sink = acc;
+        return ops;
+    }
+
+    /**
+     * Returns the bytes allocated by each live thread, by thread id
+     */
+    private Map<Long, Long> allocatedBytes() {
+        final long[] ids = threads.getAllThreadIds();
+        final long[] bytes = threads.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> map = new HashMap<Long, Long>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] > 0) {
+                map.put(ids[i], bytes[i]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the bytes allocated between two snapshots. Threads that ended
+     * in between are not counted.
+     */
+    private static long allocatedSince(Map<Long, Long> before,
+                                       Map<Long, Long> after) {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : after.entrySet()) {
+            final Long prev = before.get(e.getKey());
+            total += e.getValue() - (prev != null ? prev : 0);
+        }
+        return total;
+    }
+
+    /**
+     * Writes results, one tab separated line per benchmark.
+     */
+    void save(File file) throws IOException {
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+            for (Result r : results) {
+                pw.println(r.name + "\t" + r.nanosPerOp + "\t" + r.bytesPerOp);
+            }
+        }
+    }
+
+    /**
+     * Compares this run with results saved by an earlier run and prints any
+     * regressions.
+     *
+     * @param tolerance the allowed increase, in percent
+     * @return true if no benchmark regressed
+     */
+    boolean compare(File baseline, double tolerance) throws IOException {
+        final Map<String, Result> base = new LinkedHashMap<String, Result>();
+        try (BufferedReader br = new BufferedReader(new FileReader(baseline))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                final String[] f = line.split("\t");
+                if (f.length == 3) {
+                    base.put(f[0], new Result(f[0], Double.parseDouble(f[1]),
+                                              Double.parseDouble(f[2])));
+                }
+            }
+        }
+
+        final double limit = 1 + tolerance / 100;
+        boolean ok = true;
+        for (Result r : results) {
+            final Result b = base.get(r.name);
+            if (b == null) {
+                continue;
+            }
+            if (r.nanosPerOp > b.nanosPerOp * limit) {
+                System.out.printf("REGRESSION %s: %.1f ns/op, baseline " +
+                                  "%.1f ns/op%n", r.name, r.nanosPerOp,
+                                  b.nanosPerOp);
+                ok = false;
+            }
+            if (r.bytesPerOp > b.bytesPerOp * limit &&
+                r.bytesPerOp - b.bytesPerOp > MIN_ALLOC_DELTA) {
+                System.out.printf("REGRESSION %s: %.0f B/op, baseline " +
+                                  "%.0f B/op%n", r.name, r.bytesPerOp,
+                                  b.bytesPerOp);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    static final class Result {
+        final String name;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-50s %12.1f ns/op %12.0f ops/s %10.0f B/op",
+                                 name, nanosPerOp, 1e9 / nanosPerOp,
+                                 bytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * The per request work ProxyRequestHandler does around a service: locating
+ * the service with findService and adding the required headers to the
+ * response. Services are registered with routes, so they are found through
+ * the routing index, or without, so they are found by asking each service's
+ * lookupService in turn.
+ */
+final class DispatchBenchmark {
+
+    private final ProxyRequestHandler handler;
+
+    /* a mix of hits spread over the services and some misses */
+    private final String[] paths = new String[256];
+    private int next;
+
+    DispatchBenchmark(int services, boolean routed) {
+        handler = new ProxyRequestHandler(null, null);
+        for (int i = 0; i < services; i++) {
+            final String base = "V0/nosql/svc" + i;
+            if (routed) {
+                handler.addService("svc" + i, new PrefixService(base),
+                                   ServiceRoute.prefix(base));
+            } else {
+                handler.addService("svc" + i, new PrefixService(base));
+            }
+        }
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = (i % 8 == 7) ?
+                "/V0/nosql/unknown" + i :
+                "/V0/nosql/svc" + (i % services) + "/op" + (i % 5);
+        }
+    }
+
+    /**
+     * @return 1 if a service was found, 0 if not
+     */
+    long findService() {
+        return (handler.findService(paths[next++ & (paths.length - 1)],
+                                    HttpMethod.POST) != null ? 1 : 0);
+    }
+
+    /**
+     * Creates a response and adds the required headers.
+     *
+     * @return the number of headers
+     */
+    static long addRequiredHeaders() {
+        final FullHttpResponse response =
+            new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.EMPTY_BUFFER);
+        ProxyRequestHandler.addRequiredHeaders(response);
+        return response.headers().size();
+    }
+}
@@ -0,0 +1,51 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static oracle.nosql.common.http.Constants.CONTENT_LENGTH;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import oracle.nosql.common.contextlogger.LogContext;
+
+/**
+ * A RequestHandler, or a Service registered with ProxyRequestHandler, that
+ * answers every request with the same payload. Used by the benchmarks so
+ * that they measure the server, not the service.
+ */
+final class FixedResponseHandler implements RequestHandler, Service {
+
+    private final ByteBuf payload;
+
+    FixedResponseHandler(int payloadSize) {
+        final byte[] bytes = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            bytes[i] = (byte) ('a' + (i % 26));
+        }
+        payload = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(payloadSize).writeBytes(bytes));
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(FullHttpRequest request,
+                                          ChannelHandlerContext ctx) {
+        final FullHttpResponse response =
+            new DefaultFullHttpResponse(HTTP_1_1, OK, payload.duplicate());
+        response.headers().set(CONTENT_LENGTH, payload.readableBytes());
+        return response;
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(FullHttpRequest request,
+                                          ChannelHandlerContext ctx,
+                                          LogContext lc) {
+        return handleRequest(request, ctx);
+    }
+
+    @Override
+    public boolean lookupService(String uri) {
+        return true;
+    }
+}
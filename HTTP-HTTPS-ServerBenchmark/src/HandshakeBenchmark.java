@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Measures HTTPS connection setup over loopback with full and with resumed
+ * TLS handshakes. Each operation opens a connection, sends one request with
+ * Connection: close and reads the response, so the handshake dominates.
+ * Reading the response also receives the session ticket a TLS 1.3 server
+ * sends after the handshake.
+ *
+ * The full handshake client invalidates the session of each connection
+ * before opening the next, so nothing can be resumed. The resumed client
+ * keeps its sessions. The server's own count of resumed handshakes, from
+ * ServerMetrics, is printed after each run to confirm which kind was
+ * measured.
+ */
+final class HandshakeBenchmark {
+
+    private static final String HOST = "localhost";
+    private static final String PATH = "/bench/op";
+
+    private final HttpServer server;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final int port;
+
+    private long handshakes;
+    private long resumed;
+
+    HandshakeBenchmark(int port, ServerSslContext sslCtx, SkLogger logger)
+        throws Exception {
+
+        this.port = port;
+
+        final ProxyRequestHandler handler =
+            new ProxyRequestHandler(new LogControl(), logger);
+        handler.addService("bench", new FixedResponseHandler(0),
+                           ServiceRoute.prefix("bench"));
+
+        server = new HttpServer(new HttpServerConfig()
+                                .setHttpHost(HOST)
+                                .setHttpsPort(port)
+                                .setSslContext(sslCtx)
+                                .setMetrics(metrics),
+                                handler, null, logger);
+    }
+
+    /**
+     * Returns a client that opens a new connection per request. Each client
+     * has its own session cache.
+     *
+     * @param resume true to resume sessions, false for full handshakes
+     */
+    LoopbackClient newClient(boolean resume) throws Exception {
+        final SSLContext clientCtx = SSLContext.getInstance("TLS");
+        clientCtx.init(null, new TrustManager[] {
+                InsecureTrustManagerFactory.INSTANCE.getTrustManagers()[0] },
+            null);
+        final SSLSocketFactory factory = clientCtx.getSocketFactory();
+        return new LoopbackClient(HOST, port, PATH, 0, false,
+                                  (resume ? factory :
+                                   new NoResumeSocketFactory(factory)));
+    }
+
+    /**
+     * Returns the server's count of full and resumed handshakes since the
+     * last call
+     */
+    String handshakeCounts() {
+        final long h = metrics.getTlsHandshakes();
+        final long r = metrics.getTlsResumedHandshakes();
+        final String counts = "server handshakes: " + (h - handshakes) +
+            ", resumed: " + (r - resumed);
+        handshakes = h;
+        resumed = r;
+        return counts;
+    }
+
+    String getProvider() {
+        return String.valueOf(server.getSslContext().getProvider());
+    }
+
+    void shutdown() throws InterruptedException {
+        server.shutdown();
+    }
+
+    /**
+     * Invalidates the session of the previous socket when a new one is
+     * created. LoopbackClient opens one socket at a time, and the previous
+     * one has completed its request, including any session ticket, by then.
+     */
+    private static final class NoResumeSocketFactory extends SocketFactory {
+
+        private final SSLSocketFactory factory;
+        private SSLSocket previous;
+
+        NoResumeSocketFactory(SSLSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        private Socket next(Socket socket) {
+            if (previous != null) {
+                previous.getSession().invalidate();
+            }
+            previous = (SSLSocket) socket;
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port)
+            throws IOException {
+            return next(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host,
+                                   int port,
+                                   InetAddress localHost,
+                                   int localPort) throws IOException {
+            return next(factory.createSocket(host, port, localHost,
+                                             localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port)
+            throws IOException {
+            return next(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address,
+                                   int port,
+                                   InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return next(factory.createSocket(address, port, localAddress,
+                                             localPort));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reading a large admin response, a generated show topology result of
+ * about a given size, from memory:
+ *
+ *   bytewise -- one byte at a time into a StringBuffer, as the client
+ *   example used to
+ *   string -- the whole body as a UTF-8 String, as AdminClient.execute does
+ *   skip -- through a JsonReader without decoding anything
+ *   pull -- through a JsonReader, picking out the id and host name of each
+ *   storage node
+ */
+final class JsonBenchmark {
+
+    private final byte[] document;
+    private final int storageNodes;
+
+    JsonBenchmark(int size) {
+        final StringBuilder sb = new StringBuilder(size + 4096);
+        sb.append("{\n  \"operation\" : \"show topology\",\n")
+            .append("  \"returnCode\" : 5000,\n")
+            .append("  \"description\" : \"Operation ends successfully\",\n")
+            .append("  \"returnValue\" : {\n")
+            .append("    \"storeName\" : \"kvstore\",\n")
+            .append("    \"numPartitions\" : 10000,\n")
+            .append("    \"sns\" : [");
+        int sn = 0;
+        while (sb.length() < size) {
+            sn++;
+            sb.append(sn == 1 ? "{\n" : ", {\n")
+                .append("      \"resourceId\" : \"sn").append(sn)
+                .append("\",\n      \"hostname\" : \"node").append(sn)
+                .append(".example.com\",\n")
+                .append("      \"registryPort\" : 5000,\n")
+                .append("      \"zone\" : { \"resourceId\" : \"zn")
+                .append(sn % 3 + 1).append("\", \"name\" : \"zone ")
+                .append(sn % 3 + 1).append("\", \"type\" : \"PRIMARY\", ")
+                .append("\"allowArbiters\" : false },\n")
+                .append("      \"capacity\" : 3,\n")
+                .append("      \"rns\" : [");
+            for (int rn = 1; rn <= 3; rn++) {
+                sb.append(rn == 1 ? "" : ", ")
+                    .append("{ \"resourceId\" : \"rg").append(sn * 3 + rn)
+                    .append("-rn").append(sn % 3 + 1)
+                    .append("\", \"snId\" : \"sn").append(sn)
+                    .append("\", \"storageDirPath\" : \"/disk").append(rn)
+                    .append("/kvroot\", \"storageDirSize\" : ")
+                    .append(1L << 40).append(" }");
+            }
+            sb.append("],\n      \"ans\" : [ ]\n    }");
+        }
+        sb.append("]\n  }\n}\n");
+        this.document = sb.toString().getBytes(StandardCharsets.UTF_8);
+        this.storageNodes = sn;
+    }
+
+    int getSize() {
+        return document.length;
+    }
+
+    int getStorageNodes() {
+        return storageNodes;
+    }
+
+    /**
+     * @return the number of characters read
+     */
+    long bytewise() throws IOException {
+        final DataInputStream input =
+            new DataInputStream(new ByteArrayInputStream(document));
+        final StringBuffer result = new StringBuffer();
+        int readChar = input.read();
+        while (readChar != -1) {
+            result.append((char) readChar);
+            readChar = input.read();
+        }
+        input.close();
+        return result.length();
+    }
+
+    /**
+     * @return the number of characters read
+     */
+    long string() throws IOException {
+        return AdminClient.Response.read(
+            200, new ByteArrayInputStream(document)).getBody().length();
+    }
+
+    /**
+     * @return the position of the reader's last token, to keep it live
+     */
+    long skip() throws IOException {
+        try (JsonReader json =
+                 new JsonReader(new ByteArrayInputStream(document))) {
+            json.skipValue();
+            return json.peek().ordinal();
+        }
+    }
+
+    /**
+     * @return the number of storage nodes
+     */
+    long pull() throws IOException {
+        long nodes = 0;
+        try (JsonReader json =
+                 new JsonReader(new ByteArrayInputStream(document))) {
+            if (!json.seek("sns")) {
+                throw new IOException("No storage nodes");
+            }
+            json.beginArray();
+            while (json.hasNext()) {
+                json.beginObject();
+                String id = null;
+                String host = null;
+                while (json.hasNext()) {
+                    final String name = json.nextName();
+                    if (name.equals("resourceId")) {
+                        id = json.nextString();
+                    } else if (name.equals("hostname")) {
+                        host = json.nextString();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+                if (id != null && host != null) {
+                    nodes++;
+                }
+            }
+        }
+        return nodes;
+    }
+}
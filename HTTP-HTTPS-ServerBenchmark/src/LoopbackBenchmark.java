@@ -0,0 +1,69 @@
+import java.io.IOException;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * An HttpServer listening on loopback for HTTP on one port and, if given an
+ * SslContext, HTTPS on the next. Requests go through ProxyRequestHandler to
+ * a fixed response service. Clients trust any server certificate, so a
+ * self-signed one can be used.
+ */
+final class LoopbackBenchmark {
+
+    private static final String HOST = "localhost";
+    private static final String PATH = "/bench/op";
+
+    private final HttpServer server;
+    private final int port;
+    private final int payloadSize;
+    private final SocketFactory sslSocketFactory;
+
+    /**
+     * @param payloadSize the size of both the request and response bodies
+     * @param sslCtx the server SslContext, or null for no HTTPS
+     */
+    LoopbackBenchmark(int port,
+                      int payloadSize,
+                      SslContext sslCtx,
+                      SkLogger logger)
+        throws Exception {
+
+        this.port = port;
+        this.payloadSize = payloadSize;
+
+        final ProxyRequestHandler handler =
+            new ProxyRequestHandler(new LogControl(), logger);
+        handler.addService("bench", new FixedResponseHandler(payloadSize),
+                           ServiceRoute.prefix("bench"));
+
+        server = new HttpServer(new HttpServerConfig()
+                                .setHttpHost(HOST)
+                                .setHttpPort(port)
+                                .setHttpsPort(port + 1),
+                                handler, sslCtx, logger);
+
+        final SSLContext clientCtx = SSLContext.getInstance("TLS");
+        clientCtx.init(null, new TrustManager[] {
+                InsecureTrustManagerFactory.INSTANCE.getTrustManagers()[0] },
+            null);
+        sslSocketFactory = clientCtx.getSocketFactory();
+    }
+
+    LoopbackClient newClient(boolean https, boolean keepAlive)
+        throws IOException {
+
+        return new LoopbackClient(HOST, (https ? port + 1 : port), PATH,
+                                  payloadSize, keepAlive,
+                                  (https ? sslSocketFactory : null));
+    }
+
+    void shutdown() throws InterruptedException {
+        server.shutdown();
+    }
+}
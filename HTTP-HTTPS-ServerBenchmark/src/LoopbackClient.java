@@ -0,0 +1,146 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.net.SocketFactory;
+
+/**
+ * A minimal blocking HTTP/1.1 client used to drive load at a server over
+ * loopback. It deliberately avoids any HTTP library so that the client side
+ * cost stays small and constant across server configurations. Connections
+ * are kept alive by default; otherwise each request opens a new connection
+ * and asks the server to close it.
+ */
+final class LoopbackClient implements AutoCloseable {
+
+    private final String host;
+    private final int port;
+    private final boolean keepAlive;
+
+    /* creates TLS sockets for HTTPS, or null for plain HTTP */
+    private final SocketFactory socketFactory;
+
+    private final byte[] request;
+    private final byte[] skip = new byte[8192];
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    LoopbackClient(String host, int port, String path, int bodySize)
+        throws IOException {
+
+        this(host, port, path, bodySize, true, null);
+    }
+
+    /**
+     * @param socketFactory an SSLSocketFactory for HTTPS, or null for HTTP
+     */
+    LoopbackClient(String host,
+                   int port,
+                   String path,
+                   int bodySize,
+                   boolean keepAlive,
+                   SocketFactory socketFactory)
+        throws IOException {
+
+        this.host = host;
+        this.port = port;
+        this.keepAlive = keepAlive;
+        this.socketFactory = socketFactory;
+
+        final String method = (bodySize > 0 ? "POST" : "GET");
+        final String head = method + " " + path + " HTTP/1.1\r\n" +
+            "Host: " + host + "\r\n" +
+            "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+            "Content-Length: " + bodySize + "\r\n\r\n";
+        final byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        request = new byte[headBytes.length + bodySize];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        for (int i = headBytes.length; i < request.length; i++) {
+            request[i] = (byte) ('a' + (i % 26));
+        }
+
+        connect();
+    }
+
+    private void connect() throws IOException {
+        socket = (socketFactory != null ?
+                  socketFactory.createSocket(host, port) :
+                  new Socket(host, port));
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream(), 65536);
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Sends one request and reads the full response.
+     *
+     * @return the response status code
+     */
+    int execute() throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        out.write(request);
+        out.flush();
+        final int status = readResponse();
+        if (!keepAlive) {
+            socket.close();
+            socket = null;
+        }
+        return status;
+    }
+
+    private int readResponse() throws IOException {
+        int status = -1;
+        long contentLength = 0;
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            if (status < 0) {
+                /* "HTTP/1.1 200 OK" */
+                status = Integer.parseInt(line.substring(9, 12));
+            } else if (line.regionMatches(true, 0, "content-length:", 0, 15)) {
+                contentLength = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        if (line == null) {
+            throw new IOException("Connection closed by server");
+        }
+        while (contentLength > 0) {
+            final int n = in.read(skip, 0,
+                                  (int) Math.min(skip.length, contentLength));
+            if (n < 0) {
+                throw new IOException("Connection closed in response body");
+            }
+            contentLength -= n;
+        }
+        return status;
+    }
+
+    private String readLine() throws IOException {
+        final StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Drives requests through the full HttpServerInitializer pipeline: codec,
+ * aggregator, HttpServerHandler and ProxyRequestHandler dispatch to a fixed
+ * response service. Requests are encoded bytes written into an
+ * EmbeddedChannel, so no sockets or event loop threads are involved. Without
+ * keep-alive the server closes the channel after each response and a new
+ * channel, with a new pipeline, is set up for the next request.
+ */
+final class PipelineBenchmark {
+
+    private final HttpServer server;
+    private final HttpServerInitializer initializer;
+    private final ByteBuf request;
+    private EmbeddedChannel channel;
+
+    /**
+     * @param payloadSize the size of both the request and response bodies
+     */
+    PipelineBenchmark(int payloadSize, boolean keepAlive, SkLogger logger)
+        throws Exception {
+
+        final ProxyRequestHandler handler =
+            new ProxyRequestHandler(new LogControl(), logger);
+        handler.addService("bench", new FixedResponseHandler(payloadSize),
+                           ServiceRoute.prefix("bench"));
+
+        /* no ports, the server is only used to build pipelines */
+        server = new HttpServer(new HttpServerConfig()
+                                .setNumAcceptThreads(1)
+                                .setNumWorkerThreads(1),
+                                handler, null, logger);
+        initializer = server.newChannelInitializer(null);
+
+        request = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes(
+                encodeRequest("/bench/op", payloadSize, keepAlive)));
+        channel = new EmbeddedChannel(initializer);
+    }
+
+    /**
+     * Handles one request.
+     *
+     * @return the number of response bytes written
+     */
+    long request() {
+        channel.writeInbound(request.duplicate());
+        channel.runPendingTasks();
+
+        long written = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                written += ((ByteBuf) msg).readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        if (written == 0) {
+            throw new IllegalStateException("No response");
+        }
+        if (!channel.isActive()) {
+            channel.finishAndReleaseAll();
+            channel = new EmbeddedChannel(initializer);
+        }
+        return written;
+    }
+
+    void shutdown() throws InterruptedException {
+        channel.finishAndReleaseAll();
+        server.shutdown();
+    }
+
+    private static byte[] encodeRequest(String path,
+                                        int bodySize,
+                                        boolean keepAlive) {
+        final String head = "POST " + path + " HTTP/1.1\r\n" +
+            "Host: localhost\r\n" +
+            "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+            "Content-Length: " + bodySize + "\r\n\r\n";
+        final byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        final byte[] bytes = new byte[headBytes.length + bodySize];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        for (int i = headBytes.length; i < bytes.length; i++) {
+            bytes[i] = (byte) ('a' + (i % 26));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import oracle.nosql.common.contextlogger.LogContext;
+
+/**
+ * A service that matches a path prefix, the way existing services
+ * implement lookupService. Used by the routing benchmarks, which only look
+ * services up; a request routed to it gets an empty 200.
+ */
+final class PrefixService implements Service {
+    private final String base;
+
+    PrefixService(String base) {
+        this.base = base;
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(FullHttpRequest request,
+                                          ChannelHandlerContext ctx,
+                                          LogContext lc) {
+        return new DefaultFullHttpResponse(HTTP_1_1, OK,
+                                           Unpooled.EMPTY_BUFFER);
+    }
+
+    @Override
+    public boolean lookupService(String uri) {
+        return uri.startsWith(base) &&
+            (uri.length() == base.length() ||
+             uri.charAt(base.length()) == '/');
+    }
+}
@@ -0,0 +1,101 @@
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * Measures ProxyRequestHandler.findService with many registered services,
+ * comparing services located through the routing index with the same
+ * services located through their lookupService methods.
+ *
+ * usage: RoutingBenchmark
+ *     -services <n> (default: 64)
+ *     -iterations <lookups per round> (default: 5000000)
+ *     -rounds <n> (default: 5)
+ */
+public class RoutingBenchmark {
+
+    private int numServices = 64;
+    private int iterations = 5000000;
+    private int rounds = 5;
+
+    public static void main(String args[]) throws Exception {
+        new RoutingBenchmark(args).run();
+    }
+
+    private RoutingBenchmark(String args[]) {
+        int argc = 0;
+        while (argc < args.length) {
+            final String thisArg = args[argc++];
+            if (argc >= args.length) {
+                usage("Missing value for " + thisArg);
+            }
+            final String value = args[argc++];
+            if (thisArg.equals("-services")) {
+                numServices = Integer.parseInt(value);
+            } else if (thisArg.equals("-iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if (thisArg.equals("-rounds")) {
+                rounds = Integer.parseInt(value);
+            } else {
+                usage("Unknown argument: " + thisArg);
+            }
+        }
+    }
+
+    private void usage(String message) {
+        System.out.println("\n" + message + "\n");
+        System.out.println("usage: " + getClass().getName());
+        System.out.println("\t-services <n> -iterations <lookups per round> " +
+                           "-rounds <n>");
+        System.exit(1);
+    }
+
+    private void run() {
+        final ProxyRequestHandler indexed = new ProxyRequestHandler(null, null);
+        final ProxyRequestHandler scanned = new ProxyRequestHandler(null, null);
+        for (int i = 0; i < numServices; i++) {
+            final String base = "V0/nosql/svc" + i;
+            final Service service = new PrefixService(base);
+            indexed.addService("svc" + i, service,
+                               ServiceRoute.prefix(base));
+            scanned.addService("svc" + i, service);
+        }
+
+        /* a mix of hits spread over the table and some misses */
+        final String[] paths = new String[256];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = (i % 8 == 7) ?
+                "/V0/nosql/unknown" + i :
+                "/V0/nosql/svc" + (i % numServices) + "/op" + (i % 5);
+        }
+
+        for (String path : paths) {
+            if (indexed.findService(path, HttpMethod.POST) !=
+                scanned.findService(path, HttpMethod.POST)) {
+                throw new IllegalStateException("Routing mismatch: " + path);
+            }
+        }
+
+        for (int r = 0; r < rounds; r++) {
+            System.out.printf("round %d: indexed %.1f ns/op, " +
+                              "lookupService scan %.1f ns/op%n", r,
+                              time(indexed, paths), time(scanned, paths));
+        }
+        System.out.println("indexed hits=" + indexed.getRouteHits() +
+                           " misses=" + indexed.getRouteMisses());
+    }
+
+    private double time(ProxyRequestHandler handler, String[] paths) {
+        int found = 0;
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (handler.findService(paths[i & (paths.length - 1)],
+                                    HttpMethod.POST) != null) {
+                found++;
+            }
+        }
+        final long elapsed = System.nanoTime() - t0;
+        if (found == 0) {
+            throw new IllegalStateException("No services found");
+        }
+        return (double) elapsed / iterations;
+    }
+}
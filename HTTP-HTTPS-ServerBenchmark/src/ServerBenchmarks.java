@@ -0,0 +1,275 @@
+import java.io.File;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Measures time and allocation per request of the HTTP server at several
+ * payload sizes, with and without keep-alive:
+ *
+ *   pipeline -- a request through the full HttpServerInitializer pipeline
+ *   on an EmbeddedChannel, see PipelineBenchmark
+ *   dispatch -- ProxyRequestHandler.findService, with indexed routes and
+ *   with lookupService, and adding the required response headers
+ *   loopback -- a request from a blocking client over loopback, for HTTP
+ *   and HTTPS
+ *   handshake -- an HTTPS connection and request over loopback, with a full
+ *   and with a resumed TLS handshake, see HandshakeBenchmark
+ *   json -- reading a large admin client response, whole and with a
+ *   JsonReader, at each of the -topologies sizes, see JsonBenchmark
+ *
+ * HTTPS uses a ServerSslContext, so OpenSSL if it is available, with the
+ * key in -keystore, or a generated self-signed certificate if the JDK or
+ * BouncyCastle can generate one. HTTPS benchmarks are skipped otherwise.
+ *
+ * Save the results of a known good build with -results and check later
+ * builds against them with -baseline. The program exits with status 1 if
+ * any benchmark is slower or allocates more than the baseline by more than
+ * the tolerance.
+ *
+ * usage: ServerBenchmarks
+ *     -benchmarks <pipeline,dispatch,loopback,handshake,json>
+ *         (default: all)
+ *     -payloads <body sizes> (default: 0,1024,65536)
+ *     -topologies <response sizes> (default: 1048576,8388608)
+ *     -port <port number, HTTPS uses the next port> (default: 18080)
+ *     -keystore <PKCS12 keystore with the HTTPS key>
+ *     -storepass <keystore password>
+ *     -warmup <ms> (default: 2000)
+ *     -time <ms per iteration> (default: 1000)
+ *     -iterations <n> (default: 5)
+ *     -results <file to write results to>
+ *     -baseline <file written by an earlier run with -results>
+ *     -tolerance <percent> (default: 10)
+ */
+public class ServerBenchmarks {
+
+    private List<String> benchmarks =
+        new ArrayList<String>(Arrays.asList("pipeline", "dispatch",
+                                            "loopback", "handshake",
+                                            "json"));
+    private int[] payloads = { 0, 1024, 65536 };
+    private int[] topologies = { 1024 * 1024, 8 * 1024 * 1024 };
+    private int port = 18080;
+    private File keystore;
+    private String storepass = "";
+    private int warmup = 2000;
+    private int time = 1000;
+    private int iterations = 5;
+    private File results;
+    private File baseline;
+    private double tolerance = 10;
+
+    public static void main(String args[]) throws Exception {
+        if (!new ServerBenchmarks(args).run()) {
+            System.exit(1);
+        }
+    }
+
+    private ServerBenchmarks(String args[]) {
+        int argc = 0;
+        while (argc < args.length) {
+            final String thisArg = args[argc++];
+            if (argc >= args.length) {
+                usage("Missing value for " + thisArg);
+            }
+            final String value = args[argc++];
+            if (thisArg.equals("-benchmarks")) {
+                benchmarks.clear();
+                for (String b : value.split(",")) {
+                    benchmarks.add(b.trim().toLowerCase());
+                }
+            } else if (thisArg.equals("-payloads")) {
+                payloads = parseSizes(value);
+            } else if (thisArg.equals("-topologies")) {
+                topologies = parseSizes(value);
+            } else if (thisArg.equals("-port")) {
+                port = Integer.parseInt(value);
+            } else if (thisArg.equals("-keystore")) {
+                keystore = new File(value);
+            } else if (thisArg.equals("-storepass")) {
+                storepass = value;
+            } else if (thisArg.equals("-warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (thisArg.equals("-time")) {
+                time = Integer.parseInt(value);
+            } else if (thisArg.equals("-iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if (thisArg.equals("-results")) {
+                results = new File(value);
+            } else if (thisArg.equals("-baseline")) {
+                baseline = new File(value);
+            } else if (thisArg.equals("-tolerance")) {
+                tolerance = Double.parseDouble(value);
+            } else {
+                usage("Unknown argument: " + thisArg);
+            }
+        }
+    }
+
+    private static int[] parseSizes(String value) {
+        final String[] sizes = value.split(",");
+        final int[] result = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            result[i] = Integer.parseInt(sizes[i].trim());
+        }
+        return result;
+    }
+
+    private void usage(String message) {
+        System.out.println("\n" + message + "\n");
+        System.out.println("usage: " + getClass().getName());
+        System.out.println("\t-benchmarks " +
+                           "<pipeline,dispatch,loopback,handshake,json>\n" +
+                           "\t-payloads <body sizes> -port <port number>\n" +
+                           "\t-topologies <response sizes>\n" +
+                           "\t-keystore <file> -storepass <password>\n" +
+                           "\t-warmup <ms> -time <ms per iteration> " +
+                           "-iterations <n>\n" +
+                           "\t-results <file> -baseline <file> " +
+                           "-tolerance <percent>");
+        System.exit(1);
+    }
+
+    /**
+     * @return false if a baseline was given and a benchmark regressed
+     */
+    private boolean run() throws Exception {
+        final Logger jul = Logger.getLogger(ServerBenchmarks.class.getName());
+        jul.setLevel(Level.WARNING);
+        final SkLogger logger = new SkLogger(jul);
+        final BenchmarkRunner runner =
+            new BenchmarkRunner(warmup, time, iterations);
+
+        if (benchmarks.contains("pipeline")) {
+            for (int payload : payloads) {
+                for (boolean keepAlive : new boolean[] { true, false }) {
+                    final PipelineBenchmark b =
+                        new PipelineBenchmark(payload, keepAlive, logger);
+                    try {
+                        runner.run(name("pipeline", payload, keepAlive),
+                                   b::request);
+                    } finally {
+                        b.shutdown();
+                    }
+                }
+            }
+        }
+
+        if (benchmarks.contains("dispatch")) {
+            for (int services : new int[] { 8, 64, 512 }) {
+                final DispatchBenchmark indexed =
+                    new DispatchBenchmark(services, true);
+                final DispatchBenchmark scanned =
+                    new DispatchBenchmark(services, false);
+                runner.run("findService indexed services=" + services,
+                           indexed::findService);
+                runner.run("findService lookupService services=" + services,
+                           scanned::findService);
+            }
+            runner.run("addRequiredHeaders",
+                       DispatchBenchmark::addRequiredHeaders);
+        }
+
+        final ServerSslContext ssl =
+            (benchmarks.contains("loopback") ||
+             benchmarks.contains("handshake") ? newSslContext() : null);
+
+        if (benchmarks.contains("loopback")) {
+            final SslContext sslCtx = (ssl != null ? ssl.get() : null);
+            final boolean[] schemes = (sslCtx != null ?
+                                       new boolean[] { false, true } :
+                                       new boolean[] { false });
+            for (int payload : payloads) {
+                final LoopbackBenchmark b =
+                    new LoopbackBenchmark(port, payload, sslCtx, logger);
+                try {
+                    for (boolean https : schemes) {
+                        for (boolean keepAlive : new boolean[] { true,
+                                                                 false }) {
+                            try (LoopbackClient client =
+                                     b.newClient(https, keepAlive)) {
+                                runner.run(name((https ? "https" : "http"),
+                                                payload, keepAlive),
+                                           client::execute);
+                            }
+                        }
+                    }
+                } finally {
+                    b.shutdown();
+                }
+            }
+        }
+
+        if (benchmarks.contains("handshake") && ssl != null) {
+            final HandshakeBenchmark b =
+                new HandshakeBenchmark(port + 1, ssl, logger);
+            System.out.println("TLS provider: " + b.getProvider());
+            try {
+                for (boolean resume : new boolean[] { false, true }) {
+                    try (LoopbackClient client = b.newClient(resume)) {
+                        b.handshakeCounts();
+                        runner.run("https " +
+                                   (resume ? "resumed" : "full") +
+                                   " handshake", client::execute);
+                        System.out.println("  " + b.handshakeCounts());
+                    }
+                }
+            } finally {
+                b.shutdown();
+            }
+        }
+
+        if (benchmarks.contains("json")) {
+            for (int size : topologies) {
+                final JsonBenchmark b = new JsonBenchmark(size);
+                final String suffix = " size=" + b.getSize();
+                runner.run("json bytewise" + suffix, b::bytewise);
+                runner.run("json string" + suffix, b::string);
+                runner.run("json skip" + suffix, b::skip);
+                runner.run("json pull sns=" + b.getStorageNodes() + suffix,
+                           b::pull);
+            }
+        }
+
+        if (results != null) {
+            runner.save(results);
+        }
+        if (baseline != null) {
+            return runner.compare(baseline, tolerance);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the server SSL context for HTTPS, or null if there is no key
+     */
+    private ServerSslContext newSslContext() throws Exception {
+        if (keystore != null) {
+            return ServerSslContext.forKeyStore(keystore, storepass);
+        }
+        try {
+            final SelfSignedCertificate cert = new SelfSignedCertificate();
+            return ServerSslContext.forPem(cert.certificate(),
+                                           cert.privateKey(), null);
+        } catch (CertificateException ce) {
+            System.out.println("HTTPS skipped, cannot generate a " +
+                               "self-signed certificate, use -keystore: " +
+                               ce.getMessage());
+            return null;
+        }
+    }
+
+    private static String name(String benchmark,
+                               int payload,
+                               boolean keepAlive) {
+        return benchmark + " payload=" + payload + " keepAlive=" + keepAlive;
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Compares the HttpServer socket transports on the same HTTP workload. For
+ * each requested transport that is available, a server is started on a
+ * loopback port and driven by a fixed number of keep-alive client
+ * connections. Throughput and latency percentiles are printed per transport.
+ *
+ * usage: TransportBenchmark
+ *     -transports <nio,epoll,io_uring> (default: all)
+ *     -port <port number> (default: 18080)
+ *     -connections <n> (default: 64)
+ *     -requests <per connection> (default: 20000)
+ *     -payload <response bytes> (default: 256)
+ *     -workers <worker threads> (default: HttpServer default)
+ *     -acceptors <accept threads> (default: HttpServer default)
+ *     -reusePort <true|false> (default: false)
+ */
+public class TransportBenchmark {
+
+    private List<Transport> transports =
+        new ArrayList<Transport>(Arrays.asList(Transport.values()));
+    private int port = 18080;
+    private int connections = 64;
+    private int requests = 20000;
+    private int payload = 256;
+    private int workers = 0;
+    private int acceptors = 0;
+    private boolean reusePort = false;
+
+    public static void main(String args[]) throws Exception {
+        new TransportBenchmark(args).run();
+    }
+
+    private TransportBenchmark(String args[]) {
+        int argc = 0;
+        while (argc < args.length) {
+            final String thisArg = args[argc++];
+            if (argc >= args.length) {
+                usage("Missing value for " + thisArg);
+            }
+            final String value = args[argc++];
+            if (thisArg.equals("-transports")) {
+                transports.clear();
+                for (String t : value.split(",")) {
+                    transports.add(Transport.valueOf(t.trim().toUpperCase()));
+                }
+            } else if (thisArg.equals("-port")) {
+                port = Integer.parseInt(value);
+            } else if (thisArg.equals("-connections")) {
+                connections = Integer.parseInt(value);
+            } else if (thisArg.equals("-requests")) {
+                requests = Integer.parseInt(value);
+            } else if (thisArg.equals("-payload")) {
+                payload = Integer.parseInt(value);
+            } else if (thisArg.equals("-workers")) {
+                workers = Integer.parseInt(value);
+            } else if (thisArg.equals("-acceptors")) {
+                acceptors = Integer.parseInt(value);
+            } else if (thisArg.equals("-reusePort")) {
+                reusePort = Boolean.parseBoolean(value);
+            } else {
+                usage("Unknown argument: " + thisArg);
+            }
+        }
+    }
+
+    private void usage(String message) {
+        System.out.println("\n" + message + "\n");
+        System.out.println("usage: " + getClass().getName());
+        System.out.println("\t-transports <nio,epoll,io_uring> " +
+                           "-port <port number> -connections <n> " +
+                           "-requests <per connection> " +
+                           "-payload <response bytes> " +
+                           "-workers <worker threads> " +
+                           "-acceptors <accept threads> " +
+                           "-reusePort <true|false>");
+        System.exit(1);
+    }
+
+    private void run() throws Exception {
+        final SkLogger logger =
+            new SkLogger(Logger.getLogger(TransportBenchmark.class.getName()));
+
+        for (Transport transport : transports) {
+            if (!transport.isAvailable()) {
+                System.out.println(transport + ": not available, skipped");
+                continue;
+            }
+            final HttpServerConfig config = new HttpServerConfig()
+                .setHttpHost("localhost")
+                .setHttpPort(port)
+                .setNumAcceptThreads(acceptors)
+                .setNumWorkerThreads(workers)
+                .setTransport(transport)
+                .setReusePort(reusePort);
+            final HttpServer server =
+                new HttpServer(config, new FixedResponseHandler(payload),
+                               null, logger);
+            try {
+                /* warm up the JIT and the connection path, then measure */
+                drive(Math.max(1, requests / 10));
+                final Result result = drive(requests);
+                System.out.println(server.getTransport() + " (" +
+                                   server.getBindsPerPort() +
+                                   " binds/port): " + result);
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    private Result drive(final int perConnection) throws Exception {
+        final long[][] latencies = new long[connections][];
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+
+        for (int i = 0; i < connections; i++) {
+            final int id = i;
+            final Thread t = new Thread(() -> {
+                final long[] lat = new long[perConnection];
+                try (LoopbackClient client =
+                         new LoopbackClient("localhost", port, "/bench", 0)) {
+                    start.await();
+                    for (int j = 0; j < perConnection; j++) {
+                        final long t0 = System.nanoTime();
+                        if (client.execute() != 200) {
+                            errors.incrementAndGet();
+                        }
+                        lat[j] = System.nanoTime() - t0;
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    latencies[id] = lat;
+                    done.countDown();
+                }
+            }, "bench-client-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        final long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsedNs = System.nanoTime() - t0;
+
+        final long[] all = new long[connections * perConnection];
+        int pos = 0;
+        for (long[] lat : latencies) {
+            System.arraycopy(lat, 0, all, pos, lat.length);
+            pos += lat.length;
+        }
+        Arrays.sort(all);
+        return new Result(all, elapsedNs, errors.get());
+    }
+
+    private static final class Result {
+        private final long[] sorted;
+        private final long elapsedNs;
+        private final long errors;
+
+        Result(long[] sorted, long elapsedNs, long errors) {
+            this.sorted = sorted;
+            this.elapsedNs = elapsedNs;
+            this.errors = errors;
+        }
+
+        private double percentileMicros(double p) {
+            final int idx = (int) Math.min(sorted.length - 1,
+                                           Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(0, idx)] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%.0f req/s, p50=%.1fus p99=%.1fus p999=%.1fus, errors=%d",
+                sorted.length * 1e9 / elapsedNs,
+                percentileMicros(0.50), percentileMicros(0.99),
+                percentileMicros(0.999), errors);
+        }
+    }
+}
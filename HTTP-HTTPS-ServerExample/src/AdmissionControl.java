@@ -0,0 +1,327 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static oracle.nosql.common.http.Constants.CONTENT_LENGTH;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * Connection and request limits for an HttpServer, so that overload is met
+ * with quick rejections rather than growing latency. This is the HTTP tier
+ * counterpart of the store's maxActiveRequests limit.
+ *
+ * o Connections. When the limit is reached the server stops accepting, by
+ * turning off autoRead on its listening channels, and new connections wait
+ * in the kernel backlog until a connection closes. Connections accepted
+ * past the limit in the same accept burst are closed.
+ *
+ * o Connections per client address. Connections from an address that
+ * already has the maximum open are closed as soon as they are accepted.
+ * The address is the connection's peer, so clients behind one proxy or NAT
+ * share a limit.
+ *
+ * o Requests in flight per worker. A request is in flight from the time it
+ * is read until its response is ready. Past the limit, requests on that
+ * worker's event loop are answered with 503 and a Retry-After header,
+ * without calling the request handler.
+ *
+ * Per Service limits, a default and one for each service, are set on
+ * ProxyRequestHandler. A limit of 0 means no limit. Current usage and
+ * rejection counts are available here whether or not limits are set.
+ */
+public final class AdmissionControl {
+
+    /* seconds a rejected client is asked to wait before retrying */
+    static final int RETRY_AFTER_SECONDS = 1;
+
+    /* built once, copied into each rejection response */
+    private static final HttpHeaders OVERLOADED_HEADERS =
+        new DefaultHttpHeaders()
+        .set(CONTENT_LENGTH, 0)
+        .set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER_SECONDS);
+
+    /* the client address a connection is counted under */
+    private static final AttributeKey<InetAddress> CLIENT =
+        AttributeKey.valueOf("http-admission-client");
+
+    /* set on connections closed here, which the pipeline never saw open */
+    private static final AttributeKey<Boolean> REJECTED =
+        AttributeKey.valueOf("http-admission-rejected");
+
+    private final int maxConnections;
+    private final int maxWorkerRequests;
+    private final int maxClientConnections;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder connectionRejections = new LongAdder();
+
+    /* open connections by client, addresses with none are removed */
+    private final ConcurrentHashMap<InetAddress, Integer> clientConnections =
+        new ConcurrentHashMap<InetAddress, Integer>();
+    private final LongAdder clientConnectionRejections = new LongAdder();
+    private final LongAdder requestsInFlight = new LongAdder();
+    private final LongAdder requestRejections = new LongAdder();
+
+    /* in flight requests of the current event loop */
+    private final FastThreadLocal<int[]> workerRequests =
+        new FastThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+    private final ConnectionLimitHandler connectionHandler =
+        new ConnectionLimitHandler();
+
+    /* guarded by this */
+    private List<Channel> listeners = Collections.emptyList();
+    private boolean acceptPaused;
+
+    AdmissionControl(int maxConnections, int maxWorkerRequests) {
+        this(maxConnections, maxWorkerRequests, 0);
+    }
+
+    AdmissionControl(int maxConnections,
+                     int maxWorkerRequests,
+                     int maxClientConnections) {
+        this.maxConnections = maxConnections;
+        this.maxWorkerRequests = maxWorkerRequests;
+        this.maxClientConnections = maxClientConnections;
+    }
+
+    /**
+     * Sets the listening channels to pause while at the connection limit
+     */
+    synchronized void setListeners(List<Channel> listeners) {
+        this.listeners = listeners;
+        for (Channel ch : listeners) {
+            ch.config().setAutoRead(!acceptPaused);
+        }
+    }
+
+    /**
+     * Returns the handler that enforces the connection limit. It is shared
+     * by all connections and goes first in the pipeline, so that rejected
+     * connections do not start a TLS handshake.
+     */
+    ChannelInboundHandlerAdapter getConnectionHandler() {
+        return connectionHandler;
+    }
+
+    /**
+     * Called on the event loop before a request is handled. If this returns
+     * true releaseRequest must be called, on the same event loop, once the
+     * response is ready or the request has failed.
+     *
+     * @return false if the request should be rejected
+     */
+    boolean acquireRequest() {
+        final int[] count = workerRequests.get();
+        if (maxWorkerRequests > 0 && count[0] >= maxWorkerRequests) {
+            requestRejections.increment();
+            return false;
+        }
+        count[0]++;
+        requestsInFlight.increment();
+        return true;
+    }
+
+    void releaseRequest() {
+        workerRequests.get()[0]--;
+        requestsInFlight.decrement();
+    }
+
+    /**
+     * Returns a 503 response that asks the client to retry later
+     */
+    static FullHttpResponse overloadedResponse() {
+        return new DefaultFullHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE,
+                                           Unpooled.EMPTY_BUFFER,
+                                           OVERLOADED_HEADERS.copy(),
+                                           EmptyHttpHeaders.INSTANCE);
+    }
+
+    /**
+     * Registers the current usage and rejection counts as metrics
+     */
+    void registerMetrics(ServerMetrics metrics) {
+        metrics.registerGauge("http_connections_active",
+                              "Open connections", false,
+                              this::getConnections);
+        metrics.registerGauge("http_connection_rejections_total",
+                              "Connections closed at the connection limit",
+                              true, this::getConnectionRejections);
+        metrics.registerGauge("http_client_connection_rejections_total",
+                              "Connections closed at the per client limit",
+                              true, this::getClientConnectionRejections);
+        metrics.registerGauge("http_requests_in_flight",
+                              "Requests read and not yet answered", false,
+                              this::getRequestsInFlight);
+        metrics.registerGauge("http_request_rejections_total",
+                              "Requests rejected at the per worker limit",
+                              true, this::getRequestRejections);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxWorkerRequests() {
+        return maxWorkerRequests;
+    }
+
+    public int getMaxClientConnections() {
+        return maxClientConnections;
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getConnectionRejections() {
+        return connectionRejections.sum();
+    }
+
+    public long getClientConnectionRejections() {
+        return clientConnectionRejections.sum();
+    }
+
+    /**
+     * Returns the number of open connections from a client address
+     */
+    public int getClientConnections(InetAddress client) {
+        final Integer n = clientConnections.get(client);
+        return (n == null ? 0 : n);
+    }
+
+    public long getRequestsInFlight() {
+        return requestsInFlight.sum();
+    }
+
+    public long getRequestRejections() {
+        return requestRejections.sum();
+    }
+
+    public synchronized boolean isAcceptPaused() {
+        return acceptPaused;
+    }
+
+    /**
+     * Pauses or resumes accepting to match the current connection count.
+     * The count is read under the lock so that concurrent opens and closes
+     * cannot leave accepting paused below the limit.
+     */
+    private synchronized void updateAccept() {
+        final boolean paused = connections.get() >= maxConnections;
+        if (paused == acceptPaused) {
+            return;
+        }
+        acceptPaused = paused;
+        for (Channel ch : listeners) {
+            ch.config().setAutoRead(!paused);
+        }
+    }
+
+    /**
+     * Counts a new connection under its client address
+     *
+     * @return false if the client is already at its limit, in which case
+     * the connection is not counted
+     */
+    private boolean acquireClient(Channel ch) {
+        if (!(ch.remoteAddress() instanceof InetSocketAddress)) {
+            return true;
+        }
+        final InetAddress client =
+            ((InetSocketAddress) ch.remoteAddress()).getAddress();
+        final boolean[] acquired = new boolean[1];
+        clientConnections.compute(client, (k, n) -> {
+                if (n == null) {
+                    acquired[0] = true;
+                    return 1;
+                }
+                if (n >= maxClientConnections) {
+                    return n;
+                }
+                acquired[0] = true;
+                return n + 1;
+            });
+        if (acquired[0]) {
+            ch.attr(CLIENT).set(client);
+        }
+        return acquired[0];
+    }
+
+    private void releaseClient(Channel ch) {
+        final InetAddress client = ch.attr(CLIENT).getAndSet(null);
+        if (client != null) {
+            clientConnections.computeIfPresent(
+                client, (k, n) -> (n == 1 ? null : n - 1));
+        }
+    }
+
+    @Sharable
+    private final class ConnectionLimitHandler
+        extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            final int n = connections.incrementAndGet();
+            if (maxConnections > 0 && n >= maxConnections) {
+                updateAccept();
+                if (n > maxConnections) {
+                    connectionRejections.increment();
+                    reject(ctx);
+                    return;
+                }
+            }
+            if (maxClientConnections > 0 && !acquireClient(ctx.channel())) {
+                clientConnectionRejections.increment();
+                reject(ctx);
+                return;
+            }
+            ctx.fireChannelActive();
+        }
+
+        /*
+         * The rest of the pipeline does not see a rejected connection become
+         * active, so it must not see it become inactive either
+         */
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            connections.decrementAndGet();
+            releaseClient(ctx.channel());
+            if (maxConnections > 0) {
+                updateAccept();
+            }
+            if (!ctx.channel().hasAttr(REJECTED)) {
+                ctx.fireChannelInactive();
+            }
+        }
+
+        private void reject(ChannelHandlerContext ctx) {
+            ctx.channel().attr(REJECTED).set(Boolean.TRUE);
+            ctx.close();
+        }
+    }
+}
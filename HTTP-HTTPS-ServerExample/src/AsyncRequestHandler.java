@@ -0,0 +1,29 @@
+
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+/**
+ * A RequestHandler that can complete its response after returning, so that
+ * slow work does not run on the channel's event loop.
+ */
+public interface AsyncRequestHandler extends RequestHandler {
+
+    /**
+     * Handles a request asynchronously
+     *
+     * @param request the incoming request. It is retained by the caller
+     * until the returned future completes.
+     * @param ctx context used for consolidation of resource allocation
+     *
+     * The returned future must complete with a FullHttpResponse. It may
+     * complete on any thread, the caller writes the response on the
+     * channel's event loop. An exceptionally completed future is treated
+     * the same as an exception thrown by handleRequest.
+     */
+    public CompletableFuture<FullHttpResponse>
+        handleRequestAsync(FullHttpRequest request,
+                           ChannelHandlerContext ctx);
+}
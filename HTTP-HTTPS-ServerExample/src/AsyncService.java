@@ -0,0 +1,33 @@
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import oracle.nosql.common.contextlogger.LogContext;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+/**
+ * A Service that completes its response asynchronously. ProxyRequestHandler
+ * calls handleRequestAsync instead of handleRequest for services that
+ * implement this interface.
+ */
+public interface AsyncService extends Service {
+
+    /**
+     * Handles a request asynchronously
+     *
+     * @param executor the executor configured on the ProxyRequestHandler for
+     * service work, or the channel's event loop if none is configured.
+     * Blocking work should be run on it rather than on the calling thread,
+     * which is an I/O thread.
+     *
+     * The request is retained until the returned future completes.
+     */
+    public CompletableFuture<FullHttpResponse>
+        handleRequestAsync(FullHttpRequest request,
+                           ChannelHandlerContext ctx,
+                           LogContext lc,
+                           Executor executor);
+}
@@ -0,0 +1,22 @@
+import io.netty.handler.codec.http.FullHttpRequest;
+
+/**
+ * A Service whose GET responses may be served from the ResponseCache set on
+ * ProxyRequestHandler, without calling handleRequest. Responses are cached
+ * by service and request URI, including the query, so the response to a
+ * cacheable request must depend on nothing else, such as the caller's
+ * identity or other headers.
+ *
+ * Only 200 responses without Vary or Set-Cookie headers are cached, and
+ * never a FileHttpResponse.
+ */
+public interface CacheableService extends Service {
+
+    /**
+     * Returns how long, in milliseconds, the response to a GET request may
+     * be served from the cache, or 0 if it must not be cached. This is
+     * called on the event loop for every GET routed to the service, so it
+     * must be cheap.
+     */
+    public long getCacheTtl(FullHttpRequest request);
+}
@@ -0,0 +1,114 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+/**
+ * Token buckets per client address. Each client may take up to burst tokens
+ * at once, refilled at a steady rate. Buckets are held in striped, bounded
+ * LRU maps, so memory stays fixed however many addresses a scan comes from,
+ * and clients on different stripes do not contend. A client whose bucket was
+ * evicted starts again with a full bucket.
+ */
+final class ClientRateLimiter {
+
+    private static final int NUM_STRIPES = 16;
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+    /**
+     * @param perSecond tokens added to each bucket per second
+     * @param burst the bucket size
+     * @param maxClients the most clients tracked at once
+     */
+    ClientRateLimiter(double perSecond, int burst, int maxClients) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = burst;
+        final int perStripe = Math.max(1, maxClients / NUM_STRIPES);
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Takes a token for the client.
+     *
+     * @return false if the client is over its rate
+     */
+    boolean tryAcquire(String client) {
+        final int h = client.hashCode();
+        final Stripe stripe = stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+        final long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket b = stripe.get(client);
+            if (b == null) {
+                b = new Bucket(burst, now);
+                stripe.put(client, b);
+            }
+            b.tokens = Math.min(burst,
+                                b.tokens + (now - b.updated) * tokensPerNano);
+            b.updated = now;
+            if (b.tokens < 1) {
+                return false;
+            }
+            b.tokens -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the client address of a request: the X-Real-IP header set by
+     * a proxy, else the first X-Forwarded-For address, else the address of
+     * the connection.
+     */
+    static String clientAddress(HttpHeaders headers,
+                                SocketAddress remoteAddress,
+                                CharSequence realIpHeader,
+                                CharSequence forwardedForHeader) {
+        final String realIp = headers.get(realIpHeader);
+        if (realIp != null && !realIp.isEmpty()) {
+            return realIp.trim();
+        }
+        final String forwardedFor = headers.get(forwardedForHeader);
+        if (forwardedFor != null && !forwardedFor.isEmpty()) {
+            final int comma = forwardedFor.indexOf(',');
+            return (comma < 0 ? forwardedFor :
+                    forwardedFor.substring(0, comma)).trim();
+        }
+        if (remoteAddress instanceof InetSocketAddress &&
+            ((InetSocketAddress) remoteAddress).getAddress() != null) {
+            return ((InetSocketAddress) remoteAddress).getAddress()
+                .getHostAddress();
+        }
+        return String.valueOf(remoteAddress);
+    }
+
+    private static final class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * A bounded cache of compressed response bodies for Services that return
+ * the same large content repeatedly. A Service builds its response through
+ * newResponse with a key that identifies the content, for example a name
+ * plus a version or modification count. The first request for a key and
+ * encoding compresses the content, later ones reuse the compressed bytes.
+ *
+ * Responses built here carry Content-Encoding, so the server's compression
+ * stage passes them through without compressing again.
+ *
+ * The cache is bounded by the total size of the compressed bytes it holds
+ * and evicts the least recently used entries first.
+ */
+public final class CompressedContentCache {
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private final long maxBytes;
+    private final int threshold;
+    private final int level;
+
+    /* access ordered for LRU eviction, guarded by this */
+    private final LinkedHashMap<String, byte[]> entries =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes maximum total size of cached compressed content
+     * @param threshold content smaller than this is never compressed
+     * @param level the deflate compression level, 1-9
+     */
+    public CompressedContentCache(long maxBytes, int threshold, int level) {
+        this.maxBytes = maxBytes;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * Returns a response with the content, compressed with the best
+     * encoding the request accepts if the content is large enough.
+     *
+     * @param key identifies the content. Different content must use a
+     * different key.
+     * @param content the uncompressed body. It is used as the body of an
+     * uncompressed response, or released if a compressed body is returned.
+     * @param contentType the Content-Type of the body
+     */
+    public FullHttpResponse newResponse(HttpRequest request,
+                                        HttpResponseStatus status,
+                                        String key,
+                                        ByteBuf content,
+                                        CharSequence contentType) {
+        final String encoding =
+            selectEncoding(request.headers().get(
+                               HttpHeaderNames.ACCEPT_ENCODING));
+        ByteBuf body = content;
+        if (encoding != null && content.readableBytes() >= threshold) {
+            try {
+                body = Unpooled.wrappedBuffer(getOrCompress(key, encoding,
+                                                            content));
+                ReferenceCountUtil.release(content);
+            } catch (IOException ioe) {
+                /* not expected for in-memory streams, send uncompressed */
+                body = content;
+            }
+        }
+
+        final FullHttpResponse response =
+            new DefaultFullHttpResponse(HTTP_1_1, status, body);
+        final HttpHeaders headers = response.headers();
+        headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        if (body != content) {
+            headers.set(HttpHeaderNames.CONTENT_ENCODING, encoding);
+        }
+        return response;
+    }
+
+    private byte[] getOrCompress(String key, String encoding, ByteBuf content)
+        throws IOException {
+
+        final String cacheKey = encoding + ':' + key;
+        synchronized (this) {
+            final byte[] cached = entries.get(cacheKey);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+
+        /* compress outside the lock, a racing compression is harmless */
+        final byte[] compressed = compress(encoding, content);
+        if (compressed.length > maxBytes) {
+            return compressed;
+        }
+        synchronized (this) {
+            final byte[] prev = entries.put(cacheKey, compressed);
+            if (prev != null) {
+                currentBytes -= prev.length;
+            }
+            currentBytes += compressed.length;
+            final Iterator<Map.Entry<String, byte[]>> iter =
+                entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iter.hasNext()) {
+                final Map.Entry<String, byte[]> eldest = iter.next();
+                currentBytes -= eldest.getValue().length;
+                iter.remove();
+                evictions.increment();
+            }
+        }
+        return compressed;
+    }
+
+    private byte[] compress(String encoding, ByteBuf content)
+        throws IOException {
+
+        final ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(content.readableBytes() / 4 + 64);
+        final boolean gzip = GZIP.equals(encoding);
+        final Deflater deflater = (gzip ? null : new Deflater(level));
+        final DeflaterOutputStream out;
+        if (gzip) {
+            /* GZIPOutputStream has no level parameter */
+            out = new GZIPOutputStream(bytes, 8192) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        } else {
+            out = new DeflaterOutputStream(bytes, deflater, 8192);
+        }
+        try {
+            content.getBytes(content.readerIndex(), out,
+                             content.readableBytes());
+            out.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns gzip or deflate, whichever the Accept-Encoding header allows
+     * with the higher quality, preferring gzip on a tie, or null if neither
+     * is acceptable.
+     */
+    static String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzipQ = -1f;
+        float deflateQ = -1f;
+        float starQ = -1f;
+        for (String part : acceptEncoding.split(",")) {
+            float q = 1.0f;
+            final int semi = part.indexOf(';');
+            if (semi >= 0) {
+                final int eq = part.indexOf('=', semi);
+                if (eq >= 0) {
+                    try {
+                        q = Float.parseFloat(part.substring(eq + 1).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0f;
+                    }
+                }
+                part = part.substring(0, semi);
+            }
+            part = part.trim();
+            if (part.equalsIgnoreCase(GZIP)) {
+                gzipQ = q;
+            } else if (part.equalsIgnoreCase(DEFLATE)) {
+                deflateQ = q;
+            } else if (part.equals("*")) {
+                starQ = q;
+            }
+        }
+        if (gzipQ < 0) {
+            gzipQ = starQ;
+        }
+        if (deflateQ < 0) {
+            deflateQ = starQ;
+        }
+        if (gzipQ <= 0 && deflateQ <= 0) {
+            return null;
+        }
+        return (gzipQ >= deflateQ ? GZIP : DEFLATE);
+    }
+
+    /**
+     * Returns the number of responses served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of responses that needed compression
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total size of the cached compressed content
+     */
+    public synchronized long getCachedBytes() {
+        return currentBytes;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AttributeKey;
+
+/**
+ * Counts connections and times TLS handshakes for ServerMetrics. It is
+ * placed directly after the SslHandler, if any, so it sees the handshake
+ * completion event.
+ *
+ * Resumption is approximate. Neither provider reports whether a handshake
+ * resumed a session, so a handshake is counted as resumed if its session
+ * was created before the connection was, as a resumed session keeps its
+ * creation time. This works with session IDs or tickets on both the JDK
+ * and OpenSSL providers, but session times are in milliseconds and the
+ * wall clock can step, so some handshakes may be counted on the wrong
+ * side.
+ */
+@Sharable
+final class ConnectionMetricsHandler extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<Long> ACTIVE_TIME =
+        AttributeKey.valueOf("http-connection-active-time");
+
+    private final ServerMetrics metrics;
+
+    ConnectionMetricsHandler(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionOpened();
+        ctx.channel().attr(ACTIVE_TIME).set(System.nanoTime());
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionClosed();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+        throws Exception {
+
+        if (evt instanceof SslHandshakeCompletionEvent) {
+            final Long start = ctx.channel().attr(ACTIVE_TIME).get();
+            if (start != null) {
+                final long nanos = System.nanoTime() - start;
+                final boolean success =
+                    ((SslHandshakeCompletionEvent) evt).isSuccess();
+                metrics.tlsHandshake(nanos, success,
+                                     success && isResumed(ctx, nanos));
+            }
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * Returns true if the session appears to have been created before the
+     * connection, a guess at resumption. The connection's start is found
+     * from the handshake time, and session times are in milliseconds, so
+     * allow a millisecond for rounding.
+     */
+    private static boolean isResumed(ChannelHandlerContext ctx,
+                                     long handshakeNanos) {
+        final SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+        if (ssl == null) {
+            return false;
+        }
+        final SSLSession session = ssl.engine().getSession();
+        final long startMillis = System.currentTimeMillis() -
+            TimeUnit.NANOSECONDS.toMillis(handshakeNanos);
+        return session.getCreationTime() < startMillis - 1;
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Closes connections that have been idle too long, that have been open too
+ * long or that have carried too many requests. Idleness is detected by an
+ * IdleStateHandler ahead of this handler in the pipeline.
+ *
+ * Connections past their lifetime or request limit are closed gracefully.
+ * An HTTP/1.1 connection is closed once the responses to the requests
+ * already read are written, the last one with Connection: close, see
+ * HttpPipeliningHandler. Closing an HTTP/2 connection sends GOAWAY and waits
+ * for open streams to finish. A connection with nothing in flight is closed
+ * at once.
+ *
+ * An idle HTTP/1.1 connection is closed gracefully only once. If it is idle
+ * again while closing, or goes read idle part way through a request, it is
+ * closed at once, so that clients that trickle a request or stop reading
+ * cannot hold it open. Idle HTTP/2 connections are closed at once.
+ *
+ * Lifetimes get up to 10% random extra so that connections opened together
+ * are not all closed, and reopened, together.
+ *
+ * The request limit of an HTTP/1.1 connection is enforced by its
+ * HttpPipeliningHandler. HTTP/2 streams are counted here by streamOpened.
+ *
+ * This handler is shared by all connections.
+ */
+@Sharable
+final class ConnectionPolicyHandler extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<int[]> STREAMS =
+        AttributeKey.valueOf("http-connection-streams");
+
+    /* milliseconds, 0 for no limit */
+    private final long maxLifetime;
+
+    /* 0 for no limit */
+    private final int maxRequests;
+
+    private final SkLogger logger;
+
+    ConnectionPolicyHandler(long maxLifetime,
+                            int maxRequests,
+                            SkLogger logger) {
+        this.maxLifetime = maxLifetime;
+        this.maxRequests = maxRequests;
+        this.logger = logger;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        if (maxLifetime > 0) {
+            final long lifetime = maxLifetime +
+                ThreadLocalRandom.current().nextLong(maxLifetime / 10 + 1);
+            final Channel ch = ctx.channel();
+            final ScheduledFuture<?> expiry = ctx.executor().schedule(
+                () -> close(ch, "lifetime"), lifetime, TimeUnit.MILLISECONDS);
+
+            /* don't hold closed channels until they would have expired */
+            ch.closeFuture().addListener(f -> expiry.cancel(false));
+        }
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof IdleStateEvent) {
+            closeIdle(ctx.channel(), ((IdleStateEvent) evt).state());
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * Counts a new HTTP/2 stream on its connection, closing the connection
+     * once it reaches the request limit. Called on the event loop.
+     */
+    void streamOpened(Channel connection) {
+        if (maxRequests <= 0) {
+            return;
+        }
+        int[] streams = connection.attr(STREAMS).get();
+        if (streams == null) {
+            streams = new int[1];
+            connection.attr(STREAMS).set(streams);
+        }
+        if (++streams[0] == maxRequests) {
+            close(connection, "request limit");
+        }
+    }
+
+    private void closeIdle(Channel ch, IdleState state) {
+        if (!ch.isActive()) {
+            return;
+        }
+        logger.fine("HttpServer closing connection, " +
+                    state.name().toLowerCase() + " idle: " + ch);
+        if (!HttpPipeliningHandler.closeIdle(
+                ch, state != IdleState.WRITER_IDLE)) {
+            ch.close();
+        }
+    }
+
+    private void close(Channel ch, String reason) {
+        if (!ch.isActive()) {
+            return;
+        }
+        logger.fine("HttpServer closing connection, " + reason + ": " + ch);
+        if (!HttpPipeliningHandler.closeAfterResponses(ch)) {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Watches the accept and worker event loops of an HttpServer. Every probe
+ * interval a monitor thread submits a small task to each loop and the time
+ * until it runs, the loop's scheduling delay, is recorded. A loop whose
+ * probe has not run within the stall threshold is stalled: something is
+ * holding its thread. The stall is logged once, as a warning with the
+ * loop thread's stack and the service it is running, if any, and counted.
+ * When the loop catches up its recovery is logged.
+ *
+ * ProxyRequestHandler brackets service calls with enter and exit so that a
+ * stall can be blamed on the service that caused it. These cost a thread
+ * local lookup and two volatile writes, and do nothing on threads that are
+ * not monitored loops, such as those of a service executor.
+ *
+ * The pending task count of a loop is read when metrics are reported. It
+ * includes tasks submitted to the loop but not socket events waiting for
+ * it, which the scheduling delay covers.
+ */
+public final class EventLoopMonitor {
+
+    /* the loop run by the current thread, set by its first probe */
+    private static final FastThreadLocal<Loop> CURRENT =
+        new FastThreadLocal<Loop>();
+
+    private final List<Loop> loops;
+    private final long probeInterval;
+    private final long stallThreshold;
+    private final SkLogger logger;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param probeInterval milliseconds between probes
+     * @param stallThreshold milliseconds after which a probe that has not
+     * run is reported as a stall
+     */
+    EventLoopMonitor(EventLoopGroup bossGroup,
+                     EventLoopGroup workerGroup,
+                     int probeInterval,
+                     int stallThreshold,
+                     SkLogger logger) {
+        final List<Loop> list = new ArrayList<Loop>();
+        addLoops(list, "boss", bossGroup);
+        addLoops(list, "worker", workerGroup);
+        this.loops = Collections.unmodifiableList(list);
+        this.probeInterval = probeInterval;
+        this.stallThreshold = TimeUnit.MILLISECONDS.toNanos(stallThreshold);
+        this.logger = logger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new DefaultThreadFactory("http-event-loop-monitor", true));
+    }
+
+    private static void addLoops(List<Loop> list,
+                                 String group,
+                                 EventLoopGroup loopGroup) {
+        int index = 0;
+        for (EventExecutor executor : loopGroup) {
+            list.add(new Loop(group, index++, executor));
+        }
+    }
+
+    void start() {
+        timer.scheduleWithFixedDelay(this::probe, probeInterval,
+                                     probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Records that the current thread is starting a call to a service.
+     * Called by ProxyRequestHandler.
+     */
+    static void enter(String service) {
+        final Loop loop = CURRENT.getIfExists();
+        if (loop != null) {
+            loop.activityStart = System.nanoTime();
+            loop.activity = service;
+        }
+    }
+
+    /**
+     * Records that the current thread has returned from a service
+     */
+    static void exit() {
+        final Loop loop = CURRENT.getIfExists();
+        if (loop != null) {
+            loop.activity = null;
+        }
+    }
+
+    /**
+     * Returns the number of stalls reported since the server started
+     */
+    public long getStalls() {
+        long total = 0;
+        for (Loop loop : loops) {
+            total += loop.stalls.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of tasks waiting on all worker loops, or -1 if the
+     * transport does not report it
+     */
+    public long getPendingWorkerTasks() {
+        long total = 0;
+        for (Loop loop : loops) {
+            if (loop.group.equals("worker")) {
+                final int pending = loop.getPendingTasks();
+                if (pending < 0) {
+                    return -1;
+                }
+                total += pending;
+            }
+        }
+        return total;
+    }
+
+    List<Loop> getLoops() {
+        return loops;
+    }
+
+    /**
+     * Runs on the monitor thread
+     */
+    private void probe() {
+        final long now = System.nanoTime();
+        for (Loop loop : loops) {
+            if (loop.probing) {
+                final long waiting = now - loop.probeSubmitted;
+                if (!loop.stalled && waiting > stallThreshold) {
+                    loop.stalled = true;
+                    loop.stalls.increment();
+                    reportStall(loop, waiting);
+                }
+                continue;
+            }
+            if (loop.stalled) {
+                loop.stalled = false;
+                logger.info("HttpServer " + loop + " event loop recovered " +
+                            "after " + toMillis(loop.lastDelay) + " ms");
+            }
+            loop.probeSubmitted = now;
+            loop.probing = true;
+            try {
+                loop.executor.execute(loop);
+            } catch (RejectedExecutionException ree) {
+                /* the loop is shutting down */
+                loop.probing = false;
+            }
+        }
+    }
+
+    private void reportStall(Loop loop, long waiting) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("HttpServer ").append(loop)
+            .append(" event loop has not run a task for ")
+            .append(toMillis(waiting)).append(" ms");
+        final String activity = loop.activity;
+        if (activity != null) {
+            sb.append(", service ").append(activity)
+                .append(" has been running for ")
+                .append(toMillis(System.nanoTime() - loop.activityStart))
+                .append(" ms");
+        }
+        final Thread thread = loop.thread;
+        if (thread != null) {
+            sb.append(", thread ").append(thread.getName()).append(':');
+            for (StackTraceElement e : thread.getStackTrace()) {
+                sb.append("\n\tat ").append(e);
+            }
+        }
+        logger.warning(sb.toString());
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * The state of one event loop. It is also the probe task submitted to
+     * the loop.
+     */
+    static final class Loop implements Runnable {
+        final String group;
+        final int index;
+        final EventExecutor executor;
+        final LatencyHistogram delay = new LatencyHistogram();
+        final LongAdder stalls = new LongAdder();
+
+        /* the loop's thread, set by the first probe */
+        volatile Thread thread;
+
+        /* the service being called on the loop, or null */
+        volatile String activity;
+        volatile long activityStart;
+
+        /* true from submitting a probe until it has run */
+        volatile boolean probing;
+        volatile long probeSubmitted;
+        volatile long lastDelay;
+
+        /* only used by the monitor thread */
+        boolean stalled;
+
+        Loop(String group, int index, EventExecutor executor) {
+            this.group = group;
+            this.index = index;
+            this.executor = executor;
+        }
+
+        /**
+         * Returns the number of tasks waiting to run on the loop, or -1 if
+         * the loop does not report it
+         */
+        int getPendingTasks() {
+            return (executor instanceof SingleThreadEventExecutor ?
+                    ((SingleThreadEventExecutor) executor).pendingTasks() :
+                    -1);
+        }
+
+        @Override
+        public void run() {
+            final long waited = System.nanoTime() - probeSubmitted;
+            if (thread == null) {
+                thread = Thread.currentThread();
+                CURRENT.set(this);
+            }
+            delay.recordNanos(waited);
+            lastDelay = waited;
+            probing = false;
+        }
+
+        @Override
+        public String toString() {
+            return group + "-" + index;
+        }
+    }
+}
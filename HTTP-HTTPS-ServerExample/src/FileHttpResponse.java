@@ -0,0 +1,99 @@
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * A response whose body is a region of a file, for large results such as
+ * exports and snapshots. A Service returns it like any other response. The
+ * body is not read into buffers: on a plain HTTP/1.1 connection it is sent
+ * from the page cache with sendfile, and over TLS or HTTP/2 it is read and
+ * written a chunk at a time. See FileResponseEncoder.
+ *
+ * The content of this response is empty. The file is opened when the
+ * response is written and closed once it has been sent, so a response that
+ * is never written holds no resources. The file must not shrink in the
+ * meantime.
+ *
+ * File responses are not compressed or cached. A body already in a mapped
+ * buffer can be returned without copying as an ordinary response with
+ * Unpooled.wrappedBuffer.
+ */
+public final class FileHttpResponse extends DefaultFullHttpResponse {
+
+    private final File file;
+    private final long position;
+    private final long count;
+
+    /**
+     * Returns a 200 response with the whole file as its body
+     */
+    public FileHttpResponse(File file) throws FileNotFoundException {
+        this(HttpResponseStatus.OK, file, 0, length(file));
+    }
+
+    /**
+     * Returns a response with count bytes of the file, from position, as
+     * its body
+     */
+    public FileHttpResponse(HttpResponseStatus status,
+                            File file,
+                            long position,
+                            long count) throws FileNotFoundException {
+        super(HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        if (position < 0 || count < 0 || position + count > length(file)) {
+            throw new IllegalArgumentException(
+                "Region " + position + "+" + count + " is outside " + file);
+        }
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        headers().set(HttpHeaderNames.CONTENT_LENGTH, count);
+    }
+
+    private static long length(File file) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        return file.length();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the length of the body
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the response head to write ahead of the body
+     */
+    Head head() {
+        return new Head(this);
+    }
+
+    /**
+     * The head of a file response, which HttpResponseCompressor passes
+     * through
+     */
+    static final class Head extends DefaultHttpResponse {
+        Head(FileHttpResponse response) {
+            super(response.protocolVersion(), response.status(),
+                  response.headers());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+
+/**
+ * Writes a FileHttpResponse as its head followed by its file region. On a
+ * plain HTTP/1.1 connection the region is a DefaultFileRegion, which the
+ * transport sends with sendfile, without copying it through user space.
+ * Over TLS, which has to encrypt the bytes, on HTTP/2 streams, which frame
+ * them, and on transports without FileRegion support, it is a
+ * ChunkedNioFile read a chunk at a time by the ChunkedWriteHandler that
+ * follows this handler.
+ *
+ * The write's promise completes once the whole body has been written, so
+ * HttpServerHandler closes a connection without keep-alive only after
+ * that. Other messages pass through. This handler goes after the
+ * HttpPipeliningHandler, so that responses are already in order, and is
+ * shared by all channels.
+ */
+@Sharable
+final class FileResponseEncoder extends ChannelOutboundHandlerAdapter {
+
+    /* bytes read from the file per chunk when sendfile can't be used */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final boolean fileRegions;
+
+    /**
+     * @param fileRegions true if the transport can write FileRegions
+     */
+    FileResponseEncoder(boolean fileRegions) {
+        this.fileRegions = fileRegions;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx,
+                      Object msg,
+                      ChannelPromise promise) {
+        if (!(msg instanceof FileHttpResponse)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        final FileHttpResponse response = (FileHttpResponse) msg;
+        final FileChannel file;
+        try {
+            file = FileChannel.open(response.getFile().toPath(),
+                                    StandardOpenOption.READ);
+        } catch (IOException ioe) {
+            promise.setFailure(ioe);
+            ctx.close();
+            return;
+        }
+
+        ctx.write(response.head(), ctx.voidPromise());
+        if (useFileRegion(ctx)) {
+            ctx.write(new DefaultFileRegion(file, response.getPosition(),
+                                            response.getCount()),
+                      ctx.voidPromise());
+            ctx.write(LastHttpContent.EMPTY_LAST_CONTENT, promise);
+            return;
+        }
+        try {
+            ctx.write(new HttpChunkedInput(
+                          new ChunkedNioFile(file, response.getPosition(),
+                                             response.getCount(),
+                                             CHUNK_SIZE)),
+                      promise);
+        } catch (IOException ioe) {
+            closeQuietly(file);
+            promise.setFailure(ioe);
+            ctx.close();
+        }
+    }
+
+    private boolean useFileRegion(ChannelHandlerContext ctx) {
+        return fileRegions &&
+            !(ctx.channel() instanceof Http2StreamChannel) &&
+            ctx.pipeline().get(SslHandler.class) == null;
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ioe) {
+            /* nothing more to do */
+        }
+    }
+}
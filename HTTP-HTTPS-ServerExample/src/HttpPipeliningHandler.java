@@ -0,0 +1,419 @@
+import java.util.ArrayDeque;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Supports HTTP/1.1 pipelining. Requests pipelined on a connection are
+ * handled concurrently, and their responses, which may complete in any
+ * order, are written in the order the requests were read, as HTTP/1.1
+ * requires.
+ *
+ * Each request is given a sequence number as it passes through. Handlers
+ * further up the pipeline read it with sequence() when the request arrives
+ * and wrap the response with sequenced() when they write it. A response
+ * completed ahead of an earlier one is held here until the earlier ones are
+ * written. A response that is not wrapped, such as the 100 Continue or 413
+ * an HttpObjectAggregator writes for itself, is for the request being read.
+ * Interim (1xx) responses are sequenced too: one for a request whose
+ * turn has not come is held, the latest one only, and written just ahead
+ * of that request's final response.
+ *
+ * At most maxDepth requests are in flight, read but not answered. Requests
+ * past that are held here, and reads are suspended, see ReadSuspension,
+ * until responses are written. A depth of 1 handles one request at a time,
+ * as without pipelining.
+ *
+ * The connection can be closed gracefully, after a number of requests or
+ * when asked by closeAfterResponses. The responses to the requests already
+ * read are written, the last one with Connection: close, and the connection
+ * is then closed. Requests read after the last one are discarded, and the
+ * client can send them again on a new connection.
+ *
+ * This handler keeps per-channel state so an instance is created for each
+ * HTTP/1.1 connection. It goes after the compressor, which must see
+ * responses in request order, and before the streaming handler and
+ * aggregator.
+ */
+final class HttpPipeliningHandler extends ChannelDuplexHandler {
+
+    private static final AttributeKey<HttpPipeliningHandler> HANDLER =
+        AttributeKey.valueOf("http-pipelining-handler");
+
+    private final int maxDepth;
+
+    /* requests answered before closing, 0 for no limit */
+    private final int maxRequests;
+
+    /* responses completed out of order, indexed by sequence % maxDepth */
+    private final SequencedResponse[] completed;
+
+    /* interim responses to requests not yet at the head, indexed likewise */
+    private final SequencedResponse[] interim;
+
+    /* requests past maxDepth, and their content, in the order read */
+    private final ArrayDeque<Object> held = new ArrayDeque<Object>();
+
+    /* the sequence of the next request read and the last one passed on */
+    private long nextRead;
+    private long current = -1;
+
+    /* the sequence of the next response to write */
+    private long nextWrite;
+
+    /* true if this handler suspended reads for held requests */
+    private boolean paused;
+
+    /* true if this handler suspended reads for good, to close */
+    private boolean closeSuspended;
+
+    /* true while held requests are being passed on */
+    private boolean releasing;
+
+    /* true between a request head and its last content */
+    private boolean reading;
+
+    /* true once no more requests are accepted */
+    private boolean closing;
+
+    private ChannelHandlerContext ctx;
+
+    /**
+     * @param maxRequests the number of requests after which the connection
+     * is closed, 0 for no limit
+     */
+    HttpPipeliningHandler(int maxDepth, int maxRequests) {
+        this.maxDepth = maxDepth;
+        this.maxRequests = maxRequests;
+        this.completed = new SequencedResponse[maxDepth];
+        this.interim = new SequencedResponse[maxDepth];
+    }
+
+    /**
+     * Returns the sequence of the request being read on a channel, or -1 if
+     * the channel has no HttpPipeliningHandler. Call it when the request, or
+     * the FullHttpRequest aggregated from it, arrives.
+     */
+    static long sequence(ChannelHandlerContext ctx) {
+        final HttpPipeliningHandler h = ctx.channel().attr(HANDLER).get();
+        return (h != null ? h.current : -1);
+    }
+
+    /**
+     * Returns the message to write for the response to the request with the
+     * given sequence, see sequence()
+     */
+    static Object sequenced(long sequence, HttpResponse response) {
+        return (sequence < 0 ? response :
+                new SequencedResponse(sequence, response));
+    }
+
+    /**
+     * Closes an HTTP/1.1 connection once the responses to the requests
+     * already read are written. Called on the event loop.
+     *
+     * @return false if the channel has no HttpPipeliningHandler
+     */
+    static boolean closeAfterResponses(Channel ch) {
+        final HttpPipeliningHandler h = ch.attr(HANDLER).get();
+        if (h == null) {
+            return false;
+        }
+        h.closeAfterResponses();
+        return true;
+    }
+
+    /**
+     * Closes an idle HTTP/1.1 connection. It is closed gracefully, as by
+     * closeAfterResponses, the first time. It is closed at once if it was
+     * already closing, so that a client that stops reading its responses is
+     * still dropped, or if it went read idle part way through a request, as
+     * a client sending a request slowly to hold the connection does. Called
+     * on the event loop.
+     *
+     * @return false if the channel has no HttpPipeliningHandler
+     */
+    static boolean closeIdle(Channel ch, boolean readIdle) {
+        final HttpPipeliningHandler h = ch.attr(HANDLER).get();
+        if (h == null) {
+            return false;
+        }
+        if (h.closing || (readIdle && h.reading)) {
+            ch.close();
+        } else {
+            h.closeAfterResponses();
+        }
+        return true;
+    }
+
+    private void closeAfterResponses() {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        discardHeld();
+        if (!reading) {
+            suspendForClose();
+        }
+        if (nextWrite == nextRead) {
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        ctx.channel().attr(HANDLER).set(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ctx.channel().attr(HANDLER).set(null);
+        releaseAll();
+        resumeReads(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (closing && (!reading || msg instanceof HttpRequest)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (!held.isEmpty() ||
+            (msg instanceof HttpRequest && nextRead - nextWrite >= maxDepth)) {
+            held.add(msg);
+            if (!paused) {
+                paused = true;
+                ReadSuspension.suspend(ctx.channel());
+            }
+            return;
+        }
+        passOn(ctx, msg);
+    }
+
+    private void passOn(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest) {
+            current = nextRead++;
+            reading = true;
+            if (maxRequests > 0 && nextRead >= maxRequests) {
+                /* not closed here, this request is in flight */
+                closeAfterResponses();
+            }
+        }
+        if (msg instanceof LastHttpContent) {
+            reading = false;
+            if (closing) {
+                suspendForClose();
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx,
+                      Object msg,
+                      ChannelPromise promise) {
+        final SequencedResponse response;
+        if (msg instanceof SequencedResponse) {
+            response = (SequencedResponse) msg;
+        } else if (msg instanceof HttpResponse &&
+                   (current >= nextWrite || isInterim((HttpResponse) msg))) {
+            response = new SequencedResponse(current, (HttpResponse) msg);
+        } else {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        if (isInterim(response.response)) {
+            writeInterim(ctx, response, promise);
+            return;
+        }
+
+        if (response.sequence != nextWrite) {
+            response.promise = promise;
+            completed[slot(response.sequence)] = response;
+            return;
+        }
+        writeNext(ctx, response.response, promise);
+
+        /* the caller flushes after this write, covering these too */
+        writeCompleted(ctx);
+        releaseHeld(ctx);
+    }
+
+    private static boolean isInterim(HttpResponse response) {
+        return response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+    }
+
+    /**
+     * Writes an interim response if its request is at the head, holds it if
+     * the request is not, and drops it if the request has been answered, as
+     * the client would take it for part of the next response.
+     */
+    private void writeInterim(ChannelHandlerContext ctx,
+                              SequencedResponse response,
+                              ChannelPromise promise) {
+        if (response.sequence == nextWrite) {
+            ctx.write(response.response, promise);
+            return;
+        }
+        if (response.sequence < nextWrite) {
+            ReferenceCountUtil.release(response.response);
+            promise.trySuccess();
+            return;
+        }
+        response.promise = promise;
+        final int slot = slot(response.sequence);
+        final SequencedResponse replaced = interim[slot];
+        interim[slot] = response;
+        if (replaced != null) {
+            ReferenceCountUtil.release(replaced.response);
+            replaced.promise.trySuccess();
+        }
+    }
+
+    /**
+     * Writes the held responses, interim and final, of the requests now at
+     * the head, until one has not completed
+     */
+    private void writeCompleted(ChannelHandlerContext ctx) {
+        while (true) {
+            final int slot = slot(nextWrite);
+            final SequencedResponse early = interim[slot];
+            if (early != null && early.sequence == nextWrite) {
+                interim[slot] = null;
+                ctx.write(early.response, early.promise);
+            }
+            final SequencedResponse next = completed[slot];
+            if (next == null) {
+                return;
+            }
+            completed[slot] = null;
+            writeNext(ctx, next.response, next.promise);
+        }
+    }
+
+    private void writeNext(ChannelHandlerContext ctx,
+                           HttpResponse response,
+                           ChannelPromise promise) {
+        nextWrite++;
+        if (!closing || nextWrite != nextRead) {
+            ctx.write(response, promise);
+            return;
+        }
+        response.headers().set(HttpHeaderNames.CONNECTION,
+                               HttpHeaderValues.CLOSE);
+        ctx.write(response, promise.unvoid())
+            .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Passes on held requests while there is room for them in the pipeline
+     */
+    private void releaseHeld(ChannelHandlerContext ctx) {
+        if (releasing) {
+            return;
+        }
+        releasing = true;
+        try {
+            while (!held.isEmpty()) {
+                final Object msg = held.peek();
+                if (msg instanceof HttpRequest &&
+                    nextRead - nextWrite >= maxDepth) {
+                    return;
+                }
+                held.poll();
+                passOn(ctx, msg);
+            }
+            resumeReads(ctx);
+        } finally {
+            releasing = false;
+        }
+    }
+
+    private void resumeReads(ChannelHandlerContext ctx) {
+        if (paused) {
+            paused = false;
+            ReadSuspension.resume(ctx.channel());
+        }
+    }
+
+    /**
+     * Suspends reads until the channel closes, taking over the suspend for
+     * held requests if there is one
+     */
+    private void suspendForClose() {
+        if (closeSuspended) {
+            return;
+        }
+        closeSuspended = true;
+        if (paused) {
+            paused = false;
+        } else {
+            ReadSuspension.suspend(ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        releaseAll();
+        ctx.fireChannelInactive();
+    }
+
+    private void discardHeld() {
+        Object msg;
+        while ((msg = held.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void releaseAll() {
+        discardHeld();
+        releaseAll(completed);
+        releaseAll(interim);
+    }
+
+    private static void releaseAll(SequencedResponse[] responses) {
+        for (int i = 0; i < responses.length; i++) {
+            final SequencedResponse response = responses[i];
+            if (response != null) {
+                responses[i] = null;
+                ReferenceCountUtil.release(response.response);
+                response.promise.tryFailure(
+                    new IllegalStateException("Connection closed before " +
+                                              "the response was written"));
+            }
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % maxDepth);
+    }
+
+    /**
+     * A response tagged with the sequence of its request
+     */
+    private static final class SequencedResponse {
+        final long sequence;
+        final HttpResponse response;
+
+        /* set while the response is held */
+        ChannelPromise promise;
+
+        SequencedResponse(long sequence, HttpResponse response) {
+            this.sequence = sequence;
+            this.response = response;
+        }
+    }
+}
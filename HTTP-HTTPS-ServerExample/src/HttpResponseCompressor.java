@@ -0,0 +1,62 @@
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Compresses responses with gzip or deflate, as negotiated from the
+ * request's Accept-Encoding, but only those that are worth it: the content
+ * type must be in the configured list and a full response's body must be at
+ * least the threshold size. Responses that already have a Content-Encoding,
+ * such as those from a CompressedContentCache, and file responses are
+ * passed through unchanged.
+ *
+ * An instance holds per-request state so one is created for each channel.
+ */
+final class HttpResponseCompressor extends HttpContentCompressor {
+
+    /* default window and memory sizes */
+    private static final int WINDOW_BITS = 15;
+    private static final int MEM_LEVEL = 8;
+
+    private final String[] contentTypes;
+
+    /**
+     * @param contentTypes content type prefixes that may be compressed, for
+     * example "application/json" or "text/"
+     */
+    HttpResponseCompressor(int level, int threshold, String[] contentTypes) {
+        super(threshold,
+              StandardCompressionOptions.gzip(level, WINDOW_BITS, MEM_LEVEL),
+              StandardCompressionOptions.deflate(level, WINDOW_BITS,
+                                                 MEM_LEVEL));
+        this.contentTypes = contentTypes;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding)
+        throws Exception {
+
+        if (!isCompressible(response)) {
+            return null;
+        }
+        return super.beginEncode(response, acceptEncoding);
+    }
+
+    private boolean isCompressible(HttpResponse response) {
+        if (response instanceof FileHttpResponse.Head) {
+            return false;
+        }
+        final String type =
+            response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        if (type == null) {
+            return false;
+        }
+        for (String prefix : contentTypes) {
+            if (type.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
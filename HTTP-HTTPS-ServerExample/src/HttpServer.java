@@ -1,12 +1,25 @@
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 public class HttpServer {
 
@@ -15,18 +28,77 @@ public class HttpServer {
     static final int DEFAULT_MAX_REQUEST_SIZE = 4 * 1024 * 1024; // 4MB
     static final int DEFAULT_MAX_CHUNK_SIZE = 65536;
     static final int DEFAULT_IDLE_READ_TIMEOUT = 0;
+    static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    static final int DEFAULT_MAX_PIPELINE_DEPTH = 16;
+    static final int DEFAULT_EVENT_LOOP_STALL_THRESHOLD = 1000;
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    static final String[] DEFAULT_COMPRESSIBLE_CONTENT_TYPES = {
+        "application/json", "application/xml", "application/javascript",
+        "text/"
+    };
 
-    private final Channel channel;
-    private final Channel httpsChannel;
+    /**
+     * ALPN configuration to use when building the SslContext for a server
+     * with HTTP/2 enabled. It prefers h2 and falls back to http/1.1.
+     */
+    public static final ApplicationProtocolConfig HTTP2_ALPN_CONFIG =
+        new ApplicationProtocolConfig(
+            ApplicationProtocolConfig.Protocol.ALPN,
+            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+            ApplicationProtocolNames.HTTP_2,
+            ApplicationProtocolNames.HTTP_1_1);
+
+    /*
+     * Listening channels. There is one per port unless SO_REUSEPORT is in
+     * use, in which case there is one per port per accept thread.
+     */
+    private final List<Channel> channels;
+    private final List<Channel> httpsChannels;
     private final HttpServerHandler handler;
 
+    /* non-null if the request handler accepts streamed request bodies */
+    private final StreamingRequestHandler streamingHandler;
+
     /* hard-wired for now */
     private final int maxRequestSize;
     private final int maxChunkSize;
 
+    /* 0 if request bodies are never spilled to files */
+    private final int requestSpillThreshold;
+    private final File requestSpillDirectory;
+
     /* How many seconds before an idle channel read to timeout */
     private final int idleReadTimeout;
 
+    /* connection policies, 0 for none, see HttpServerConfig */
+    private final int idleWriteTimeout;
+    private final int idleTimeout;
+    private final int maxConnectionLifetime;
+    private final int maxConnectionRequests;
+
+    private final boolean http2Enabled;
+    private final int maxConcurrentStreams;
+    private final int maxPipelineDepth;
+
+    /* compression is off if compressibleContentTypes is null */
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final String[] compressibleContentTypes;
+
+    /* connection metrics, or null */
+    private final ServerMetrics metrics;
+
+    /* connection and per worker request limits */
+    private final AdmissionControl admission;
+
+    /* the HTTPS context, or null if there is no HTTPS port */
+    private final ServerSslContext sslContext;
+
+    /* checks the HTTPS context's files for changes, or null */
+    private final ScheduledExecutorService sslReloader;
+
     /*
      * bossGroup accepts incoming connections. The workerGroup handles data
      * requests on established connections. The parameter is number of
@@ -35,6 +107,15 @@ public class HttpServer {
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
 
+    /* event loop scheduling delay and stall monitor, or null */
+    private final EventLoopMonitor eventLoopMonitor;
+
+    /* The transport actually in use, after availability fallback */
+    private final Transport transport;
+
+    /* Number of listening channels bound to each port */
+    private final int bindsPerPort;
+
     private final SkLogger logger;
 
     public HttpServer(int httpPort,
@@ -61,62 +142,255 @@ public class HttpServer {
                       RequestHandler requestHandler,
                       SslContext ctx,
                       SkLogger logger) throws InterruptedException {
+        this(httpHost, httpPort, httpsPort, numAcceptThreads,
+             numWorkerThreads, maxRequestSize, maxChunkSize, idleReadTimeout,
+             null /* transport from config or best available */,
+             requestHandler, ctx, logger);
+    }
+
+    /**
+     * @param transport the socket transport to use. If null the
+     * Transport.TRANSPORT_PROPERTY system property is used, or the best
+     * available transport if that is not set. A transport that is not
+     * available on this platform falls back to NIO.
+     */
+    public HttpServer(String httpHost,
+                      int httpPort,
+                      int httpsPort,
+                      int numAcceptThreads,
+                      int numWorkerThreads,
+                      int maxRequestSize,
+                      int maxChunkSize,
+                      int idleReadTimeout,
+                      Transport transport,
+                      RequestHandler requestHandler,
+                      SslContext ctx,
+                      SkLogger logger) throws InterruptedException {
+        this(new HttpServerConfig()
+             .setHttpHost(httpHost)
+             .setHttpPort(httpPort)
+             .setHttpsPort(httpsPort)
+             .setNumAcceptThreads(numAcceptThreads)
+             .setNumWorkerThreads(numWorkerThreads)
+             .setMaxRequestSize(maxRequestSize)
+             .setMaxChunkSize(maxChunkSize)
+             .setIdleReadTimeout(idleReadTimeout)
+             .setTransport(transport),
+             requestHandler, ctx, logger);
+    }
+
+    public HttpServer(HttpServerConfig config,
+                      RequestHandler requestHandler,
+                      SslContext ctx,
+                      SkLogger logger) throws InterruptedException {
 
         this.logger = logger;
 
-        numAcceptThreads =
-            (numAcceptThreads == 0 ?
-                 DEFAULT_NUM_ACCEPT_THREADS : numAcceptThreads);
-        numWorkerThreads =
-            (numWorkerThreads == 0 ?
-                 DEFAULT_NUM_WORKER_THREADS : numWorkerThreads);
+        final int numAcceptThreads =
+            (config.getNumAcceptThreads() == 0 ?
+                 DEFAULT_NUM_ACCEPT_THREADS : config.getNumAcceptThreads());
+        final int numWorkerThreads =
+            (config.getNumWorkerThreads() == 0 ?
+                 DEFAULT_NUM_WORKER_THREADS : config.getNumWorkerThreads());
         this.maxRequestSize =
-            (maxRequestSize == 0 ?
-                 DEFAULT_MAX_REQUEST_SIZE : maxRequestSize);
+            (config.getMaxRequestSize() == 0 ?
+                 DEFAULT_MAX_REQUEST_SIZE : config.getMaxRequestSize());
         this.maxChunkSize =
-            (maxChunkSize == 0 ?
-                 DEFAULT_MAX_CHUNK_SIZE : maxChunkSize);
+            (config.getMaxChunkSize() == 0 ?
+                 DEFAULT_MAX_CHUNK_SIZE : config.getMaxChunkSize());
         this.idleReadTimeout =
-            (idleReadTimeout == 0 ?
-                 DEFAULT_IDLE_READ_TIMEOUT : idleReadTimeout);
+            (config.getIdleReadTimeout() == 0 ?
+                 DEFAULT_IDLE_READ_TIMEOUT : config.getIdleReadTimeout());
+        this.requestSpillThreshold = config.getRequestSpillThreshold();
+        this.requestSpillDirectory = config.getRequestSpillDirectory();
+        this.idleWriteTimeout = config.getIdleWriteTimeout();
+        this.idleTimeout = config.getIdleTimeout();
+        this.maxConnectionLifetime = config.getMaxConnectionLifetime();
+        this.maxConnectionRequests = config.getMaxConnectionRequests();
+        this.http2Enabled = config.getHttp2Enabled();
+        this.maxConcurrentStreams =
+            (config.getMaxConcurrentStreams() == 0 ?
+                 DEFAULT_MAX_CONCURRENT_STREAMS :
+                 config.getMaxConcurrentStreams());
+        this.maxPipelineDepth =
+            (config.getMaxPipelineDepth() == 0 ?
+                 DEFAULT_MAX_PIPELINE_DEPTH : config.getMaxPipelineDepth());
+        this.compressionLevel =
+            (config.getCompressionLevel() == 0 ?
+                 DEFAULT_COMPRESSION_LEVEL : config.getCompressionLevel());
+        this.compressionThreshold =
+            (config.getCompressionThreshold() == 0 ?
+                 DEFAULT_COMPRESSION_THRESHOLD :
+                 config.getCompressionThreshold());
+        if (!config.getCompressionEnabled()) {
+            this.compressibleContentTypes = null;
+        } else if (config.getCompressibleContentTypes() == null) {
+            this.compressibleContentTypes =
+                DEFAULT_COMPRESSIBLE_CONTENT_TYPES.clone();
+        } else {
+            this.compressibleContentTypes =
+                config.getCompressibleContentTypes().clone();
+        }
+
+        this.metrics = config.getMetrics();
+        this.admission = new AdmissionControl(config.getMaxConnections(),
+                                              config.getMaxWorkerRequests(),
+                                              config.getMaxClientConnections());
+        if (metrics != null) {
+            admission.registerMetrics(metrics);
+            metrics.registerGauge("http_buffer_memory_bytes",
+                                  "Memory held by the buffer pool", false,
+                                  HttpServer::getBufferMemory);
+            metrics.registerGauge("http_connection_buffer_memory_bytes",
+                                  "Buffer pool memory per open connection",
+                                  false, this::getBufferMemoryPerConnection);
+        }
+
+        this.transport = Transport.select(config.getTransport(), logger);
+        logger.info("HttpServer using transport " + transport);
+
+        /*
+         * With SO_REUSEPORT each port is bound once per accept thread. The
+         * bootstrap registers each new server channel with the next boss
+         * event loop, so every accept thread gets its own listening socket
+         * and the kernel load balances new connections across them.
+         */
+        final ChannelOption<Boolean> reusePortOption =
+            (config.getReusePort() ? transport.reusePortOption() : null);
+        if (config.getReusePort() && reusePortOption == null) {
+            logger.info("HttpServer SO_REUSEPORT is not supported by " +
+                        "transport " + transport + ", binding each port once");
+        }
+        this.bindsPerPort =
+            (reusePortOption != null ? numAcceptThreads : 1);
 
-        bossGroup = new NioEventLoopGroup(numAcceptThreads);
-        workerGroup = new NioEventLoopGroup(numWorkerThreads);
+        bossGroup = transport.newEventLoopGroup(numAcceptThreads);
+        workerGroup = transport.newEventLoopGroup(numWorkerThreads);
 
-        handler = new HttpServerHandler(requestHandler, logger);
+        if (config.getEventLoopProbeInterval() > 0) {
+            eventLoopMonitor = new EventLoopMonitor(
+                bossGroup, workerGroup, config.getEventLoopProbeInterval(),
+                (config.getEventLoopStallThreshold() == 0 ?
+                 DEFAULT_EVENT_LOOP_STALL_THRESHOLD :
+                 config.getEventLoopStallThreshold()),
+                logger);
+            eventLoopMonitor.start();
+            if (metrics != null) {
+                metrics.setEventLoopMonitor(eventLoopMonitor);
+            }
+        } else {
+            eventLoopMonitor = null;
+        }
+
+        handler = new HttpServerHandler(requestHandler, admission, logger);
+        streamingHandler =
+            (requestHandler instanceof StreamingRequestHandler ?
+             (StreamingRequestHandler) requestHandler : null);
 
         /*
          * http and https are different channels that share workers and event
          * loops
          */
 
-        channel =
-            (httpPort != 0 ? createChannel(httpHost, httpPort, null) : null);
+        final String httpHost = config.getHttpHost();
+        channels = (config.getHttpPort() != 0 ?
+                    createChannels(httpHost, config.getHttpPort(), null,
+                                   reusePortOption) :
+                    Collections.<Channel>emptyList());
 
-        if (httpsPort != 0 && ctx != null) {
-            httpsChannel = createChannel(httpHost, httpsPort, ctx);
+        final ServerSslContext ssl = (ctx != null ?
+                                      ServerSslContext.fixed(ctx) :
+                                      config.getSslContext());
+        if (config.getHttpsPort() != 0 && ssl != null) {
+            sslContext = ssl;
+            try {
+                ssl.setHttp2(http2Enabled);
+            } catch (SSLException e) {
+                throw new IllegalArgumentException(
+                    "HttpServer cannot build the SSL context: " +
+                    e.getMessage(), e);
+            }
+            httpsChannels = createChannels(httpHost, config.getHttpsPort(),
+                                           ssl, reusePortOption);
+            sslReloader = scheduleSslReload(config.getSslReloadInterval());
+            if (metrics != null) {
+                metrics.registerGauge("http_tls_context_reloads_total",
+                                      "HTTPS SSL context reloads", true,
+                                      ssl::getReloads);
+            }
         } else {
-            httpsChannel = null;
+            sslContext = null;
+            sslReloader = null;
+            httpsChannels = Collections.emptyList();
+        }
+
+        final List<Channel> listeners = new ArrayList<Channel>(channels);
+        listeners.addAll(httpsChannels);
+        admission.setListeners(listeners);
+    }
+
+    /**
+     * Checks the SSL key and certificate files for changes every interval
+     * seconds. Reading the files and parsing the keys is slow, so it runs
+     * on a thread of its own rather than an event loop. A failed reload is
+     * logged and the current context is kept.
+     *
+     * @return the thread's executor, or null if there is no checking
+     */
+    private ScheduledExecutorService scheduleSslReload(int interval) {
+        if (interval <= 0 || !sslContext.isReloadable()) {
+            return null;
+        }
+        final ScheduledExecutorService reloader =
+            Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("http-ssl-reload", true));
+        reloader.scheduleWithFixedDelay(() -> {
+                try {
+                    if (sslContext.reloadIfModified()) {
+                        logger.info("HttpServer reloaded SSL context");
+                    }
+                } catch (Exception e) {
+                    logger.warning("HttpServer failed to reload SSL " +
+                                   "context, keeping the current one: " +
+                                   e.getMessage());
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        return reloader;
+    }
+
+    /**
+     * Binds a port once, or once per accept thread if SO_REUSEPORT is in use.
+     */
+    private List<Channel> createChannels(String host,
+                                         int port,
+                                         ServerSslContext sslCtx,
+                                         ChannelOption<Boolean> reusePort)
+        throws InterruptedException {
+
+        final List<Channel> list = new ArrayList<Channel>(bindsPerPort);
+        for (int i = 0; i < bindsPerPort; i++) {
+            list.add(createChannel(host, port, sslCtx, reusePort));
         }
+        return Collections.unmodifiableList(list);
     }
 
     /**
      * Shared code for creating channels based on http vs https
      */
-    private Channel createChannel(String host, int port, SslContext sslCtx)
+    private Channel createChannel(String host,
+                                  int port,
+                                  ServerSslContext sslCtx,
+                                  ChannelOption<Boolean> reusePort)
         throws InterruptedException {
 
         ServerBootstrap sb = new ServerBootstrap();
         sb.group(bossGroup, workerGroup)
 
-            /* use a new NioServerSocketChannel instance for new channels */
-            .channel(NioServerSocketChannel.class)
+            /* use the selected transport's server channel for new channels */
+            .channel(transport.serverChannelClass())
 
             /* use HttpServerInitializer to init new channels */
-            .childHandler(new HttpServerInitializer(handler,
-                                                    this,
-                                                    sslCtx,
-                                                    logger))
+            .childHandler(newChannelInitializer(sslCtx))
 
             /* set some socket options */
             .option(ChannelOption.SO_BACKLOG, 1024)
@@ -124,6 +398,10 @@ public class HttpServer {
             .childOption(ChannelOption.TCP_NODELAY, true)
             .childOption(ChannelOption.SO_KEEPALIVE, true);
 
+        if (reusePort != null) {
+            sb.option(reusePort, true);
+        }
+
         /*
          * Bind to specific host name
          */
@@ -143,19 +421,152 @@ public class HttpServer {
         return maxChunkSize;
     }
 
+    int getRequestSpillThreshold() {
+        return requestSpillThreshold;
+    }
+
+    File getRequestSpillDirectory() {
+        return requestSpillDirectory;
+    }
+
     int getIdleReadTimeout() {
         return idleReadTimeout;
     }
 
+    int getIdleWriteTimeout() {
+        return idleWriteTimeout;
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    int getMaxConnectionLifetime() {
+        return maxConnectionLifetime;
+    }
+
+    int getMaxConnectionRequests() {
+        return maxConnectionRequests;
+    }
+
+    boolean getHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    String[] getCompressibleContentTypes() {
+        return compressibleContentTypes;
+    }
+
+    /**
+     * Return the server's connection and request limits, with their current
+     * usage and rejection counts
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * Return the event loop monitor, or null if event loops are not
+     * monitored
+     */
+    public EventLoopMonitor getEventLoopMonitor() {
+        return eventLoopMonitor;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the heap and direct memory held by the buffer pool that
+     * connections allocate from, or -1 if the allocator does not report it.
+     * The pool is shared by all servers in the process.
+     */
+    public static long getBufferMemory() {
+        if (!(ByteBufAllocator.DEFAULT instanceof
+              ByteBufAllocatorMetricProvider)) {
+            return -1;
+        }
+        final ByteBufAllocatorMetric metric =
+            ((ByteBufAllocatorMetricProvider) ByteBufAllocator.DEFAULT)
+            .metric();
+        return metric.usedHeapMemory() + metric.usedDirectMemory();
+    }
+
+    /**
+     * Returns the buffer pool memory divided by the number of open
+     * connections, or -1 if it is not known. Measured with mostly idle
+     * connections, this is the figure to size heap and direct memory by
+     * for a given number of connections. It includes memory the pool has
+     * cached and not yet returned, so it is an upper bound.
+     */
+    public long getBufferMemoryPerConnection() {
+        final long memory = getBufferMemory();
+        final long conns = admission.getConnections();
+        return (memory < 0 || conns == 0 ? -1 : memory / conns);
+    }
+
+    /**
+     * Return the HTTPS SSL context, or null if there is no HTTPS port
+     */
+    public ServerSslContext getSslContext() {
+        return sslContext;
+    }
+
+    StreamingRequestHandler getStreamingRequestHandler() {
+        return streamingHandler;
+    }
+
+    /**
+     * Returns an initializer for this server's child channels. Benchmarks
+     * also use it to build the same pipeline on an EmbeddedChannel.
+     *
+     * @param sslCtx the SSL context for HTTPS channels, or null for HTTP
+     */
+    HttpServerInitializer newChannelInitializer(ServerSslContext sslCtx) {
+        return new HttpServerInitializer(handler, this, sslCtx, logger);
+    }
+
+    /**
+     * Return the socket transport in use
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Return the number of listening channels bound to each port. This is
+     * greater than 1 only when SO_REUSEPORT binding is in use.
+     */
+    public int getBindsPerPort() {
+        return bindsPerPort;
+    }
+
     /**
      * Wait for shutdown
      */
     public HttpServer waitForShutdown() throws InterruptedException {
-        if (channel != null) {
-            channel.closeFuture().await();
+        for (Channel ch : channels) {
+            ch.closeFuture().await();
         }
-        if (httpsChannel != null) {
-            httpsChannel.closeFuture().await();
+        for (Channel ch : httpsChannels) {
+            ch.closeFuture().await();
         }
         return this;
     }
@@ -164,13 +575,19 @@ public class HttpServer {
      * Cleanly shut down the server and threads.
      */
     public HttpServer shutdown() throws InterruptedException {
-        if (channel != null) {
-            channel.close();
+        for (Channel ch : channels) {
+            ch.close();
         }
-        if (httpsChannel != null) {
-            httpsChannel.close();
+        for (Channel ch : httpsChannels) {
+            ch.close();
         }
         logger.info("Shutting down HttpServer");
+        if (eventLoopMonitor != null) {
+            eventLoopMonitor.stop();
+        }
+        if (sslReloader != null) {
+            sslReloader.shutdownNow();
+        }
         workerGroup.shutdownGracefully();
         bossGroup.shutdownGracefully();
         waitForShutdown();
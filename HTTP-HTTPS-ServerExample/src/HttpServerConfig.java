@@ -0,0 +1,445 @@
+import java.io.File;
+
+/**
+ * Configuration for an HttpServer. Numeric values of 0 mean use the
+ * HttpServer default, matching the positional HttpServer constructors.
+ */
+public class HttpServerConfig {
+
+    private String httpHost;
+    private int httpPort;
+    private int httpsPort;
+    private int numAcceptThreads;
+    private int numWorkerThreads;
+    private int maxRequestSize;
+    private int maxChunkSize;
+    private int requestSpillThreshold;
+    private File requestSpillDirectory;
+    private int idleReadTimeout;
+    private int idleWriteTimeout;
+    private int idleTimeout;
+    private int maxConnectionLifetime;
+    private int maxConnectionRequests;
+    private int maxClientConnections;
+    private Transport transport;
+    private boolean reusePort;
+    private boolean http2Enabled;
+    private int maxConcurrentStreams;
+    private int maxPipelineDepth;
+    private boolean compressionEnabled;
+    private int compressionLevel;
+    private int compressionThreshold;
+    private String[] compressibleContentTypes;
+    private int eventLoopProbeInterval;
+    private int eventLoopStallThreshold;
+    private ServerMetrics metrics;
+    private int maxConnections;
+    private int maxWorkerRequests;
+    private ServerSslContext sslContext;
+    private int sslReloadInterval;
+
+    /**
+     * Host to bind to. If null the server binds to all addresses.
+     */
+    public HttpServerConfig setHttpHost(String httpHost) {
+        this.httpHost = httpHost;
+        return this;
+    }
+
+    public String getHttpHost() {
+        return httpHost;
+    }
+
+    /**
+     * Plain HTTP port, 0 for no HTTP channel
+     */
+    public HttpServerConfig setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+        return this;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    /**
+     * HTTPS port, 0 for no HTTPS channel
+     */
+    public HttpServerConfig setHttpsPort(int httpsPort) {
+        this.httpsPort = httpsPort;
+        return this;
+    }
+
+    public int getHttpsPort() {
+        return httpsPort;
+    }
+
+    public HttpServerConfig setNumAcceptThreads(int numAcceptThreads) {
+        this.numAcceptThreads = numAcceptThreads;
+        return this;
+    }
+
+    public int getNumAcceptThreads() {
+        return numAcceptThreads;
+    }
+
+    public HttpServerConfig setNumWorkerThreads(int numWorkerThreads) {
+        this.numWorkerThreads = numWorkerThreads;
+        return this;
+    }
+
+    public int getNumWorkerThreads() {
+        return numWorkerThreads;
+    }
+
+    public HttpServerConfig setMaxRequestSize(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+        return this;
+    }
+
+    public int getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public HttpServerConfig setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+        return this;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Request body size past which the body is written to a memory mapped
+     * temporary file as it is read rather than held in buffer memory, 0 to
+     * hold all bodies in memory. With this set maxRequestSize can be raised
+     * for large uploads without raising memory limits.
+     */
+    public HttpServerConfig
+        setRequestSpillThreshold(int requestSpillThreshold) {
+        this.requestSpillThreshold = requestSpillThreshold;
+        return this;
+    }
+
+    public int getRequestSpillThreshold() {
+        return requestSpillThreshold;
+    }
+
+    /**
+     * Directory for spilled request bodies. If null java.io.tmpdir is used.
+     */
+    public HttpServerConfig
+        setRequestSpillDirectory(File requestSpillDirectory) {
+        this.requestSpillDirectory = requestSpillDirectory;
+        return this;
+    }
+
+    public File getRequestSpillDirectory() {
+        return requestSpillDirectory;
+    }
+
+    /**
+     * Seconds without reading anything before a connection is closed. An
+     * idle connection is closed gracefully, after the responses to requests
+     * already read, unless it is idle part way through a request or idle
+     * again while closing, when it is closed at once. The lifetime and
+     * request limits below always close gracefully.
+     */
+    public HttpServerConfig setIdleReadTimeout(int idleReadTimeout) {
+        this.idleReadTimeout = idleReadTimeout;
+        return this;
+    }
+
+    public int getIdleReadTimeout() {
+        return idleReadTimeout;
+    }
+
+    /**
+     * Seconds without writing anything before a connection is closed
+     */
+    public HttpServerConfig setIdleWriteTimeout(int idleWriteTimeout) {
+        this.idleWriteTimeout = idleWriteTimeout;
+        return this;
+    }
+
+    public int getIdleWriteTimeout() {
+        return idleWriteTimeout;
+    }
+
+    /**
+     * Seconds without reading or writing before a connection is closed.
+     * Idle keep-alive connections hold little memory, see
+     * HttpServer.getBufferMemoryPerConnection, but do hold a socket each.
+     */
+    public HttpServerConfig setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Seconds a connection may stay open, plus up to 10% so that
+     * connections opened together are not closed together. Limiting the
+     * lifetime lets clients rebalance across servers.
+     */
+    public HttpServerConfig
+        setMaxConnectionLifetime(int maxConnectionLifetime) {
+        this.maxConnectionLifetime = maxConnectionLifetime;
+        return this;
+    }
+
+    public int getMaxConnectionLifetime() {
+        return maxConnectionLifetime;
+    }
+
+    /**
+     * Maximum number of requests on a connection, or of streams on an
+     * HTTP/2 connection, before it is closed
+     */
+    public HttpServerConfig
+        setMaxConnectionRequests(int maxConnectionRequests) {
+        this.maxConnectionRequests = maxConnectionRequests;
+        return this;
+    }
+
+    public int getMaxConnectionRequests() {
+        return maxConnectionRequests;
+    }
+
+    /**
+     * Socket transport. If null the Transport.TRANSPORT_PROPERTY system
+     * property is used, or the best available transport if that is not set.
+     */
+    public HttpServerConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * If true, and the transport supports SO_REUSEPORT, each port is bound
+     * once per accept thread so that the kernel spreads incoming connections
+     * across all of the accept threads. Otherwise each port is bound once
+     * and only one accept thread accepts for it.
+     */
+    public HttpServerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public boolean getReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * If true, HTTPS channels offer h2 through ALPN and HTTP channels accept
+     * h2c, by upgrade or with prior knowledge. A ServerSslContext is set up
+     * to match. An SslContext passed to the HttpServer must be built with
+     * HttpServer.HTTP2_ALPN_CONFIG for clients to negotiate h2, without it
+     * HTTPS clients use HTTP/1.1.
+     */
+    public HttpServerConfig setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+        return this;
+    }
+
+    public boolean getHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Maximum number of concurrent HTTP/2 streams per connection
+     */
+    public HttpServerConfig setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Maximum number of pipelined requests handled concurrently on an
+     * HTTP/1.1 connection. Responses are still written in request order.
+     * Reads on a connection pause while it is at the limit. 1 handles one
+     * request at a time.
+     */
+    public HttpServerConfig setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+        return this;
+    }
+
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * If true, responses are compressed with gzip or deflate when the client
+     * accepts it, the body is at least the compression threshold and the
+     * content type is compressible.
+     */
+    public HttpServerConfig setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    public boolean getCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Deflate compression level, 1 (fastest) to 9 (smallest)
+     */
+    public HttpServerConfig setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Responses with smaller bodies than this are not compressed
+     */
+    public HttpServerConfig setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Content type prefixes that may be compressed, for example
+     * "application/json" or "text/". If null a default list is used.
+     */
+    public HttpServerConfig
+        setCompressibleContentTypes(String... compressibleContentTypes) {
+        this.compressibleContentTypes = compressibleContentTypes;
+        return this;
+    }
+
+    public String[] getCompressibleContentTypes() {
+        return compressibleContentTypes;
+    }
+
+    /**
+     * Where connection counts and TLS handshake times are recorded, or null
+     * to not collect them. Pass the same instance to ProxyRequestHandler for
+     * request metrics.
+     */
+    public HttpServerConfig setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Maximum number of open connections, 0 for no limit. At the limit the
+     * server stops accepting until a connection closes.
+     */
+    public HttpServerConfig setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Maximum number of requests in flight on each worker event loop, 0 for
+     * no limit. Requests past the limit are answered with 503 and
+     * Retry-After.
+     */
+    public HttpServerConfig setMaxWorkerRequests(int maxWorkerRequests) {
+        this.maxWorkerRequests = maxWorkerRequests;
+        return this;
+    }
+
+    public int getMaxWorkerRequests() {
+        return maxWorkerRequests;
+    }
+
+    /**
+     * Maximum number of open connections from one client address, 0 for no
+     * limit. Connections past the limit are closed when accepted.
+     */
+    public HttpServerConfig setMaxClientConnections(int maxClientConnections) {
+        this.maxClientConnections = maxClientConnections;
+        return this;
+    }
+
+    public int getMaxClientConnections() {
+        return maxClientConnections;
+    }
+
+    /**
+     * How often, in milliseconds, each event loop is probed for its
+     * scheduling delay, 0 to not monitor event loops. See
+     * EventLoopMonitor.
+     */
+    public HttpServerConfig
+        setEventLoopProbeInterval(int eventLoopProbeInterval) {
+        this.eventLoopProbeInterval = eventLoopProbeInterval;
+        return this;
+    }
+
+    public int getEventLoopProbeInterval() {
+        return eventLoopProbeInterval;
+    }
+
+    /**
+     * How long, in milliseconds, an event loop can go without running a
+     * probe before it is reported as stalled, with a stack sample of its
+     * thread
+     */
+    public HttpServerConfig
+        setEventLoopStallThreshold(int eventLoopStallThreshold) {
+        this.eventLoopStallThreshold = eventLoopStallThreshold;
+        return this;
+    }
+
+    public int getEventLoopStallThreshold() {
+        return eventLoopStallThreshold;
+    }
+
+    /**
+     * SSL context for the HTTPS port. It is used if no SslContext is passed
+     * to the HttpServer constructor.
+     */
+    public HttpServerConfig setSslContext(ServerSslContext sslContext) {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    public ServerSslContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * How often, in seconds, the server checks the files of the
+     * ServerSslContext for changes and reloads them, 0 to not check
+     */
+    public HttpServerConfig setSslReloadInterval(int sslReloadInterval) {
+        this.sslReloadInterval = sslReloadInterval;
+        return this;
+    }
+
+    public int getSslReloadInterval() {
+        return sslReloadInterval;
+    }
+}
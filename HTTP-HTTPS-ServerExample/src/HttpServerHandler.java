@@ -1,6 +1,8 @@
 import static oracle.nosql.common.http.Constants.CONNECTION;
 import static oracle.nosql.common.http.Constants.KEEP_ALIVE;
 
+import java.util.concurrent.CompletableFuture;
+
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -9,17 +11,30 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpUtil;
-import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.util.AsciiString;
 import io.netty.util.ReferenceCountUtil;
 
 @Sharable
 final class HttpServerHandler extends ChannelInboundHandlerAdapter {
 
+    private static final AsciiString CONNECTION_NAME =
+        AsciiString.cached(CONNECTION);
+    private static final AsciiString KEEP_ALIVE_VALUE =
+        AsciiString.cached(KEEP_ALIVE);
+
     private final RequestHandler handler;
+    private final AdmissionControl admission;
     private final SkLogger logger;
 
     HttpServerHandler(RequestHandler handler, SkLogger logger) {
+        this(handler, new AdmissionControl(0, 0), logger);
+    }
+
+    HttpServerHandler(RequestHandler handler,
+                      AdmissionControl admission,
+                      SkLogger logger) {
         this.handler = handler;
+        this.admission = admission;
         this.logger = logger;
     }
 
@@ -32,6 +47,21 @@ final class HttpServerHandler extends ChannelInboundHandlerAdapter {
      * Handles a data request. This handler requires a FullHttpRequest as
      * constructed by an HttpObjectAggregator in the pipeline.
      *
+     * If the RequestHandler is an AsyncRequestHandler the response may be
+     * completed on another thread. The request is retained until then. On
+     * an HTTP/1.1 connection with an HttpPipeliningHandler, further
+     * pipelined requests are handled meanwhile and that handler puts the
+     * responses in order. Otherwise reads on the channel are suspended
+     * while a response is outstanding, which slows a client down but does
+     * not order its responses: requests already decoded from the last read
+     * are still delivered, and may be answered out of order. Only the
+     * HttpPipeliningHandler keeps pipelined responses in order.
+     *
+     * Requests the codec failed to decode are answered with 400, and the
+     * channel closed, without calling the RequestHandler. Requests past the
+     * AdmissionControl per worker limit are answered with 503 without
+     * calling it.
+     *
      * TODO: should keepalive move to the handler?
      */
     @Override
@@ -42,32 +72,43 @@ final class HttpServerHandler extends ChannelInboundHandlerAdapter {
                 FullHttpRequest req = (FullHttpRequest) msg;
 
                 final boolean keepAlive = HttpUtil.isKeepAlive(req);
+                final long sequence = HttpPipeliningHandler.sequence(ctx);
+
+                if (req.decoderResult().isFailure()) {
+                    logger.info("HttpServerHandler malformed request, " +
+                                "closing channel: " + ctx.channel() +
+                                ", cause: " + req.decoderResult().cause());
+                    rejectMalformed(ctx, sequence);
+                    return;
+                }
+
+                if (!admission.acquireRequest()) {
+                    final FullHttpResponse overloaded =
+                        AdmissionControl.overloadedResponse();
+                    ProxyRequestHandler.addRequiredHeaders(overloaded);
+                    writeResponse(ctx, sequence, overloaded, keepAlive);
+                    return;
+                }
+
+                if (handler instanceof AsyncRequestHandler) {
+                    handleAsync(ctx, req, sequence, keepAlive);
+                    return;
+                }
 
                 /*
                  * Handle the request
                  *
                  * NOTE: should this be handed off for fully async proxy,
-                 * keeping the event loop short?
+                 * keeping the event loop short? See AsyncRequestHandler.
                  */
-                FullHttpResponse response = handler.handleRequest(req, ctx);
-
-                if (keepAlive) {
-                    response.headers().set(CONNECTION, KEEP_ALIVE);
+                FullHttpResponse response;
+                try {
+                    response = handler.handleRequest(req, ctx);
+                } finally {
+                    admission.releaseRequest();
                 }
 
-                final ChannelFuture f = ctx.writeAndFlush(response);
-                f.addListener(new ChannelFutureListener() {
-                        @Override
-                        public void operationComplete(ChannelFuture future) {
-                            if (!keepAlive) {
-                                /*
-                                 * This is not generally the case. The cloud
-                                 * driver sets keep-alive to re-use connections
-                                 */
-                                ctx.close();
-                            }
-                        }
-                    });
+                writeResponse(ctx, sequence, response, keepAlive);
             } else {
                 logger.warning("HttpServerHandler channelRead not instance of "
                                + "FullHttpRequest: " + msg.getClass());
@@ -77,18 +118,111 @@ final class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private void handleAsync(ChannelHandlerContext ctx,
+                             FullHttpRequest req,
+                             long sequence,
+                             boolean keepAlive) {
+
+        /* released when the response completes */
+        req.retain();
+        final CompletableFuture<FullHttpResponse> future;
+        try {
+            future = ((AsyncRequestHandler) handler).handleRequestAsync(req,
+                                                                        ctx);
+        } catch (RuntimeException re) {
+            req.release();
+            admission.releaseRequest();
+            throw re;
+        }
+
+        /*
+         * A future that is already complete was handled inline, and the
+         * completion below runs immediately on this thread.
+         */
+        final boolean pauseReads = (sequence < 0 && !future.isDone());
+        if (pauseReads) {
+            ReadSuspension.suspend(ctx.channel());
+        }
+        future.whenComplete((response, t) -> {
+                if (ctx.executor().inEventLoop()) {
+                    completeAsync(ctx, req, sequence, pauseReads, keepAlive,
+                                  response, t);
+                } else {
+                    ctx.executor().execute(
+                        () -> completeAsync(ctx, req, sequence, pauseReads,
+                                            keepAlive, response, t));
+                }
+            });
+    }
+
+    /**
+     * Called on the event loop when an async request completes, exceptionally
+     * if t is not null.
+     */
+    private void completeAsync(ChannelHandlerContext ctx,
+                               FullHttpRequest req,
+                               long sequence,
+                               boolean pauseReads,
+                               boolean keepAlive,
+                               FullHttpResponse response,
+                               Throwable t) {
+        req.release();
+        admission.releaseRequest();
+        if (pauseReads) {
+            ReadSuspension.resume(ctx.channel());
+        }
+        if (t != null) {
+            exceptionCaught(ctx, t);
+            return;
+        }
+        writeResponse(ctx, sequence, response, keepAlive);
+    }
+
+    /**
+     * Answers a request the codec could not decode with a bad request and
+     * closes the channel once it is written. The decoder discards the rest
+     * of the connection's input after a bad message, so it cannot be kept.
+     */
+    static void rejectMalformed(ChannelHandlerContext ctx, long sequence) {
+        writeResponse(ctx, sequence, ProxyRequestHandler.badResponse(),
+                      false);
+    }
+
+    /**
+     * Writes a response, setting the keep-alive header or closing the
+     * channel once written as appropriate.
+     *
+     * @param sequence the request's HttpPipeliningHandler sequence, or -1
+     */
+    static void writeResponse(ChannelHandlerContext ctx,
+                              long sequence,
+                              FullHttpResponse response,
+                              boolean keepAlive) {
+        if (keepAlive) {
+            response.headers().set(CONNECTION_NAME, KEEP_ALIVE_VALUE);
+        }
+
+        final ChannelFuture f = ctx.writeAndFlush(
+            HttpPipeliningHandler.sequenced(sequence, response));
+        f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!keepAlive) {
+                        /*
+                         * This is not generally the case. The cloud
+                         * driver sets keep-alive to re-use connections
+                         */
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
 
-        /* note idle channel timeouts in the log */
-        if (cause instanceof ReadTimeoutException) {
-            logger.fine(
-                "HttpServerHandler idle channel timeout, closing channel: " +
-                ctx.channel() + ": " + cause.getMessage());
-        } else {
-            logger.info("HttpServerHandler exception caught, closing channel: " +
-                        ctx.channel() + ", cause: " + cause.getMessage());
-        }
+        logger.info("HttpServerHandler exception caught, closing channel: " +
+                    ctx.channel() + ", cause: " + cause.getMessage());
         ctx.close();
     }
 
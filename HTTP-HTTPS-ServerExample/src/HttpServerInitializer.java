@@ -1,64 +1,342 @@
+import java.io.File;
 
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
 import oracle.nosql.common.sklogger.SkLogger;
 
-final class HttpServerInitializer extends ChannelInitializer<SocketChannel> {
+final class HttpServerInitializer extends ChannelInitializer<Channel> {
     private static final String CODEC_HANDLER_NAME = "http-codec";
     private static final String AGG_HANDLER_NAME = "http-aggregator";
+    private static final String STREAMING_HANDLER_NAME =
+        "http-streaming-handler";
     private static final String HTTP_HANDLER_NAME = "http-server-handler";
-    private static final String READ_TIMEOUT_HANDLER_NAME =
-        "http-read-timeout-handler";
+    private static final String IDLE_STATE_HANDLER_NAME =
+        "http-idle-state-handler";
+    private static final String POLICY_HANDLER_NAME =
+        "http-connection-policy";
+    private static final String ALPN_HANDLER_NAME = "http-alpn-handler";
+    private static final String H2C_HANDLER_NAME = "http-h2c-handler";
+    private static final String COMPRESSOR_HANDLER_NAME = "http-compressor";
+    private static final String PIPELINING_HANDLER_NAME = "http-pipelining";
+    private static final String CHUNKED_WRITE_HANDLER_NAME =
+        "http-chunked-write";
+    private static final String FILE_RESPONSE_HANDLER_NAME =
+        "http-file-response";
+    private static final String METRICS_HANDLER_NAME =
+        "http-connection-metrics";
+    private static final String ADMISSION_HANDLER_NAME =
+        "http-admission-handler";
+    private static final String H2_STREAM_CODEC_HANDLER_NAME =
+        "http2-stream-codec";
 
     private final HttpServerHandler handler;
+    private final StreamingRequestHandler streamingHandler;
     private final int maxChunkSize;
     private final int maxRequestSize;
+    private final int requestSpillThreshold;
+    private final File requestSpillDirectory;
     private final int idleReadTimeout;
+    private final int idleWriteTimeout;
+    private final int idleTimeout;
+    private final int maxConnectionRequests;
+    private final boolean http2Enabled;
+    private final int maxConcurrentStreams;
+    private final int maxPipelineDepth;
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final String[] compressibleContentTypes;
+
+    /* shared by all connections, or null if metrics are not collected */
+    private final ConnectionMetricsHandler metricsHandler;
+
+    /* writes FileHttpResponses, shared by all channels */
+    private final FileResponseEncoder fileResponseEncoder;
+
+    /* the connection and worker request limits */
+    private final AdmissionControl admission;
+
+    /* enforces the connection limit, shared by all connections */
+    private final ChannelHandler admissionHandler;
+
+    /*
+     * closes connections by the idle, lifetime and request limits, shared
+     * by all connections, or null if there are no limits
+     */
+    private final ConnectionPolicyHandler policyHandler;
     private final SkLogger logger;
-    private final SslContext sslCtx;
+
+    /* the HTTPS context, or null for HTTP */
+    private final ServerSslContext sslCtx;
+
+    /* initializes each HTTP/2 stream channel, shared by all connections */
+    private final ChannelInitializer<Channel> streamInitializer =
+        new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                final ChannelPipeline p = ch.pipeline();
+                if (policyHandler != null) {
+                    policyHandler.streamOpened(ch.parent());
+                }
+                p.addLast(H2_STREAM_CODEC_HANDLER_NAME,
+                          new Http2StreamFrameToHttpObjectCodec(true));
+                addHttpHandlers(p, false);
+            }
+        };
+
+    /*
+     * h2c: the upgrade codec factory, and the removers for an upgraded
+     * connection and for one that starts with the HTTP/2 preface. They are
+     * shared by all connections, and the HTTP/2 handlers are only created
+     * once a connection switches.
+     */
+    private final Http1HandlerRemover upgradeRemover =
+        new Http1HandlerRemover(false);
+    private final Http1HandlerRemover priorKnowledgeRemover =
+        new Http1HandlerRemover(true);
+    private final HttpServerUpgradeHandler.UpgradeCodecFactory
+        upgradeCodecFactory = protocol -> {
+            if (!AsciiString.contentEquals(
+                    Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return null;
+            }
+            return new Http2ServerUpgradeCodec(newHttp2FrameCodec(),
+                                               newHttp2MultiplexHandler(),
+                                               upgradeRemover);
+        };
 
     public HttpServerInitializer(HttpServerHandler handler,
                                  HttpServer server,
-                                 SslContext sslCtx,
+                                 ServerSslContext sslCtx,
                                  SkLogger logger) {
 
         this.handler = handler;
+        this.streamingHandler = server.getStreamingRequestHandler();
         this.logger = logger;
         this.maxRequestSize = server.getMaxRequestSize();
         this.maxChunkSize = server.getMaxChunkSize();
+        this.requestSpillThreshold = server.getRequestSpillThreshold();
+        this.requestSpillDirectory = server.getRequestSpillDirectory();
         this.idleReadTimeout = server.getIdleReadTimeout();
+        this.idleWriteTimeout = server.getIdleWriteTimeout();
+        this.idleTimeout = server.getIdleTimeout();
+        this.maxConnectionRequests = server.getMaxConnectionRequests();
+        this.http2Enabled = server.getHttp2Enabled();
+        this.maxConcurrentStreams = server.getMaxConcurrentStreams();
+        this.maxPipelineDepth = server.getMaxPipelineDepth();
+        this.compressionLevel = server.getCompressionLevel();
+        this.compressionThreshold = server.getCompressionThreshold();
+        this.compressibleContentTypes = server.getCompressibleContentTypes();
+        this.admission = server.getAdmissionControl();
+        this.admissionHandler = admission.getConnectionHandler();
+        this.metricsHandler = (server.getMetrics() != null ?
+                               new ConnectionMetricsHandler(
+                                   server.getMetrics()) : null);
         this.sslCtx = sslCtx;
+        this.fileResponseEncoder =
+            new FileResponseEncoder(server.getTransport().supportsFileRegion());
+
+        final long maxLifetime = server.getMaxConnectionLifetime() * 1000L;
+        this.policyHandler =
+            (idleReadTimeout > 0 || idleWriteTimeout > 0 || idleTimeout > 0 ||
+             maxLifetime > 0 || maxConnectionRequests > 0 ?
+             new ConnectionPolicyHandler(maxLifetime, maxConnectionRequests,
+                                         logger) : null);
     }
 
     /**
      * Initialize a channel with handlers that:
      * 1 -- handle and HTTP
-     * 2 -- handle chunked HTTP requests implicitly, only calling channelRead
-     * with FullHttpRequest.
-     * 3 -- the request handler itself
+     * 2 -- if enabled, compress responses that are large enough and have a
+     * compressible content type
+     * 3 -- write FileHttpResponses from their files, and on HTTP/1.1
+     * connections handle pipelined requests concurrently and write their
+     * responses in order
+     * 4 -- if the request handler supports it, divert requests for
+     * StreamingServices so that their bodies are not aggregated
+     * 5 -- handle chunked HTTP requests implicitly, only calling channelRead
+     * with FullHttpRequest. If configured, large bodies are spilled to
+     * temporary files.
+     * 6 -- the request handler itself
      *
-     * TODO: HttpContentCompressor, other options?
+     * If HTTP/2 is enabled, HTTPS channels negotiate h2 or http/1.1 with
+     * ALPN, and HTTP channels accept h2c by upgrade or prior knowledge. An
+     * HTTP/2 connection gets a frame codec and a multiplexer that creates a
+     * child channel per stream. Each stream channel converts its frames to
+     * HTTP/1.1 objects and then runs 2 and 4-6 above, so existing Services
+     * handle HTTP/2 requests unchanged.
      */
     @Override
-    public void initChannel(SocketChannel ch) {
+    public void initChannel(Channel ch) {
         logger.fine("HttpServiceInitializer, initializing new channel");
         ChannelPipeline p = ch.pipeline();
+        p.addLast(ADMISSION_HANDLER_NAME, admissionHandler);
         if (sslCtx != null) {
-            p.addLast(sslCtx.newHandler(ch.alloc()));
+            /* the current context, which may be reloaded */
+            p.addLast(sslCtx.get().newHandler(ch.alloc()));
+        }
+        if (metricsHandler != null) {
+            p.addLast(METRICS_HANDLER_NAME, metricsHandler);
+        }
+        if (idleReadTimeout > 0 || idleWriteTimeout > 0 || idleTimeout > 0) {
+            p.addLast(IDLE_STATE_HANDLER_NAME,
+                      new IdleStateHandler(idleReadTimeout, idleWriteTimeout,
+                                           idleTimeout));
+        }
+        if (policyHandler != null) {
+            p.addLast(POLICY_HANDLER_NAME, policyHandler);
+        }
+
+        if (!http2Enabled) {
+            p.addLast(CODEC_HANDLER_NAME, newHttpServerCodec());
+            addHttpHandlers(p, true);
+            return;
+        }
+
+        if (sslCtx != null) {
+            p.addLast(ALPN_HANDLER_NAME,
+                      new ApplicationProtocolNegotiationHandler(
+                          ApplicationProtocolNames.HTTP_1_1) {
+                    @Override
+                    protected void configurePipeline(ChannelHandlerContext ctx,
+                                                     String protocol) {
+                        final ChannelPipeline cp = ctx.pipeline();
+                        if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                            cp.addLast(newHttp2FrameCodec(),
+                                       newHttp2MultiplexHandler());
+                        } else {
+                            cp.addLast(CODEC_HANDLER_NAME,
+                                       newHttpServerCodec());
+                            addHttpHandlers(cp, true);
+                        }
+                    }
+                });
+            return;
+        }
+
+        /*
+         * h2c. The cleartext handler adds the HTTP/1.1 codec and upgrade
+         * handler after itself. Requests that neither upgrade nor start with
+         * the HTTP/2 preface stay HTTP/1.1 and go to the handlers added below.
+         */
+        final HttpServerCodec codec = newHttpServerCodec();
+        final HttpServerUpgradeHandler upgradeHandler =
+            new HttpServerUpgradeHandler(codec, upgradeCodecFactory,
+                                         maxRequestSize);
+        p.addLast(H2C_HANDLER_NAME,
+                  new CleartextHttp2ServerUpgradeHandler(
+                      codec, upgradeHandler, priorKnowledgeRemover));
+        addHttpHandlers(p, true);
+    }
+
+    private HttpServerCodec newHttpServerCodec() {
+        return new HttpServerCodec(4096, // initial line
+                                   8192, // header size
+                                   maxChunkSize); // chunksize
+    }
+
+    /**
+     * Adds the handlers that follow the codec, on a connection for HTTP/1.1
+     * or on a stream channel for HTTP/2.
+     *
+     * @param http1 true for an HTTP/1.1 connection, which may pipeline
+     */
+    private void addHttpHandlers(ChannelPipeline p, boolean http1) {
+        if (compressibleContentTypes != null) {
+            p.addLast(COMPRESSOR_HANDLER_NAME,
+                      new HttpResponseCompressor(compressionLevel,
+                                                 compressionThreshold,
+                                                 compressibleContentTypes));
+        }
+        p.addLast(CHUNKED_WRITE_HANDLER_NAME, new ChunkedWriteHandler());
+        p.addLast(FILE_RESPONSE_HANDLER_NAME, fileResponseEncoder);
+        if (http1) {
+            p.addLast(PIPELINING_HANDLER_NAME,
+                      new HttpPipeliningHandler(maxPipelineDepth,
+                                                maxConnectionRequests));
+        }
+        if (streamingHandler != null) {
+            p.addLast(STREAMING_HANDLER_NAME,
+                      new HttpStreamingHandler(streamingHandler, admission,
+                                               logger));
         }
-        p.addLast(READ_TIMEOUT_HANDLER_NAME,
-                  new ReadTimeoutHandler(idleReadTimeout));
-        p.addLast(CODEC_HANDLER_NAME,
-                  new HttpServerCodec(4096, // initial line
-                                      8192, // header size
-                                      maxChunkSize)); // chunksize
         p.addLast(AGG_HANDLER_NAME,
-                  new HttpObjectAggregator(maxRequestSize));
+                  (requestSpillThreshold > 0 ?
+                   new SpillingHttpObjectAggregator(maxRequestSize,
+                                                    requestSpillThreshold,
+                                                    requestSpillDirectory) :
+                   new HttpObjectAggregator(maxRequestSize)));
         p.addLast(HTTP_HANDLER_NAME, handler);
     }
+
+    private Http2FrameCodec newHttp2FrameCodec() {
+        return Http2FrameCodecBuilder.forServer()
+            .initialSettings(Http2Settings.defaultSettings()
+                             .maxConcurrentStreams(maxConcurrentStreams))
+            .build();
+    }
+
+    private Http2MultiplexHandler newHttp2MultiplexHandler() {
+        /* the second handler takes the request that carried an h2c upgrade */
+        return new Http2MultiplexHandler(streamInitializer, streamInitializer);
+    }
+
+    /**
+     * Removes the connection level HTTP/1.1 handlers once a connection has
+     * switched to HTTP/2, then removes itself. For an h2c upgrade the HTTP/2
+     * handlers are added by the upgrade codec. For prior knowledge they are
+     * created here and added in this handler's place, ahead of the
+     * HTTP/1.1 handlers.
+     */
+    @ChannelHandler.Sharable
+    private final class Http1HandlerRemover extends ChannelHandlerAdapter {
+
+        private final boolean priorKnowledge;
+
+        Http1HandlerRemover(boolean priorKnowledge) {
+            this.priorKnowledge = priorKnowledge;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            final ChannelPipeline p = ctx.pipeline();
+            if (priorKnowledge) {
+                final ChannelHandler codec = newHttp2FrameCodec();
+                p.addAfter(ctx.name(), null, codec);
+                p.addAfter(p.context(codec).name(), null,
+                           newHttp2MultiplexHandler());
+            }
+            for (String name : new String[] { COMPRESSOR_HANDLER_NAME,
+                                              CHUNKED_WRITE_HANDLER_NAME,
+                                              FILE_RESPONSE_HANDLER_NAME,
+                                              PIPELINING_HANDLER_NAME,
+                                              STREAMING_HANDLER_NAME,
+                                              AGG_HANDLER_NAME,
+                                              HTTP_HANDLER_NAME }) {
+                if (p.get(name) != null) {
+                    p.remove(name);
+                }
+            }
+            p.remove(this);
+        }
+    }
 }
@@ -0,0 +1,270 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * Sits between the HTTP codec and the aggregator and diverts requests for
+ * StreamingServices away from aggregation. Request heads are offered to the
+ * StreamingRequestHandler. If it accepts one, that request's content is fed
+ * to the StreamingRequest chunk by chunk and the response is written by this
+ * handler. Otherwise the request passes through to the aggregator unchanged.
+ *
+ * A request head or content the codec failed to decode is answered with
+ * 400 and the channel closed; a streamed request is aborted first.
+ *
+ * Streamed requests count against the AdmissionControl per worker limit
+ * from their head until their response is ready or they are aborted. One
+ * past the limit is aborted, its body discarded and it is answered with
+ * 503.
+ *
+ * Reads are suspended, see ReadSuspension, while a chunk is being consumed
+ * asynchronously and while a streamed response is outstanding. Responses,
+ * and any 100 Continue, are tagged for the HttpPipeliningHandler, if there
+ * is one, so they are written in order with those of aggregated requests.
+ *
+ * This handler keeps per-request state so an instance is created for each
+ * channel.
+ */
+final class HttpStreamingHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * Takes a streamed request past the per worker limit. The body is
+     * discarded and the request is answered with 503.
+     */
+    private static final StreamingService.StreamingRequest OVERLOADED =
+        new StreamingService.StreamingRequest() {
+            @Override
+            public CompletableFuture<Void> onContent(HttpContent content) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<FullHttpResponse> onComplete() {
+                final FullHttpResponse response =
+                    AdmissionControl.overloadedResponse();
+                ProxyRequestHandler.addRequiredHeaders(response);
+                return CompletableFuture.completedFuture(response);
+            }
+
+            @Override
+            public void onAbort(Throwable cause) {
+            }
+        };
+
+    private final StreamingRequestHandler handler;
+    private final AdmissionControl admission;
+    private final SkLogger logger;
+
+    /* the request being streamed, null if none or if passing through */
+    private StreamingService.StreamingRequest current;
+
+    /* the streamed request holding a worker request, if any */
+    private StreamingService.StreamingRequest admitted;
+
+    /* true while the content of the current request passes through */
+    private boolean passThrough;
+
+    private boolean keepAlive;
+
+    /* the current request's HttpPipeliningHandler sequence */
+    private long sequence;
+
+    HttpStreamingHandler(StreamingRequestHandler handler,
+                         AdmissionControl admission,
+                         SkLogger logger) {
+        this.handler = handler;
+        this.admission = admission;
+        this.logger = logger;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest) {
+            final HttpRequest req = (HttpRequest) msg;
+            if (req.decoderResult().isFailure()) {
+                /* the decoder passes nothing more on this connection */
+                current = null;
+                passThrough = false;
+                ReferenceCountUtil.release(msg);
+                logger.info("HttpStreamingHandler malformed request, " +
+                            "closing channel: " + ctx.channel() +
+                            ", cause: " + req.decoderResult().cause());
+                HttpServerHandler.rejectMalformed(
+                    ctx, HttpPipeliningHandler.sequence(ctx));
+                return;
+            }
+            current = handler.startStreaming(req, ctx);
+            if (current == null) {
+                passThrough = true;
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            passThrough = false;
+            keepAlive = HttpUtil.isKeepAlive(req);
+            sequence = HttpPipeliningHandler.sequence(ctx);
+            if (admission.acquireRequest()) {
+                admitted = current;
+            } else {
+                final StreamingService.StreamingRequest rejected = current;
+                current = OVERLOADED;
+                rejected.onAbort(new IllegalStateException(
+                                     "Worker request limit reached"));
+            }
+            if (HttpUtil.is100ContinueExpected(req)) {
+                ctx.writeAndFlush(HttpPipeliningHandler.sequenced(
+                    sequence, new DefaultFullHttpResponse(HTTP_1_1, CONTINUE)));
+            }
+
+            /* the head may also carry content, e.g. a FullHttpRequest */
+            if (!(msg instanceof HttpContent)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+        }
+
+        if (!(msg instanceof HttpContent) || passThrough || current == null) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        final StreamingService.StreamingRequest request = current;
+        final HttpContent content = (HttpContent) msg;
+        if (content.decoderResult().isFailure()) {
+            final Throwable cause = content.decoderResult().cause();
+            current = null;
+            ReferenceCountUtil.release(msg);
+            logger.info("HttpStreamingHandler malformed request content, " +
+                        "closing channel: " + ctx.channel() + ", cause: " +
+                        cause);
+            release(request);
+            try {
+                request.onAbort(cause);
+            } finally {
+                HttpServerHandler.rejectMalformed(ctx, sequence);
+            }
+            return;
+        }
+        final boolean last = content instanceof LastHttpContent;
+        CompletableFuture<Void> accepted;
+        try {
+            accepted = request.onContent(content);
+        } catch (RuntimeException re) {
+            accepted = new CompletableFuture<Void>();
+            accepted.completeExceptionally(re);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+        if (accepted == null) {
+            accepted = CompletableFuture.completedFuture(null);
+        }
+
+        if (last) {
+            current = null;
+        }
+        /* after the last chunk, resumed by complete */
+        final boolean suspended = (!accepted.isDone() || last);
+        if (suspended) {
+            ReadSuspension.suspend(ctx.channel());
+        }
+
+        accepted.whenComplete((v, t) -> {
+                onEventLoop(ctx, () -> {
+                        if (t != null) {
+                            abort(ctx, request, t);
+                        } else if (last) {
+                            complete(ctx, request);
+                        } else if (suspended) {
+                            ReadSuspension.resume(ctx.channel());
+                        }
+                    });
+            });
+    }
+
+    private void complete(ChannelHandlerContext ctx,
+                          StreamingService.StreamingRequest request) {
+        final boolean ka = keepAlive;
+        final long seq = sequence;
+        CompletableFuture<FullHttpResponse> future;
+        try {
+            future = request.onComplete();
+        } catch (RuntimeException re) {
+            future = new CompletableFuture<FullHttpResponse>();
+            future.completeExceptionally(re);
+        }
+        future.whenComplete((response, t) -> {
+                onEventLoop(ctx, () -> {
+                        release(request);
+                        ReadSuspension.resume(ctx.channel());
+                        if (t != null) {
+                            fail(ctx, t);
+                            return;
+                        }
+                        HttpServerHandler.writeResponse(ctx, seq, response,
+                                                        ka);
+                    });
+            });
+    }
+
+    private void abort(ChannelHandlerContext ctx,
+                       StreamingService.StreamingRequest request,
+                       Throwable cause) {
+        if (current == request) {
+            current = null;
+        }
+        release(request);
+        try {
+            request.onAbort(cause);
+        } finally {
+            fail(ctx, cause);
+        }
+    }
+
+    private void fail(ChannelHandlerContext ctx, Throwable cause) {
+        logger.info("HttpStreamingHandler streamed request failed, closing " +
+                    "channel: " + ctx.channel() + ", cause: " +
+                    cause.getMessage());
+        ctx.close();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        final StreamingService.StreamingRequest request = current;
+        if (request != null) {
+            current = null;
+            release(request);
+            request.onAbort(new ClosedChannelException());
+        }
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * Releases the worker request held by a streamed request, once
+     */
+    private void release(StreamingService.StreamingRequest request) {
+        if (admitted == request) {
+            admitted = null;
+            admission.releaseRequest();
+        }
+    }
+
+    private static void onEventLoop(ChannelHandlerContext ctx, Runnable r) {
+        if (ctx.executor().inEventLoop()) {
+            r.run();
+        } else {
+            ctx.executor().execute(r);
+        }
+    }
+}
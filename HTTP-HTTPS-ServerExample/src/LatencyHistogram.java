@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets. Values are
+ * recorded in microseconds. Values below 16 get a bucket each, above that
+ * every power of two is split into 8 buckets, so a reported percentile is
+ * within 12.5% of the recorded value. Recording is one atomic increment on
+ * a bucket plus striped updates of the count and sum.
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /* exponents 4 through 62 */
+    private static final int NUM_BUCKETS =
+        LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSumMicros() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the value at the given quantile, 0.0 to 1.0, in microseconds,
+     * or 0 if nothing has been recorded. The value is the upper bound of the
+     * bucket that holds the quantile.
+     */
+    long getQuantileMicros(double quantile) {
+        final long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(NUM_BUCKETS - 1);
+    }
+
+    static int bucketIndex(long v) {
+        if (v < LINEAR_BUCKETS) {
+            return (int) v;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(v);
+        final int sub = (int) (v >>> (exp - SUB_BUCKET_BITS)) &
+            (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exp - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int exp = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        final int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        final long width = 1L << (exp - SUB_BUCKET_BITS);
+        return (1L << exp) + (sub + 1) * width - 1;
+    }
+}
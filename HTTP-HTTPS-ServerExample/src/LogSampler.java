@@ -0,0 +1,42 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits a repetitive log message to a number of lines per interval. Callers
+ * ask before building the message, so suppressed messages cost a few atomic
+ * operations. The next line logged reports how many were suppressed.
+ */
+final class LogSampler {
+
+    private final int maxPerInterval;
+    private final long intervalNanos;
+
+    private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger logged = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+
+    LogSampler(int maxPerInterval, long intervalMillis) {
+        this.maxPerInterval = maxPerInterval;
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Returns -1 if the message should not be logged, otherwise the number of
+     * messages suppressed since the last one logged. The interval boundary
+     * is not exact when threads race on it.
+     */
+    long sample() {
+        final long now = System.nanoTime();
+        final long start = intervalStart.get();
+        if (now - start >= intervalNanos &&
+            intervalStart.compareAndSet(start, now)) {
+            logged.set(0);
+        }
+        if (logged.incrementAndGet() > maxPerInterval) {
+            suppressed.increment();
+            return -1;
+        }
+        return suppressed.sumThenReset();
+    }
+}
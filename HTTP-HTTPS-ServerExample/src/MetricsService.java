@@ -0,0 +1,58 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static oracle.nosql.common.http.Constants.CONTENT_LENGTH;
+import static oracle.nosql.common.http.Constants.CONTENT_TYPE;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import oracle.nosql.common.contextlogger.LogContext;
+
+/**
+ * Serves ServerMetrics in the Prometheus text exposition format. Register it
+ * with ProxyRequestHandler, for example:
+ *
+ *   handler.addService("metrics", new MetricsService(metrics),
+ *                      ServiceRoute.exact(MetricsService.PATH));
+ */
+public final class MetricsService implements Service {
+
+    public static final String PATH = "metrics";
+
+    private static final String PROMETHEUS_CONTENT_TYPE =
+        "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ServerMetrics metrics;
+
+    public MetricsService(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(FullHttpRequest request,
+                                          ChannelHandlerContext ctx,
+                                          LogContext lc) {
+        final StringBuilder sb = new StringBuilder(8192);
+        metrics.writePrometheus(sb);
+        final ByteBuf content =
+            ByteBufUtil.encodeString(ctx.alloc(),
+                                     CharBuffer.wrap(sb),
+                                     StandardCharsets.UTF_8);
+        final FullHttpResponse response =
+            new DefaultFullHttpResponse(HTTP_1_1, OK, content);
+        response.headers().set(CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE);
+        response.headers().set(CONTENT_LENGTH, content.readableBytes());
+        return response;
+    }
+
+    @Override
+    public boolean lookupService(String uri) {
+        return PATH.equals(uri);
+    }
+}
@@ -9,82 +9,372 @@ import static oracle.nosql.common.http.Constants.X_CONTENT_TYPE_OPTIONS_VALUE;
 import static oracle.nosql.common.http.Constants.X_FORWARDED_FOR;
 import static oracle.nosql.common.http.Constants.X_REAL_IP;
 
-import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AsciiString;
 import oracle.nosql.common.contextlogger.LogContext;
 import oracle.nosql.common.sklogger.SkLogger;
 
-public final class ProxyRequestHandler implements RequestHandler {
+public final class ProxyRequestHandler
+    implements AsyncRequestHandler, StreamingRequestHandler {
+
+    /* default per client rate and burst of requests for unknown services */
+    private static final double DEFAULT_UNKNOWN_SERVICE_RATE = 10;
+    private static final int DEFAULT_UNKNOWN_SERVICE_BURST = 100;
+
+    /* clients tracked by the unknown service rate limit */
+    private static final int MAX_RATE_LIMITED_CLIENTS = 65536;
+
+    /* most LogContext ids cached per route path, see logContextId */
+    private static final int MAX_LOG_CONTEXT_METHODS = 8;
+
+    /* "METHOD " prefixes of LogContext ids for the standard methods */
+    private static final Map<HttpMethod, String> LOG_CONTEXT_PREFIXES =
+        new HashMap<HttpMethod, String>();
+    static {
+        for (HttpMethod m : new HttpMethod[] {
+                HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT,
+                HttpMethod.DELETE, HttpMethod.HEAD, HttpMethod.OPTIONS,
+                HttpMethod.PATCH, HttpMethod.TRACE, HttpMethod.CONNECT }) {
+            LOG_CONTEXT_PREFIXES.put(m, m.name() + " ");
+        }
+    }
+
+    /*
+     * Header names and values set on every response, as AsciiStrings so
+     * that they are hashed once and written without encoding
+     */
+    private static final AsciiString X_CONTENT_TYPE_OPTIONS_NAME =
+        AsciiString.cached(X_CONTENT_TYPE_OPTIONS);
+    private static final AsciiString X_CONTENT_TYPE_OPTIONS_ASCII =
+        AsciiString.cached(X_CONTENT_TYPE_OPTIONS_VALUE);
+    private static final AsciiString CONTENT_DISPOSITION_NAME =
+        AsciiString.cached(CONTENT_DISPOSITION);
+    private static final AsciiString CONTENT_DISPOSITION_ASCII =
+        AsciiString.cached(CONTENT_DISPOSITION_VALUE);
+
+    /* built once, copied into each bad request response */
+    private static final HttpHeaders BAD_REQUEST_HEADERS =
+        new DefaultHttpHeaders()
+        .set(AsciiString.cached(CONTENT_LENGTH), AsciiString.cached("0"))
+        .set(X_CONTENT_TYPE_OPTIONS_NAME, X_CONTENT_TYPE_OPTIONS_ASCII)
+        .set(CONTENT_DISPOSITION_NAME, CONTENT_DISPOSITION_ASCII);
 
     final SkLogger logger;
-    final Map<String, Service> services;
     final LogControl logControl;
 
+    /*
+     * The current service index. It is replaced, never modified, when
+     * services are added or removed, so request threads read it without
+     * locking.
+     */
+    final AtomicReference<RoutingTable> routingTable;
+
+    /* findService results */
+    private final LongAdder routeHits = new LongAdder();
+    private final LongAdder routeMisses = new LongAdder();
+
+    /* default per service limit on requests in flight, 0 for no limit */
+    private volatile int maxServiceRequests;
+
+    /*
+     * Limits set for individual services, by name, or -1 for the default.
+     * A registration shares its service's holder, so a limit may be set
+     * before or after the service is added and survives replacing it.
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> serviceLimits =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private final LongAdder serviceRejections = new LongAdder();
+
+    /*
+     * Requests for unknown services, per client. Clients past the rate are
+     * likely scanning, and their connections are closed. Null for no limit.
+     */
+    private volatile ClientRateLimiter unknownServiceLimiter =
+        new ClientRateLimiter(DEFAULT_UNKNOWN_SERVICE_RATE,
+                              DEFAULT_UNKNOWN_SERVICE_BURST,
+                              MAX_RATE_LIMITED_CLIENTS);
+    private final LongAdder unknownServiceCloses = new LongAdder();
+
+    /* unknown service log lines, at most 10 per minute of each kind */
+    private final LogSampler unknownServiceLog =
+        new LogSampler(10, TimeUnit.MINUTES.toMillis(1));
+    private final LogSampler closeLog =
+        new LogSampler(10, TimeUnit.MINUTES.toMillis(1));
+
+    /* responses of CacheableServices, or null for no caching */
+    private volatile ResponseCache responseCache;
+
+    /*
+     * Executor used to run Service work off the event loop. If null services
+     * run on the event loop, as synchronous handleRequest does.
+     */
+    final Executor executor;
+
+    /* request metrics, or null if they are not collected */
+    final ServerMetrics metrics;
+    private final ServerMetrics.ServiceMetrics unroutedMetrics;
+
     public ProxyRequestHandler(LogControl logControl, final SkLogger logger) {
+        this(logControl, null, null, logger);
+    }
+
+    /**
+     * @param executor the executor used to run Service.handleRequest, and
+     * passed to AsyncService.handleRequestAsync. See ServiceExecutors for
+     * bounded pool and virtual thread executors. If null, services run on
+     * the channel's event loop.
+     */
+    public ProxyRequestHandler(LogControl logControl,
+                               Executor executor,
+                               final SkLogger logger) {
+        this(logControl, executor, null, logger);
+    }
+
+    /**
+     * @param metrics where request counts, sizes and latencies are recorded
+     * per service, or null to not collect them. Requests that are not routed
+     * to a service are recorded under the service name "none".
+     */
+    public ProxyRequestHandler(LogControl logControl,
+                               Executor executor,
+                               ServerMetrics metrics,
+                               final SkLogger logger) {
         this.logger = logger;
         this.logControl = logControl;
-        services = new HashMap<String, Service>();
+        this.executor = executor;
+        this.metrics = metrics;
+        routingTable = new AtomicReference<RoutingTable>(RoutingTable.EMPTY);
+        if (metrics != null) {
+            unroutedMetrics = metrics.forService(ServerMetrics.UNROUTED);
+            metrics.registerGauge("http_route_hits_total",
+                                  "Requests routed to a service", true,
+                                  this::getRouteHits);
+            metrics.registerGauge("http_route_misses_total",
+                                  "Requests for which no service was found",
+                                  true, this::getRouteMisses);
+            metrics.registerGauge("http_service_rejections_total",
+                                  "Requests rejected at the per service " +
+                                  "limit", true, this::getServiceRejections);
+            metrics.registerGauge("http_unknown_service_closes_total",
+                                  "Connections closed for requesting unknown " +
+                                  "services too often", true,
+                                  this::getUnknownServiceCloses);
+        } else {
+            unroutedMetrics = null;
+        }
     }
 
+    /**
+     * Adds a service that is located by its lookupService method. Services
+     * added this way are asked in turn, after indexed services, so prefer
+     * adding services with routes.
+     */
     public void addService(String name, Service service) {
-        services.put(name, service);
+        addService(name, service, new ServiceRoute[0]);
+    }
+
+    /**
+     * Adds a service located by the given routes, replacing any service
+     * with the same name. This may be called while requests are being
+     * handled.
+     */
+    public void addService(String name,
+                           Service service,
+                           ServiceRoute... routes) {
+        final ServerMetrics.ServiceMetrics serviceMetrics =
+            (metrics != null ? metrics.forService(name) : null);
+        final AtomicInteger limit = serviceLimit(name);
+        routingTable.updateAndGet(
+            t -> t.with(name, service, routes, serviceMetrics, limit));
+    }
+
+    /**
+     * Removes a service. This may be called while requests are being
+     * handled.
+     */
+    public void removeService(String name) {
+        routingTable.updateAndGet(t -> t.without(name));
     }
 
     public Service getService(String name) {
-        return services.get(name);
+        return routingTable.get().get(name);
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for each service that
+     * has no limit of its own, 0 for no limit. Requests past the limit are
+     * answered with 503 and Retry-After without calling the service.
+     */
+    public void setMaxServiceRequests(int maxServiceRequests) {
+        this.maxServiceRequests = maxServiceRequests;
+    }
+
+    public int getMaxServiceRequests() {
+        return maxServiceRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for the named service,
+     * 0 for no limit, or -1 to use the default set above. This may be
+     * called before the service is added.
+     */
+    public void setMaxServiceRequests(String name, int maxRequests) {
+        serviceLimit(name).set(maxRequests);
+    }
+
+    /**
+     * Returns the limit set for the named service, or -1 if it uses the
+     * default
+     */
+    public int getMaxServiceRequests(String name) {
+        final AtomicInteger limit = serviceLimits.get(name);
+        return (limit != null ? limit.get() : -1);
+    }
+
+    private AtomicInteger serviceLimit(String name) {
+        return serviceLimits.computeIfAbsent(name,
+                                             k -> new AtomicInteger(-1));
+    }
+
+    /**
+     * Returns the number of requests in flight for a service, or 0 if there
+     * is no such service
+     */
+    public int getServiceRequests(String name) {
+        final RoutingTable.Registration reg =
+            routingTable.get().getRegistration(name);
+        return (reg != null ? reg.inFlight.get() : 0);
+    }
+
+    /**
+     * Returns the number of requests rejected at the per service limit
+     */
+    public long getServiceRejections() {
+        return serviceRejections.sum();
+    }
+
+    /**
+     * Sets the rate at which each client may request unknown services. A
+     * client is the X-Real-IP or first X-Forwarded-For address of the
+     * request, or else the remote address. The connection of a client past
+     * its rate is closed with a TCP reset instead of being answered. The
+     * default is 10 per second with a burst of 100.
+     *
+     * @param perSecond the sustained rate, 0 for no limit
+     * @param burst the number of requests allowed at once
+     */
+    public void setUnknownServiceRateLimit(double perSecond, int burst) {
+        unknownServiceLimiter =
+            (perSecond > 0 ?
+             new ClientRateLimiter(perSecond, burst, MAX_RATE_LIMITED_CLIENTS) :
+             null);
+    }
+
+    /**
+     * Sets the cache for responses of CacheableServices, or null to not
+     * cache. Its statistics are registered with this handler's metrics.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        if (cache != null && metrics != null) {
+            cache.registerMetrics(metrics);
+        }
+        responseCache = cache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns the number of connections closed for requesting unknown
+     * services past the rate limit
+     */
+    public long getUnknownServiceCloses() {
+        return unknownServiceCloses.sum();
+    }
+
+    /**
+     * Returns the number of requests that were routed to a service
+     */
+    public long getRouteHits() {
+        return routeHits.sum();
+    }
+
+    /**
+     * Returns the number of requests for which no service was found
+     */
+    public long getRouteMisses() {
+        return routeMisses.sum();
     }
 
     @Override
     public FullHttpResponse handleRequest(FullHttpRequest request,
                                           ChannelHandlerContext ctx) {
 
+        final long start = System.nanoTime();
+        RequestStats stats = null;
         FullHttpResponse response;
+        boolean failed = false;
         try {
-            final String path = new URI(request.uri()).getPath();
-
-            Service service = findService(path);
-            if (service == null) {
-                HttpHeaders headers = request.headers();
-                final CharSequence realIp = headers.get(X_REAL_IP);
-                final CharSequence forwardedFor =
-                    headers.get(X_FORWARDED_FOR);
-                final String remoteAddr =
-                    ctx.channel().remoteAddress().toString();
-                StringBuilder sb = new StringBuilder();
-
-                sb.append("Cannot find service for path ").append(path)
-                    .append(", remote address=").append(remoteAddr);
-                if (realIp != null) {
-                    sb.append(", ").append(X_REAL_IP).append("=")
-                        .append(realIp);
-                }
-                if (forwardedFor != null) {
-                    sb.append(", ").append(X_FORWARDED_FOR).append("=")
-                        .append(forwardedFor);
-                }
+            final String path = requestPath(request.uri());
 
-                /*
-                 * TODO:
-                 * o consider rate-limiting logger if there are lot of these
-                 * o consider hard-close of connection if this looks like an
-                 * attack.
-                 */
-                logger.info(sb.toString());
-                return badResponse();
+            final RoutingTable.Registration reg =
+                findRegistration(path, request.method());
+            stats = newStats(reg, request, start);
+            if (reg == null) {
+                response = unknownService(path, request, ctx);
+                if (stats != null) {
+                    stats.record(response, false);
+                }
+                return response;
             }
 
-            LogContext lc =logControl.generateLogContext
-                (request.method().name() + " " + path);
-
-            response = service.handleRequest(request, ctx, lc);
+            final ResponseCache.Lookup cached = lookupCache(reg, request);
+            if (cached != null && cached.hit != null) {
+                response = cached.hit;
+            } else if (!acquireService(reg)) {
+                response = AdmissionControl.overloadedResponse();
+            } else {
+                try {
+                    LogContext lc = logControl.generateLogContext
+                        (logContextId(reg, request.method(), path));
 
+                    EventLoopMonitor.enter(reg.name);
+                    response = reg.service.handleRequest(request, ctx, lc);
+                } finally {
+                    EventLoopMonitor.exit();
+                    reg.inFlight.decrementAndGet();
+                }
+                if (cached != null) {
+                    response = cached.store(response);
+                }
+            }
         } catch (Exception e) {
             logger.info("Exception handling request: " + e.getMessage());
             /*
@@ -96,45 +386,540 @@ public final class ProxyRequestHandler implements RequestHandler {
              */
             // TODO: use exception message.
             response = badResponse();
+            failed = true;
         }
         addRequiredHeaders(response);
+        if (stats != null) {
+            stats.record(response, failed);
+        }
         return response;
     }
 
-    private static FullHttpResponse badResponse() {
-        FullHttpResponse response =
-            new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
-        response.headers().set(CONTENT_LENGTH, 0);
-        return response;
+    /**
+     * Asynchronous version of handleRequest. AsyncServices are called
+     * directly with the configured executor. Other services run on the
+     * executor if one is configured, or inline otherwise. Exceptions and
+     * failed futures are mapped to a bad request response, the same as
+     * handleRequest, and a full executor or a service at its limit is
+     * answered with 503.
+     */
+    @Override
+    public CompletableFuture<FullHttpResponse>
+        handleRequestAsync(FullHttpRequest request,
+                           ChannelHandlerContext ctx) {
+
+        final long start = System.nanoTime();
+        RequestStats stats = null;
+        RoutingTable.Registration acquired = null;
+        ResponseCache.Lookup cached = null;
+        CompletableFuture<FullHttpResponse> future;
+        try {
+            final String path = requestPath(request.uri());
+
+            final RoutingTable.Registration reg =
+                findRegistration(path, request.method());
+            stats = newStats(reg, request, start);
+            if (reg == null) {
+                final FullHttpResponse response =
+                    unknownService(path, request, ctx);
+                if (stats != null) {
+                    stats.record(response, false);
+                }
+                return CompletableFuture.completedFuture(response);
+            }
+            cached = lookupCache(reg, request);
+            if (cached != null && cached.hit != null) {
+                return CompletableFuture.completedFuture(
+                    finishResponse(cached.hit, null, stats));
+            }
+            if (!acquireService(reg)) {
+                final FullHttpResponse response =
+                    AdmissionControl.overloadedResponse();
+                addRequiredHeaders(response);
+                if (stats != null) {
+                    stats.record(response, false);
+                }
+                return CompletableFuture.completedFuture(response);
+            }
+            acquired = reg;
+
+            final Service service = reg.service;
+            final LogContext lc = logControl.generateLogContext
+                (logContextId(reg, request.method(), path));
+
+            /* services called inline hold the event loop, see enter() */
+            EventLoopMonitor.enter(reg.name);
+            try {
+                if (service instanceof AsyncService) {
+                    future = ((AsyncService) service).handleRequestAsync(
+                        request, ctx, lc,
+                        (executor != null ? executor : ctx.executor()));
+                } else if (executor == null) {
+                    future = CompletableFuture.completedFuture(
+                        service.handleRequest(request, ctx, lc));
+                } else {
+                    final RequestStats s = stats;
+                    future = CompletableFuture.supplyAsync(() -> {
+                            if (s != null) {
+                                s.started();
+                            }
+                            return service.handleRequest(request, ctx, lc);
+                        }, executor);
+                }
+            } finally {
+                EventLoopMonitor.exit();
+            }
+        } catch (RejectedExecutionException ree) {
+            logger.fine("Service executor full, rejecting request");
+            future = CompletableFuture.completedFuture(
+                AdmissionControl.overloadedResponse());
+        } catch (Exception e) {
+            future = new CompletableFuture<FullHttpResponse>();
+            future.completeExceptionally(e);
+        }
+
+        final RequestStats s = stats;
+        final RoutingTable.Registration r = acquired;
+        final ResponseCache.Lookup c = cached;
+        return future.handle((response, t) -> {
+                if (r != null) {
+                    r.inFlight.decrementAndGet();
+                }
+                if (c != null && t == null) {
+                    response = c.store(response);
+                }
+                return finishResponse(response, t, s);
+            });
     }
 
     /**
-     * These headers are required by Oracle's security policies
+     * Maps a failed async response to a bad request, the same as
+     * handleRequest does for exceptions, adds the required headers and
+     * records the request if metrics are enabled.
      */
-    private void addRequiredHeaders(FullHttpResponse response) {
-        response.headers().set(X_CONTENT_TYPE_OPTIONS,
-                               X_CONTENT_TYPE_OPTIONS_VALUE);
-        response.headers().set(CONTENT_DISPOSITION,
-                               CONTENT_DISPOSITION_VALUE);
+    private FullHttpResponse finishResponse(FullHttpResponse response,
+                                            Throwable t,
+                                            RequestStats stats) {
+        if (t != null) {
+            logger.info("Exception handling request: " + t.getMessage());
+            response = badResponse();
+        }
+        addRequiredHeaders(response);
+        if (stats != null) {
+            stats.record(response, t != null);
+        }
+        return response;
     }
 
     /**
-     * Locate a registered Service instance based on the URI path.
-     * This is not as efficient as a hash, but given that there are relatively
-     * few services expected it is reasonable. Services should implement their
-     * lookupService methods in an efficient manner.
+     * Returns a StreamingRequest if the request is routed to a
+     * StreamingService. Responses get the same required headers and failure
+     * mapping as handleRequest. Anything else, including unroutable paths,
+     * takes the aggregated path and is handled by handleRequest.
      */
-    private Service findService(String uri) {
+    @Override
+    public StreamingService.StreamingRequest
+        startStreaming(HttpRequest request, ChannelHandlerContext ctx) {
+
+        final long start = System.nanoTime();
+        final String path;
+        try {
+            path = requestPath(request.uri());
+        } catch (Exception e) {
+            return null;
+        }
+
         /*
-         * Strip leading "/" if present
+         * Only streamed requests are counted here. Others are counted when
+         * handleRequest routes them again after aggregation.
          */
-        String name = (uri.startsWith("/") ? uri.substring(1) : uri);
+        final RoutingTable.Registration reg =
+            routingTable.get().lookup(path, request.method());
+        if (reg == null || !(reg.service instanceof StreamingService)) {
+            return null;
+        }
+        routeHits.increment();
+
+        final RequestStats stats = newStats(reg, request, start);
+        if (!acquireService(reg)) {
+            return new RejectedStreamingRequest(stats);
+        }
+        final LogContext lc = logControl.generateLogContext
+            (logContextId(reg, request.method(), path));
+        final StreamingService.StreamingRequest sr;
+        try {
+            sr = ((StreamingService) reg.service).startRequest(request, ctx,
+                                                               lc);
+        } catch (RuntimeException re) {
+            reg.inFlight.decrementAndGet();
+            throw re;
+        }
+
+        return new StreamingService.StreamingRequest() {
+
+            /* set once reg.inFlight has been decremented for this request */
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            public CompletableFuture<Void> onContent(HttpContent content) {
+                if (stats != null) {
+                    stats.bytesIn += content.content().readableBytes();
+                }
+                return sr.onContent(content);
+            }
+
+            /*
+             * The slot is released however the service completes, so a
+             * service that throws or returns null does not use it up.
+             */
+            @Override
+            public CompletableFuture<FullHttpResponse> onComplete() {
+                CompletableFuture<FullHttpResponse> future;
+                try {
+                    future = sr.onComplete();
+                    if (future == null) {
+                        throw new IllegalStateException(
+                            "StreamingRequest.onComplete returned null");
+                    }
+                } catch (RuntimeException re) {
+                    future = new CompletableFuture<FullHttpResponse>();
+                    future.completeExceptionally(re);
+                }
+                return future.handle((response, t) -> {
+                        release();
+                        return finishResponse(response, t, stats);
+                    });
+            }
+
+            @Override
+            public void onAbort(Throwable cause) {
+                release();
+                sr.onAbort(cause);
+            }
+
+            private void release() {
+                if (released.compareAndSet(false, true)) {
+                    reg.inFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes a streamed request past the per service limit. The body is
+     * discarded and the request is answered with 503.
+     */
+    private final class RejectedStreamingRequest
+        implements StreamingService.StreamingRequest {
+
+        private final RequestStats stats;
+
+        RejectedStreamingRequest(RequestStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public CompletableFuture<Void> onContent(HttpContent content) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<FullHttpResponse> onComplete() {
+            return CompletableFuture.completedFuture(
+                finishResponse(AdmissionControl.overloadedResponse(), null,
+                               stats));
+        }
+
+        @Override
+        public void onAbort(Throwable cause) {
+        }
+    }
+
+    /**
+     * Handles a request for which no service was found. The request is
+     * logged, sampled, and answered with a bad request. If the client is
+     * past its rate limit its connection is closed instead, and the
+     * response is discarded when the write fails.
+     */
+    private FullHttpResponse unknownService(String path,
+                                            FullHttpRequest request,
+                                            ChannelHandlerContext ctx) {
+        final ClientRateLimiter limiter = unknownServiceLimiter;
+        if (limiter != null) {
+            final String client =
+                ClientRateLimiter.clientAddress(request.headers(),
+                                                ctx.channel().remoteAddress(),
+                                                X_REAL_IP, X_FORWARDED_FOR);
+            if (!limiter.tryAcquire(client)) {
+                hardClose(ctx, client);
+                return badResponse();
+            }
+        }
+        logUnknownService(path, request, ctx);
+        return badResponse();
+    }
+
+    /**
+     * Closes the connection of a request with a TCP reset, so that no
+     * socket is left in TIME_WAIT. For HTTP/2 the whole connection, not
+     * just the stream, is closed.
+     */
+    private void hardClose(ChannelHandlerContext ctx, String client) {
+        Channel ch = ctx.channel();
+        if (ch instanceof Http2StreamChannel) {
+            ch = ch.parent();
+        }
+        unknownServiceCloses.increment();
+        final long suppressed = closeLog.sample();
+        if (suppressed >= 0) {
+            logger.info("Closing connection from " + client +
+                        ", too many requests for unknown services" +
+                        suppressedSuffix(suppressed));
+        }
+        if (ch.isActive()) {
+            ch.config().setOption(ChannelOption.SO_LINGER, 0);
+            ch.close();
+        }
+    }
+
+    private void logUnknownService(String path,
+                                   FullHttpRequest request,
+                                   ChannelHandlerContext ctx) {
+        final long suppressed = unknownServiceLog.sample();
+        if (suppressed < 0) {
+            return;
+        }
+        HttpHeaders headers = request.headers();
+        final CharSequence realIp = headers.get(X_REAL_IP);
+        final CharSequence forwardedFor =
+            headers.get(X_FORWARDED_FOR);
+        final String remoteAddr =
+            ctx.channel().remoteAddress().toString();
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Cannot find service for path ").append(path)
+            .append(", remote address=").append(remoteAddr);
+        if (realIp != null) {
+            sb.append(", ").append(X_REAL_IP).append("=")
+                .append(realIp);
+        }
+        if (forwardedFor != null) {
+            sb.append(", ").append(X_FORWARDED_FOR).append("=")
+                .append(forwardedFor);
+        }
+        sb.append(suppressedSuffix(suppressed));
+        logger.info(sb.toString());
+    }
+
+    private static String suppressedSuffix(long suppressed) {
+        return (suppressed > 0 ?
+                " (" + suppressed + " similar messages suppressed)" : "");
+    }
+
+    /**
+     * Returns a bad request response. The response already has the required
+     * headers, copied from a prebuilt set.
+     */
+    static FullHttpResponse badResponse() {
+        return new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST,
+                                           Unpooled.EMPTY_BUFFER,
+                                           BAD_REQUEST_HEADERS.copy(),
+                                           EmptyHttpHeaders.INSTANCE);
+    }
+
+    /**
+     * These headers are required by Oracle's security policies
+     */
+    static void addRequiredHeaders(FullHttpResponse response) {
+        response.headers().set(X_CONTENT_TYPE_OPTIONS_NAME,
+                               X_CONTENT_TYPE_OPTIONS_ASCII);
+        response.headers().set(CONTENT_DISPOSITION_NAME,
+                               CONTENT_DISPOSITION_ASCII);
+    }
 
-        for (Service service : services.values()) {
-            if (service.lookupService(name)) {
-                return service;
+    /**
+     * Returns the decoded path of a request URI, as URI.getPath does,
+     * without parsing the rest of the URI. A URI that is just a path, the
+     * usual case, is returned as is.
+     *
+     * Unlike URI this does not reject characters that are not legal in a
+     * URI. Such paths match no route.
+     *
+     * @throws IllegalArgumentException if the path has a malformed escape
+     */
+    static String requestPath(String uri) {
+        int start = 0;
+        final int scheme = uri.indexOf("://");
+        if (scheme > 0 && uri.indexOf('/') == scheme + 1) {
+            /* an absolute URI, the path starts after the authority */
+            start = scheme + 3;
+            while (start < uri.length() &&
+                   "/?#".indexOf(uri.charAt(start)) < 0) {
+                start++;
+            }
+        }
+        int end = start;
+        boolean escaped = false;
+        for (; end < uri.length(); end++) {
+            final char c = uri.charAt(end);
+            if (c == '?' || c == '#') {
+                break;
             }
+            if (c == '%') {
+                escaped = true;
+            }
+        }
+        final String path = (start == 0 && end == uri.length() ?
+                             uri : uri.substring(start, end));
+        return (escaped ? new QueryStringDecoder(path).path() : path);
+    }
+
+    /**
+     * Returns the id of the LogContext for a request, its method and path.
+     * Ids of requests for the path of one of the service's routes are
+     * cached by path and method, so that repeated requests reuse one string
+     * rather than building it each time. Other paths, such as those below a
+     * prefix route, are not cached, so the cache is bounded by the routes.
+     */
+    private static String logContextId(RoutingTable.Registration reg,
+                                       HttpMethod method,
+                                       String path) {
+        final Map<HttpMethod, String> ids = reg.logContextIds.get(path);
+        if (ids == null) {
+            return newLogContextId(method, path);
+        }
+        String id = ids.get(method);
+        if (id == null) {
+            id = newLogContextId(method, path);
+            /* methods are client supplied, so bound them too */
+            if (ids.size() < MAX_LOG_CONTEXT_METHODS) {
+                ids.put(method, id);
+            }
+        }
+        return id;
+    }
+
+    private static String newLogContextId(HttpMethod method, String path) {
+        final String prefix = LOG_CONTEXT_PREFIXES.get(method);
+        return (prefix != null ? prefix.concat(path) :
+                method.name() + " " + path);
+    }
+
+    /**
+     * Locate a registered Service instance based on the URI path and
+     * method. Services with routes are found through the routing index,
+     * others through their lookupService methods.
+     */
+    Service findService(String uri, HttpMethod method) {
+        final RoutingTable.Registration reg = findRegistration(uri, method);
+        return (reg != null ? reg.service : null);
+    }
+
+    /**
+     * Looks up a request in the response cache if there is one and the
+     * request is a GET to a CacheableService that allows caching it.
+     *
+     * @return null if the request is not cacheable
+     */
+    private ResponseCache.Lookup lookupCache(RoutingTable.Registration reg,
+                                             FullHttpRequest request) {
+        final ResponseCache cache = responseCache;
+        if (cache == null ||
+            !(reg.service instanceof CacheableService) ||
+            !HttpMethod.GET.equals(request.method())) {
+            return null;
+        }
+        final long ttl =
+            ((CacheableService) reg.service).getCacheTtl(request);
+        if (ttl <= 0) {
+            return null;
+        }
+        return cache.lookup(reg.name + ' ' + request.uri(), request, ttl);
+    }
+
+    /**
+     * Counts a request in flight for a service unless the service is at its
+     * own limit, or the default one. If this returns true the caller must
+     * decrement reg.inFlight when the response is ready.
+     */
+    private boolean acquireService(RoutingTable.Registration reg) {
+        final int limit = reg.maxInFlight.get();
+        final int max = (limit >= 0 ? limit : maxServiceRequests);
+        if (reg.inFlight.incrementAndGet() > max && max > 0) {
+            reg.inFlight.decrementAndGet();
+            serviceRejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private RoutingTable.Registration findRegistration(String uri,
+                                                       HttpMethod method) {
+        final RoutingTable.Registration reg =
+            routingTable.get().lookup(uri, method);
+        if (reg != null) {
+            routeHits.increment();
+        } else {
+            routeMisses.increment();
+        }
+        return reg;
+    }
+
+    /**
+     * Returns the stats for a request, or null if metrics are not collected
+     *
+     * @param reg the request's service, or null if it was not routed
+     * @param start when the request was dispatched, from System.nanoTime
+     */
+    private RequestStats newStats(RoutingTable.Registration reg,
+                                  HttpRequest request,
+                                  long start) {
+        if (metrics == null) {
+            return null;
+        }
+        final RequestStats stats =
+            new RequestStats((reg != null && reg.metrics != null ?
+                              reg.metrics : unroutedMetrics), start);
+        if (request instanceof FullHttpRequest) {
+            stats.bytesIn =
+                ((FullHttpRequest) request).content().readableBytes();
+        }
+        return stats;
+    }
+
+    /**
+     * The size and timing of one request. Time before started is called is
+     * queue time, waiting for the executor; the rest is service time. If
+     * started is never called the service ran without queueing.
+     */
+    private static final class RequestStats {
+        private final ServerMetrics.ServiceMetrics metrics;
+        private final long dispatched;
+        private volatile long started;
+
+        /* only updated by the channel's event loop */
+        volatile long bytesIn;
+
+        RequestStats(ServerMetrics.ServiceMetrics metrics, long dispatched) {
+            this.metrics = metrics;
+            this.dispatched = dispatched;
+            this.started = dispatched;
+        }
+
+        void started() {
+            started = System.nanoTime();
+        }
+
+        void record(FullHttpResponse response, boolean error) {
+            final long begin = started;
+            metrics.record(response.status().code(),
+                           begin - dispatched,
+                           System.nanoTime() - begin,
+                           bytesIn,
+                           (response instanceof FileHttpResponse ?
+                            ((FileHttpResponse) response).getCount() :
+                            response.content().readableBytes()),
+                           error);
         }
-        return null;
     }
 }
@@ -0,0 +1,43 @@
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Suspends reads on a channel for the handlers that need them paused, such
+ * as the HttpPipeliningHandler when too many requests are in flight and the
+ * HttpStreamingHandler while a chunk is being consumed. Each suspend must be
+ * matched by one resume, and reads resume only once all of them are, so one
+ * handler resuming cannot undo another's pause.
+ *
+ * Handlers that use this must not set autoRead on the channel themselves.
+ * Called on the channel's event loop.
+ */
+final class ReadSuspension {
+
+    /* the number of suspends not yet resumed */
+    private static final AttributeKey<int[]> SUSPENDS =
+        AttributeKey.valueOf("http-read-suspends");
+
+    private ReadSuspension() {
+    }
+
+    static void suspend(Channel ch) {
+        int[] count = ch.attr(SUSPENDS).get();
+        if (count == null) {
+            count = new int[1];
+            ch.attr(SUSPENDS).set(count);
+        }
+        if (count[0]++ == 0) {
+            ch.config().setAutoRead(false);
+        }
+    }
+
+    static void resume(Channel ch) {
+        final int[] count = ch.attr(SUSPENDS).get();
+        if (count == null || count[0] == 0) {
+            return;
+        }
+        if (--count[0] == 0) {
+            ch.config().setAutoRead(true);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * A bounded cache of responses from CacheableServices, used by
+ * ProxyRequestHandler. A cached response is served, until its TTL expires,
+ * without calling the service, and a request whose If-None-Match matches
+ * the cached ETag is answered with 304 Not Modified.
+ *
+ * Every response from a cacheable request gets an ETag, computed from its
+ * content unless the service set one. A 304 is also returned when the
+ * service was called and its new response matches If-None-Match, saving
+ * the transfer if not the work.
+ *
+ * Cached content is a direct buffer owned by the cache. Responses share it
+ * through retained duplicates, so an evicted entry is freed once the last
+ * response using it has been written. The cache is bounded by the total
+ * size of its content and evicts the least recently used entries first.
+ */
+public final class ResponseCache {
+
+    private final long maxBytes;
+
+    /* access ordered for LRU eviction, guarded by this */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes maximum total size of cached content
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a request.
+     *
+     * @param key identifies the response, see CacheableService
+     * @param ttl how long a response stored through the result may be used,
+     * in milliseconds
+     * @return the lookup. Its hit is non-null if the request can be
+     * answered from the cache. Otherwise the service's response should be
+     * passed to its store method.
+     */
+    Lookup lookup(String key, HttpRequest request, long ttl) {
+        final String ifNoneMatch =
+            request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        final Lookup lookup = new Lookup(key, ifNoneMatch, ttl);
+        final Entry entry = get(key);
+        if (entry == null) {
+            misses.increment();
+            return lookup;
+        }
+        try {
+            hits.increment();
+            if (ifNoneMatch != null && matches(ifNoneMatch, entry.etag)) {
+                notModified.increment();
+                lookup.hit = notModifiedResponse(entry.etag);
+            } else {
+                lookup.hit = new DefaultFullHttpResponse(
+                    HTTP_1_1, OK, entry.content.retainedDuplicate(),
+                    entry.headers.copy(), EmptyHttpHeaders.INSTANCE);
+            }
+        } finally {
+            entry.content.release();
+        }
+        return lookup;
+    }
+
+    /**
+     * Returns a fresh entry, with its content retained for the caller
+     */
+    private synchronized Entry get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires - System.nanoTime() <= 0) {
+            remove(key);
+            return null;
+        }
+        entry.content.retain();
+        return entry;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        final Entry prev = entries.put(key, entry);
+        if (prev != null) {
+            currentBytes -= prev.size;
+            prev.content.release();
+        }
+        currentBytes += entry.size;
+        final Iterator<Map.Entry<String, Entry>> iter =
+            entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iter.hasNext()) {
+            final Entry eldest = iter.next().getValue();
+            currentBytes -= eldest.size;
+            eldest.content.release();
+            iter.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            currentBytes -= entry.size;
+            entry.content.release();
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.content.release();
+        }
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Returns true if an If-None-Match header value matches an ETag, using
+     * the weak comparison that RFC 7232 specifies for If-None-Match
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        final String tag = opaqueTag(etag);
+        int start = 0;
+        while (start < ifNoneMatch.length()) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = ifNoneMatch.length();
+            }
+            final String candidate =
+                ifNoneMatch.substring(start, end).trim();
+            if (candidate.equals("*") ||
+                opaqueTag(candidate).equals(tag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return (etag.startsWith("W/") ? etag.substring(2) : etag);
+    }
+
+    /**
+     * Returns a strong ETag for content, from its length and CRC-32
+     */
+    static String etag(ByteBuf content) {
+        final CRC32 crc = new CRC32();
+        if (content.hasArray()) {
+            crc.update(content.array(),
+                       content.arrayOffset() + content.readerIndex(),
+                       content.readableBytes());
+        } else {
+            crc.update(content.nioBuffer());
+        }
+        return "\"" + Integer.toHexString(content.readableBytes()) + "-" +
+            Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    private static FullHttpResponse notModifiedResponse(String etag) {
+        final FullHttpResponse response =
+            new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED,
+                                        Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        return response;
+    }
+
+    /**
+     * Registers the cache statistics as metrics
+     */
+    void registerMetrics(ServerMetrics metrics) {
+        metrics.registerGauge("http_response_cache_hits_total",
+                              "Requests answered from the response cache",
+                              true, this::getHits);
+        metrics.registerGauge("http_response_cache_misses_total",
+                              "Cacheable requests passed to the service",
+                              true, this::getMisses);
+        metrics.registerGauge("http_response_cache_not_modified_total",
+                              "Requests answered with 304 Not Modified",
+                              true, this::getNotModified);
+        metrics.registerGauge("http_response_cache_evictions_total",
+                              "Responses evicted to stay within the size " +
+                              "limit", true, this::getEvictions);
+        metrics.registerGauge("http_response_cache_bytes",
+                              "Size of the cached response content", false,
+                              this::getCachedBytes);
+    }
+
+    /**
+     * Returns the number of requests answered from the cache, with the
+     * cached response or 304
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of cacheable requests that were not in the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with 304, from the cache or
+     * after calling the service
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total size of the cached content
+     */
+    public synchronized long getCachedBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * The state of one cacheable request between lookup and store
+     */
+    final class Lookup {
+        private final String key;
+        private final String ifNoneMatch;
+        private final long ttl;
+
+        /* the response from the cache, or null on a miss */
+        FullHttpResponse hit;
+
+        private Lookup(String key, String ifNoneMatch, long ttl) {
+            this.key = key;
+            this.ifNoneMatch = ifNoneMatch;
+            this.ttl = ttl;
+        }
+
+        /**
+         * Adds an ETag to the service's response and caches it if it is
+         * cacheable.
+         *
+         * @return the response, or a 304 in its place if it matches the
+         * request's If-None-Match, in which case the response is released
+         */
+        FullHttpResponse store(FullHttpResponse response) {
+            if (!OK.equals(response.status()) ||
+                response instanceof FileHttpResponse) {
+                return response;
+            }
+            final HttpHeaders headers = response.headers();
+            String etag = headers.get(HttpHeaderNames.ETAG);
+            if (etag == null) {
+                etag = etag(response.content());
+                headers.set(HttpHeaderNames.ETAG, etag);
+            }
+
+            final int size = response.content().readableBytes();
+            if (!headers.contains(HttpHeaderNames.VARY) &&
+                !headers.contains(HttpHeaderNames.SET_COOKIE) &&
+                size <= maxBytes) {
+                final ByteBuf copy = Unpooled.directBuffer(size, size);
+                copy.writeBytes(response.content(),
+                                response.content().readerIndex(), size);
+                final HttpHeaders cached = headers.copy();
+                cached.remove(HttpHeaderNames.CONNECTION);
+                put(key, new Entry(copy, cached, etag,
+                                   System.nanoTime() + ttl * 1000000L));
+            }
+
+            if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+                notModified.increment();
+                response.release();
+                return notModifiedResponse(etag);
+            }
+            return response;
+        }
+    }
+
+    private static final class Entry {
+        final ByteBuf content;
+        final HttpHeaders headers;
+        final String etag;
+        final long expires;
+        final int size;
+
+        Entry(ByteBuf content, HttpHeaders headers, String etag, long expires) {
+            this.content = content;
+            this.headers = headers;
+            this.etag = etag;
+            this.expires = expires;
+            this.size = content.readableBytes();
+        }
+    }
+}
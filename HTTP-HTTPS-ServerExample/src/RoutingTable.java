@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * An immutable index of registered services. Services registered with
+ * ServiceRoutes are held in a character trie keyed on path, so a lookup
+ * costs one walk over the path regardless of how many services there are.
+ * Services registered without routes keep the original behavior and are
+ * asked in turn through Service.lookupService when the trie has no match.
+ *
+ * Tables are never modified once built. Adding or removing a service builds
+ * a new table, which ProxyRequestHandler publishes atomically, so lookups
+ * need no locking.
+ */
+final class RoutingTable {
+
+    static final RoutingTable EMPTY =
+        new RoutingTable(Collections.<String, Registration>emptyMap());
+
+    /* registrations by name, in registration order */
+    private final Map<String, Registration> registrations;
+
+    private final Node root;
+
+    /* services without routes, scanned with lookupService */
+    private final Registration[] unrouted;
+
+    private RoutingTable(Map<String, Registration> registrations) {
+        this.registrations = registrations;
+        root = new Node();
+        final List<Registration> scan = new ArrayList<Registration>();
+        for (Registration reg : registrations.values()) {
+            if (reg.routes.length == 0) {
+                scan.add(reg);
+                continue;
+            }
+            for (ServiceRoute route : reg.routes) {
+                root.insert(route, reg);
+            }
+        }
+        unrouted = scan.toArray(new Registration[scan.size()]);
+    }
+
+    /**
+     * Returns a new table with the service added, replacing any service
+     * previously registered with the same name.
+     *
+     * @param metrics where requests for the service are recorded, or null
+     * @param maxInFlight the service's limit on requests in flight, see
+     * ProxyRequestHandler
+     */
+    RoutingTable with(String name,
+                      Service service,
+                      ServiceRoute[] routes,
+                      ServerMetrics.ServiceMetrics metrics,
+                      AtomicInteger maxInFlight) {
+        final Map<String, Registration> map =
+            new LinkedHashMap<String, Registration>(registrations);
+        map.remove(name);
+        map.put(name,
+                new Registration(name, service, routes.clone(), metrics,
+                                 maxInFlight));
+        return new RoutingTable(Collections.unmodifiableMap(map));
+    }
+
+    /**
+     * Returns a new table without the named service, or this table if there
+     * is no such service.
+     */
+    RoutingTable without(String name) {
+        if (!registrations.containsKey(name)) {
+            return this;
+        }
+        final Map<String, Registration> map =
+            new LinkedHashMap<String, Registration>(registrations);
+        map.remove(name);
+        return new RoutingTable(Collections.unmodifiableMap(map));
+    }
+
+    Service get(String name) {
+        final Registration reg = registrations.get(name);
+        return (reg != null ? reg.service : null);
+    }
+
+    Registration getRegistration(String name) {
+        return registrations.get(name);
+    }
+
+    /**
+     * Locates the service for a URI path, with or without its leading "/".
+     *
+     * @return the service's registration, or null if none matches
+     */
+    Registration lookup(String path, HttpMethod method) {
+        if (path == null) {
+            return null;
+        }
+        final int len = path.length();
+        int i = (len > 0 && path.charAt(0) == '/' ? 1 : 0);
+        final int start = i;
+
+        Node node = root;
+        Registration best = Node.match(node.prefix, method);
+        for (; i < len; i++) {
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.prefix != null &&
+                (i + 1 == len || path.charAt(i + 1) == '/')) {
+                final Registration s = Node.match(node.prefix, method);
+                if (s != null) {
+                    best = s;
+                }
+            }
+        }
+        if (node != null) {
+            final Registration s = Node.match(node.exact, method);
+            if (s != null) {
+                return s;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+
+        if (unrouted.length == 0) {
+            return null;
+        }
+        final String name = (start == 0 ? path : path.substring(start));
+        for (Registration reg : unrouted) {
+            if (reg.service.lookupService(name)) {
+                return reg;
+            }
+        }
+        return null;
+    }
+
+    static final class Registration {
+        final String name;
+        final Service service;
+        final ServiceRoute[] routes;
+        final ServerMetrics.ServiceMetrics metrics;
+
+        /* requests in flight, see ProxyRequestHandler */
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        /* the limit on inFlight, -1 for the handler's default */
+        final AtomicInteger maxInFlight;
+
+        /*
+         * LogContext ids by request path and method, see ProxyRequestHandler.
+         * Only the paths of the routes are keys, with and without the
+         * leading "/" a request may have, so the map itself never changes.
+         */
+        final Map<String, Map<HttpMethod, String>> logContextIds;
+
+        Registration(String name,
+                     Service service,
+                     ServiceRoute[] routes,
+                     ServerMetrics.ServiceMetrics metrics,
+                     AtomicInteger maxInFlight) {
+            this.name = name;
+            this.service = service;
+            this.routes = routes;
+            this.metrics = metrics;
+            this.maxInFlight = maxInFlight;
+            logContextIds = new HashMap<String, Map<HttpMethod, String>>();
+            for (ServiceRoute route : routes) {
+                final String path = route.getPath();
+                for (String key : new String[] { path, "/" + path }) {
+                    if (!logContextIds.containsKey(key)) {
+                        logContextIds.put(
+                            key, new ConcurrentHashMap<HttpMethod, String>());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Services registered on one trie node, method specific routes first
+     */
+    private static final class Target {
+        final HttpMethod method;
+        final Registration reg;
+        final Target next;
+
+        Target(HttpMethod method, Registration reg, Target next) {
+            this.method = method;
+            this.reg = reg;
+            this.next = next;
+        }
+    }
+
+    private static final class Node {
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /* sorted child labels, parallel to children */
+        private char[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+
+        Target exact;
+        Target prefix;
+
+        Node child(char c) {
+            final int idx = Arrays.binarySearch(labels, c);
+            return (idx >= 0 ? children[idx] : null);
+        }
+
+        void insert(ServiceRoute route, Registration reg) {
+            final String path = route.getPath();
+            Node node = this;
+            for (int i = 0; i < path.length(); i++) {
+                node = node.childForInsert(path.charAt(i));
+            }
+            if (route.isPrefix()) {
+                node.prefix = add(node.prefix, route.getMethod(), reg);
+            } else {
+                node.exact = add(node.exact, route.getMethod(), reg);
+            }
+        }
+
+        private Node childForInsert(char c) {
+            final int idx = Arrays.binarySearch(labels, c);
+            if (idx >= 0) {
+                return children[idx];
+            }
+            final int ins = -(idx + 1);
+            final char[] newLabels = new char[labels.length + 1];
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, ins);
+            System.arraycopy(children, 0, newChildren, 0, ins);
+            System.arraycopy(labels, ins, newLabels, ins + 1,
+                             labels.length - ins);
+            System.arraycopy(children, ins, newChildren, ins + 1,
+                             children.length - ins);
+            final Node node = new Node();
+            newLabels[ins] = c;
+            newChildren[ins] = node;
+            labels = newLabels;
+            children = newChildren;
+            return node;
+        }
+
+        /*
+         * Method specific targets go ahead of any-method targets so that
+         * they are found first. Otherwise targets keep registration order,
+         * so a later registration for the same method is shadowed by the
+         * earlier one.
+         */
+        private static Target add(Target list,
+                                  HttpMethod method,
+                                  Registration reg) {
+            if (list == null || (method != null && list.method == null)) {
+                return new Target(method, reg, list);
+            }
+            return new Target(list.method, list.reg,
+                              add(list.next, method, reg));
+        }
+
+        static Registration match(Target list, HttpMethod method) {
+            for (Target t = list; t != null; t = t.next) {
+                if (t.method == null || t.method.equals(method)) {
+                    return t.reg;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request and connection metrics for an HttpServer and its
+ * ProxyRequestHandler. Counters are LongAdders and latencies are lock-free
+ * LatencyHistograms, so recording does not contend between worker threads.
+ * MetricsService exposes the current values in the Prometheus text format.
+ *
+ * The same instance is passed to HttpServerConfig.setMetrics, for
+ * connection metrics, and to ProxyRequestHandler, for request metrics.
+ */
+public final class ServerMetrics {
+
+    /* service name used for requests that were not routed to a service */
+    static final String UNROUTED = "none";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, ServiceMetrics> services =
+        new ConcurrentHashMap<String, ServiceMetrics>();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder tlsHandshakeFailures = new LongAdder();
+    private final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+    private final LatencyHistogram tlsResumedHandshakeTime =
+        new LatencyHistogram();
+
+    /* the server's event loop monitor, or null */
+    private volatile EventLoopMonitor eventLoops;
+
+    /* sorted so that the output is stable */
+    private final Map<String, Gauge> gauges =
+        new ConcurrentSkipListMap<String, Gauge>();
+
+    /**
+     * Returns the metrics for a service, creating them if needed. The
+     * returned object should be kept rather than looked up per request.
+     */
+    ServiceMetrics forService(String name) {
+        return services.computeIfAbsent(name, ServiceMetrics::new);
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * @param resumed true if a successful handshake appears to have resumed
+     * an earlier session, see ConnectionMetricsHandler
+     */
+    void tlsHandshake(long nanos, boolean success, boolean resumed) {
+        if (!success) {
+            tlsHandshakeFailures.increment();
+        } else if (resumed) {
+            tlsResumedHandshakeTime.recordNanos(nanos);
+        } else {
+            tlsHandshakeTime.recordNanos(nanos);
+        }
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    /**
+     * Returns the number of successful TLS handshakes, full and resumed
+     */
+    public long getTlsHandshakes() {
+        return tlsHandshakeTime.getCount() +
+            tlsResumedHandshakeTime.getCount();
+    }
+
+    public long getTlsResumedHandshakes() {
+        return tlsResumedHandshakeTime.getCount();
+    }
+
+    /**
+     * Returns the fraction of successful TLS handshakes that were resumed,
+     * or 0 if there have been none. This is approximate, as resumption is
+     * inferred from session creation times, see ConnectionMetricsHandler.
+     */
+    public double getTlsResumptionRatio() {
+        final long resumed = tlsResumedHandshakeTime.getCount();
+        final long total = tlsHandshakeTime.getCount() + resumed;
+        return (total == 0 ? 0 : (double) resumed / total);
+    }
+
+    void setEventLoopMonitor(EventLoopMonitor monitor) {
+        eventLoops = monitor;
+    }
+
+    /**
+     * Registers a value that is read when metrics are reported, replacing
+     * any gauge with the same name.
+     *
+     * @param name the metric name, which must be a valid Prometheus metric
+     * name
+     * @param counter true if the value only increases
+     */
+    public void registerGauge(String name,
+                              String help,
+                              boolean counter,
+                              LongSupplier value) {
+        gauges.put(name, new Gauge(help, counter, value));
+    }
+
+    /**
+     * Appends all metrics to sb in the Prometheus text exposition format
+     */
+    public void writePrometheus(StringBuilder sb) {
+        header(sb, "http_requests_total", "counter",
+               "Requests by service and status code");
+        for (ServiceMetrics sm : services.values()) {
+            for (int status = 0; status < ServiceMetrics.MAX_STATUS;
+                 status++) {
+                final StatusMetrics st = sm.byStatus.get(status);
+                if (st != null) {
+                    sb.append("http_requests_total{service=\"")
+                        .append(sm.name).append("\",status=\"")
+                        .append(status).append("\"} ")
+                        .append(st.count.sum()).append('\n');
+                }
+            }
+        }
+
+        counter(sb, "http_request_errors_total",
+                "Requests that failed with an exception or a 5xx status",
+                s -> s.errors.sum());
+        counter(sb, "http_request_bytes_in_total",
+                "Request body bytes received", s -> s.bytesIn.sum());
+        counter(sb, "http_request_bytes_out_total",
+                "Response body bytes sent", s -> s.bytesOut.sum());
+
+        header(sb, "http_request_queue_seconds", "summary",
+               "Time from dispatch until a service started on the executor");
+        for (ServiceMetrics sm : services.values()) {
+            summary(sb, "http_request_queue_seconds",
+                    "service=\"" + sm.name + "\"", sm.queueTime);
+        }
+        header(sb, "http_request_service_seconds", "summary",
+               "Time spent in the service");
+        for (ServiceMetrics sm : services.values()) {
+            summary(sb, "http_request_service_seconds",
+                    "service=\"" + sm.name + "\"", sm.serviceTime);
+        }
+        header(sb, "http_request_duration_seconds", "summary",
+               "Total request latency by service and status code");
+        for (ServiceMetrics sm : services.values()) {
+            for (int status = 0; status < ServiceMetrics.MAX_STATUS;
+                 status++) {
+                final StatusMetrics st = sm.byStatus.get(status);
+                if (st != null) {
+                    summary(sb, "http_request_duration_seconds",
+                            "service=\"" + sm.name + "\",status=\"" +
+                            status + "\"", st.latency);
+                }
+            }
+        }
+
+        header(sb, "http_connections_opened_total", "counter",
+               "Connections accepted");
+        sb.append("http_connections_opened_total ")
+            .append(connectionsOpened.sum()).append('\n');
+        header(sb, "http_connections_closed_total", "counter",
+               "Connections closed");
+        sb.append("http_connections_closed_total ")
+            .append(connectionsClosed.sum()).append('\n');
+        header(sb, "http_tls_handshake_seconds", "summary",
+               "Successful TLS handshake time, full or resumed " +
+               "(approximate split)");
+        summary(sb, "http_tls_handshake_seconds", "type=\"full\"",
+                tlsHandshakeTime);
+        summary(sb, "http_tls_handshake_seconds", "type=\"resumed\"",
+                tlsResumedHandshakeTime);
+        header(sb, "http_tls_resumption_ratio", "gauge",
+               "Approximate fraction of successful TLS handshakes that " +
+               "were resumed");
+        sb.append("http_tls_resumption_ratio ")
+            .append(getTlsResumptionRatio()).append('\n');
+        header(sb, "http_tls_handshake_failures_total", "counter",
+               "Failed TLS handshakes");
+        sb.append("http_tls_handshake_failures_total ")
+            .append(tlsHandshakeFailures.sum()).append('\n');
+
+        final EventLoopMonitor monitor = eventLoops;
+        if (monitor != null) {
+            writeEventLoops(sb, monitor);
+        }
+
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            final Gauge g = e.getValue();
+            header(sb, e.getKey(), (g.counter ? "counter" : "gauge"), g.help);
+            sb.append(e.getKey()).append(' ')
+                .append(g.value.getAsLong()).append('\n');
+        }
+    }
+
+    private static void writeEventLoops(StringBuilder sb,
+                                        EventLoopMonitor monitor) {
+        header(sb, "http_event_loop_pending_tasks", "gauge",
+               "Tasks waiting to run on each event loop");
+        for (EventLoopMonitor.Loop loop : monitor.getLoops()) {
+            sb.append("http_event_loop_pending_tasks{")
+                .append(loopLabels(loop)).append("} ")
+                .append(loop.getPendingTasks()).append('\n');
+        }
+        header(sb, "http_event_loop_delay_seconds", "summary",
+               "Time from submitting a probe task to an event loop until " +
+               "it ran");
+        for (EventLoopMonitor.Loop loop : monitor.getLoops()) {
+            summary(sb, "http_event_loop_delay_seconds", loopLabels(loop),
+                    loop.delay);
+        }
+        header(sb, "http_event_loop_stalls_total", "counter",
+               "Times an event loop did not run a probe task within the " +
+               "stall threshold");
+        for (EventLoopMonitor.Loop loop : monitor.getLoops()) {
+            sb.append("http_event_loop_stalls_total{")
+                .append(loopLabels(loop)).append("} ")
+                .append(loop.stalls.sum()).append('\n');
+        }
+    }
+
+    private static String loopLabels(EventLoopMonitor.Loop loop) {
+        return "group=\"" + loop.group + "\",loop=\"" + loop.index + "\"";
+    }
+
+    private static void header(StringBuilder sb,
+                               String name,
+                               String type,
+                               String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help)
+            .append('\n').append("# TYPE ").append(name).append(' ')
+            .append(type).append('\n');
+    }
+
+    private interface ServiceCounter {
+        long get(ServiceMetrics sm);
+    }
+
+    private void counter(StringBuilder sb,
+                         String name,
+                         String help,
+                         ServiceCounter c) {
+        header(sb, name, "counter", help);
+        for (ServiceMetrics sm : services.values()) {
+            sb.append(name).append("{service=\"").append(sm.name)
+                .append("\"} ").append(c.get(sm)).append('\n');
+        }
+    }
+
+    private static void summary(StringBuilder sb,
+                                String name,
+                                String labels,
+                                LatencyHistogram h) {
+        final String prefix = (labels == null ? "" : labels + ",");
+        for (double q : QUANTILES) {
+            sb.append(name).append('{').append(prefix)
+                .append("quantile=\"").append(q).append("\"} ")
+                .append(h.getQuantileMicros(q) / 1e6).append('\n');
+        }
+        final String suffix = (labels == null ? "" : "{" + labels + "}");
+        sb.append(name).append("_sum").append(suffix).append(' ')
+            .append(h.getSumMicros() / 1e6).append('\n');
+        sb.append(name).append("_count").append(suffix).append(' ')
+            .append(h.getCount()).append('\n');
+    }
+
+    private static final class Gauge {
+        final String help;
+        final boolean counter;
+        final LongSupplier value;
+
+        Gauge(String help, boolean counter, LongSupplier value) {
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    private static final class StatusMetrics {
+        final LongAdder count = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Metrics for one service
+     */
+    static final class ServiceMetrics {
+        static final int MAX_STATUS = 600;
+
+        final String name;
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram queueTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        /* created on first use of each status code */
+        final AtomicReferenceArray<StatusMetrics> byStatus =
+            new AtomicReferenceArray<StatusMetrics>(MAX_STATUS);
+
+        ServiceMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a completed request
+         *
+         * @param error true if the service failed with an exception
+         */
+        void record(int status,
+                    long queueNanos,
+                    long serviceNanos,
+                    long in,
+                    long out,
+                    boolean error) {
+            if (error || status >= 500) {
+                errors.increment();
+            }
+            bytesIn.add(in);
+            bytesOut.add(out);
+            queueTime.recordNanos(queueNanos);
+            serviceTime.recordNanos(serviceNanos);
+
+            if (status < 0 || status >= MAX_STATUS) {
+                status = 0;
+            }
+            StatusMetrics st = byStatus.get(status);
+            if (st == null) {
+                byStatus.compareAndSet(status, null, new StatusMetrics());
+                st = byStatus.get(status);
+            }
+            st.count.increment();
+            st.latency.recordNanos(queueNanos + serviceNanos);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+
+/**
+ * Builds the SslContext for an HttpServer's HTTPS port from key and
+ * certificate files, and rebuilds it when the files change so that
+ * certificates can be rotated without a restart. Set it with
+ * HttpServerConfig.setSslContext.
+ *
+ * The OpenSSL provider, from netty-tcnative, is used when it is available,
+ * as its handshakes take much less CPU than the JDK's. Otherwise the JDK
+ * provider is used.
+ *
+ * Handshakes are resumed where the client allows it, with both a server
+ * side session cache and session tickets. With OpenSSL the ticket key is
+ * generated once and kept across reloads, so tickets issued before a reload
+ * can still be used. The JDK provider issues tickets on Java 13 and later,
+ * with keys that change on reload.
+ *
+ * ALPN offers h2 if the HttpServer the context is set on has HTTP/2
+ * enabled, see HttpServerConfig.setHttp2Enabled. The server sets this when
+ * it starts, so a context should be used by one server.
+ *
+ * Connections keep the SslContext they were created with. A reload only
+ * affects new connections.
+ */
+public final class ServerSslContext {
+
+    static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    static final int DEFAULT_SESSION_TIMEOUT = 3600; /* seconds */
+
+    /* PEM files, or null if a key store is used */
+    private final File certChainFile;
+    private final File keyFile;
+    private final String keyPassword;
+
+    /* PKCS12 or JKS key store, or null if PEM files are used */
+    private final File keyStoreFile;
+    private final String keyStorePassword;
+
+    /* whether ALPN offers h2, set by the server, guarded by this */
+    private boolean http2;
+    private volatile SslProvider provider;
+
+    /* OpenSSL session ticket key, null until OpenSSL is the provider */
+    private volatile OpenSslSessionTicketKey ticketKey;
+
+    private volatile int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private volatile int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+    private volatile SslContext context;
+    private final LongAdder reloads = new LongAdder();
+
+    /* modification time of the files context was built from, guarded by this */
+    private long loadedModified;
+
+    /* a fixed context, see fixed() */
+    private ServerSslContext(SslContext context) {
+        this.certChainFile = null;
+        this.keyFile = null;
+        this.keyPassword = null;
+        this.keyStoreFile = null;
+        this.keyStorePassword = null;
+        this.http2 = false;
+        this.provider = null;
+        this.ticketKey = null;
+        this.context = context;
+    }
+
+    private ServerSslContext(File certChainFile,
+                             File keyFile,
+                             String keyPassword,
+                             File keyStoreFile,
+                             String keyStorePassword)
+        throws SSLException {
+        this.certChainFile = certChainFile;
+        this.keyFile = keyFile;
+        this.keyPassword = keyPassword;
+        this.keyStoreFile = keyStoreFile;
+        this.keyStorePassword = keyStorePassword;
+        this.http2 = false;
+        selectProvider();
+        reload();
+    }
+
+    /**
+     * Returns a context built from a PEM certificate chain and PKCS#8 key.
+     *
+     * @param keyPassword the key's password, or null if it is not encrypted
+     */
+    public static ServerSslContext forPem(File certChainFile,
+                                          File keyFile,
+                                          String keyPassword)
+        throws SSLException {
+
+        return new ServerSslContext(certChainFile, keyFile, keyPassword,
+                                    null, null);
+    }
+
+    /**
+     * Returns a context built from the key in a PKCS12 or JKS key store. The
+     * key's password must be the store password.
+     */
+    public static ServerSslContext forKeyStore(File keyStoreFile,
+                                               String password)
+        throws SSLException {
+
+        return new ServerSslContext(null, null, null, keyStoreFile, password);
+    }
+
+    /**
+     * Wraps an SslContext built by the caller. It is never reloaded.
+     */
+    static ServerSslContext fixed(SslContext context) {
+        return new ServerSslContext(context);
+    }
+
+    /**
+     * Returns the current context
+     */
+    public SslContext get() {
+        return context;
+    }
+
+    /**
+     * Returns the provider in use, or null for a context built by the caller
+     */
+    public SslProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Returns true if the context is built from files and can be reloaded
+     */
+    public boolean isReloadable() {
+        return keyFile != null || keyStoreFile != null;
+    }
+
+    /**
+     * Called by the server the context is set on, with its
+     * HttpServerConfig.getHttp2Enabled, to offer h2 with ALPN or not. The
+     * context is rebuilt if that changes. A context built by the caller is
+     * left as it is.
+     */
+    synchronized void setHttp2(boolean http2) throws SSLException {
+        if (!isReloadable() || http2 == this.http2) {
+            return;
+        }
+        this.http2 = http2;
+        selectProvider();
+        context = build();
+    }
+
+    /**
+     * Returns the number of times the context has been rebuilt since it was
+     * first built
+     */
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    /**
+     * Sets the maximum number of sessions cached for resumption. The
+     * default is 20480.
+     */
+    public ServerSslContext setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+        final SSLSessionContext sc = context.sessionContext();
+        if (sc != null) {
+            sc.setSessionCacheSize(sessionCacheSize);
+        }
+        return this;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets how long, in seconds, a session can be resumed. This applies to
+     * both cached sessions and tickets. The default is 3600.
+     */
+    public ServerSslContext setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+        final SSLSessionContext sc = context.sessionContext();
+        if (sc != null) {
+            sc.setSessionTimeout(sessionTimeout);
+        }
+        return this;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Rebuilds the context from the files. If that fails the current
+     * context is kept.
+     */
+    public synchronized void reload() throws SSLException {
+        if (!isReloadable()) {
+            return;
+        }
+        final long modified = lastModified();
+        final boolean first = (context == null);
+        context = build();
+        loadedModified = modified;
+        if (!first) {
+            reloads.increment();
+        }
+    }
+
+    /**
+     * Rebuilds the context if a file has changed since it was last built
+     *
+     * @return true if the context was rebuilt
+     */
+    public synchronized boolean reloadIfModified() throws SSLException {
+        if (!isReloadable() || lastModified() == loadedModified) {
+            return false;
+        }
+        reload();
+        return true;
+    }
+
+    private long lastModified() {
+        if (keyStoreFile != null) {
+            return keyStoreFile.lastModified();
+        }
+        return Math.max(certChainFile.lastModified(), keyFile.lastModified());
+    }
+
+    private SslContext build() throws SSLException {
+        final SslContextBuilder builder =
+            (keyStoreFile != null ?
+             SslContextBuilder.forServer(loadKeyStore()) :
+             SslContextBuilder.forServer(certChainFile, keyFile,
+                                         keyPassword));
+        builder.sslProvider(provider)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeout);
+        if (http2) {
+            builder.ciphers(Http2SecurityUtil.CIPHERS,
+                            SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(HttpServer.HTTP2_ALPN_CONFIG);
+        }
+        final SslContext ctx = builder.build();
+
+        /* setting a ticket key also turns tickets on */
+        if (ticketKey != null &&
+            ctx.sessionContext() instanceof OpenSslSessionContext) {
+            final OpenSslSessionContext sc =
+                (OpenSslSessionContext) ctx.sessionContext();
+            sc.setSessionCacheEnabled(true);
+            sc.setTicketKeys(ticketKey);
+        }
+        return ctx;
+    }
+
+    private KeyManagerFactory loadKeyStore() throws SSLException {
+        try {
+            final KeyStore ks = KeyStore.getInstance(
+                keyStoreFile.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+            try (InputStream in = new FileInputStream(keyStoreFile)) {
+                ks.load(in, keyStorePassword.toCharArray());
+            }
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, keyStorePassword.toCharArray());
+            return kmf;
+        } catch (Exception e) {
+            throw new SSLException("Cannot load key store " + keyStoreFile +
+                                   ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Selects the provider for the current http2 setting. An OpenSSL ticket
+     * key, once generated, is kept.
+     */
+    private void selectProvider() {
+        provider = selectProvider(http2);
+        if (provider == SslProvider.OPENSSL && ticketKey == null) {
+            ticketKey = newTicketKey();
+        }
+    }
+
+    /**
+     * Returns OPENSSL if netty-tcnative is available and, for HTTP/2,
+     * supports ALPN, otherwise JDK
+     */
+    static SslProvider selectProvider(boolean http2) {
+        try {
+            if (OpenSsl.isAvailable() &&
+                (!http2 || SslProvider.isAlpnSupported(SslProvider.OPENSSL))) {
+                return SslProvider.OPENSSL;
+            }
+        } catch (Throwable t) {
+            /* tcnative classes missing or failed to link */
+        }
+        return SslProvider.JDK;
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        final SecureRandom random = new SecureRandom();
+        final byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        final byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        final byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+}
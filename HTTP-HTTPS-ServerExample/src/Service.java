@@ -10,9 +10,10 @@ public interface Service {
     /**
      * Handles a request
      *
-     * TODO: it'd be nice to abstract out HTTP 1.1 vs HTTP 2 but the Netty
-     * objects involved are different. When we want to handle both, think about
-     * better abstractions. Maybe just add an HTTP 2-based handleRequest method.
+     * HTTP/2 requests are converted to HTTP/1.1 objects per stream by the
+     * server pipeline, so services see the same FullHttpRequest for both.
+     * Connection level headers such as keep-alive do not apply to HTTP/2 and
+     * are dropped when the response is converted back.
      */
     public FullHttpResponse handleRequest(FullHttpRequest request,
                                           ChannelHandlerContext ctx,
@@ -0,0 +1,54 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for executors that run Service work off the Netty event loops.
+ * Pass one of these to ProxyRequestHandler.
+ */
+public final class ServiceExecutors {
+
+    private ServiceExecutors() {
+    }
+
+    /**
+     * Returns a fixed size pool with a bounded queue. When both the threads
+     * and the queue are full new work is rejected, and ProxyRequestHandler
+     * answers with 503 rather than queueing without limit.
+     */
+    public static ExecutorService newBoundedExecutor(int numThreads,
+                                                     int maxQueued) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = r -> {
+            final Thread t =
+                new Thread(r, "http-service-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(
+            numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(maxQueued), factory,
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task. Virtual
+     * threads require Java 21, so this is looked up reflectively.
+     *
+     * @throws UnsupportedOperationException if the JVM does not support
+     * virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                "Virtual threads are not supported by this JVM", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * A route to a Service, used by ProxyRequestHandler to index services by
+ * path. Paths are compared without a leading "/". A prefix route matches
+ * its path and any path below it at a "/" boundary, so a prefix of
+ * "V0/nosql/admin" matches "V0/nosql/admin" and "V0/nosql/admin/topology"
+ * but not "V0/nosql/administrator". A trailing "/" on a prefix is ignored,
+ * so "V0/nosql/admin/" is the same prefix. An exact route wins over a prefix
+ * route, and a longer prefix wins over a shorter one.
+ *
+ * A route may be restricted to one HTTP method. A route for a specific
+ * method wins over a route for any method on the same path.
+ */
+public final class ServiceRoute {
+
+    private final String path;
+    private final boolean prefix;
+    private final HttpMethod method;
+
+    private ServiceRoute(String path, boolean prefix, HttpMethod method) {
+        if (path == null) {
+            throw new IllegalArgumentException("Route path must be non-null");
+        }
+        final int start = (path.startsWith("/") ? 1 : 0);
+        int end = path.length();
+        /* a prefix matches at a "/" boundary, so its own trailing "/" goes */
+        while (prefix && end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        this.path = path.substring(start, end);
+        this.prefix = prefix;
+        this.method = method;
+    }
+
+    /**
+     * Returns a route that matches only the given path
+     */
+    public static ServiceRoute exact(String path) {
+        return new ServiceRoute(path, false, null);
+    }
+
+    /**
+     * Returns a route that matches the given path and all paths below it
+     */
+    public static ServiceRoute prefix(String path) {
+        return new ServiceRoute(path, true, null);
+    }
+
+    /**
+     * Returns a copy of this route that only matches the given method
+     */
+    public ServiceRoute withMethod(HttpMethod m) {
+        return new ServiceRoute(path, prefix, m);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the method this route is restricted to, or null for any method
+     */
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    @Override
+    public String toString() {
+        return (method != null ? method + " " : "") + path +
+            (prefix ? "/*" : "");
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * An HttpObjectAggregator that keeps request bodies up to a threshold in
+ * the pooled buffers they were read into, like its superclass, and moves
+ * larger bodies to a memory mapped temporary file as they arrive. A large
+ * request then holds at most about the threshold of buffer memory while it
+ * is read, whatever maxRequestSize allows.
+ *
+ * A spilled body is handed on as the content of the FullHttpRequest, as a
+ * buffer over a mapping of the whole file. The data was written through
+ * mappings of the same file, so nothing is copied again, and the nioBuffer
+ * of the content is the mapping itself. The mapping is unmapped and the
+ * file deleted when the request is released, which HttpServerHandler does
+ * once the response is ready. Services must not keep the content past
+ * that.
+ *
+ * If the request declares a Content-Length past the threshold the body is
+ * written to the file from its first byte. Otherwise it is moved there once
+ * the threshold is reached, and the file grows in steps. A body without a
+ * Content-Length that exceeds maxRequestSize fails the channel.
+ *
+ * Disk writes go to the page cache through the mapping and are done on the
+ * event loop, as the codec's own copying is.
+ *
+ * This handler keeps per-request state so an instance is created for each
+ * channel.
+ */
+final class SpillingHttpObjectAggregator extends HttpObjectAggregator {
+
+    /* how much the file grows at a time when the body size is not known */
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final int maxRequestSize;
+    private final int spillThreshold;
+    private final File spillDirectory;
+
+    /* the body being written to a file, or null */
+    private SpillFile spill;
+
+    /* the Content-Length of the current request, or -1 */
+    private long contentLength;
+
+    /**
+     * @param spillThreshold the body size past which it is written to a file
+     * @param spillDirectory where the files go, or null for java.io.tmpdir
+     */
+    SpillingHttpObjectAggregator(int maxRequestSize,
+                                 int spillThreshold,
+                                 File spillDirectory) {
+        super(maxRequestSize);
+        this.maxRequestSize = maxRequestSize;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    protected FullHttpMessage beginAggregation(HttpMessage start,
+                                               ByteBuf content)
+        throws Exception {
+        discardSpill();
+        contentLength = HttpUtil.getContentLength(start, -1L);
+        return super.beginAggregation(start, content);
+    }
+
+    @Override
+    protected void aggregate(FullHttpMessage aggregated, HttpContent content)
+        throws Exception {
+        super.aggregate(aggregated, content);
+        final CompositeByteBuf body = (CompositeByteBuf) aggregated.content();
+        if (spill == null) {
+            if (body.readableBytes() <= spillThreshold &&
+                contentLength <= spillThreshold) {
+                return;
+            }
+            spill = new SpillFile(spillDirectory,
+                                  (contentLength > 0 ? contentLength :
+                                   SEGMENT_SIZE));
+        }
+        if (spill.size() + body.readableBytes() > maxRequestSize) {
+            discardSpill();
+            throw new TooLongFrameException("Request body is larger than " +
+                                            maxRequestSize + " bytes");
+        }
+        spill.write(body);
+        body.discardReadComponents();
+    }
+
+    @Override
+    protected void finishAggregation(FullHttpMessage aggregated)
+        throws Exception {
+        if (spill != null) {
+            final CompositeByteBuf body =
+                (CompositeByteBuf) aggregated.content();
+            final SpillFile file = spill;
+            spill = null;
+
+            /* the body has been moved to the file as it arrived */
+            body.addComponent(true, file.finish());
+        }
+        super.finishAggregation(aggregated);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discardSpill();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discardSpill();
+        super.handlerRemoved(ctx);
+    }
+
+    private void discardSpill() {
+        if (spill != null) {
+            spill.discard();
+            spill = null;
+        }
+    }
+
+    /**
+     * A temporary file a body is written to through a mapping of the region
+     * being written
+     */
+    private static final class SpillFile {
+        private final File file;
+        private final FileChannel channel;
+
+        /* the mapped region being written and its offset in the file */
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        SpillFile(File directory, long initialSize) throws IOException {
+            /* owner-only permissions, where the file system has them */
+            file = (directory != null ?
+                    Files.createTempFile(directory.toPath(), "http-body-",
+                                         ".tmp") :
+                    Files.createTempFile("http-body-", ".tmp")).toFile();
+            try {
+                channel = FileChannel.open(file.toPath(),
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+            } catch (IOException ioe) {
+                file.delete();
+                throw ioe;
+            }
+            try {
+                map(0, initialSize);
+            } catch (IOException ioe) {
+                discard();
+                throw ioe;
+            }
+        }
+
+        long size() {
+            return regionStart + region.position();
+        }
+
+        /**
+         * Writes all readable bytes of src, growing the file as needed
+         */
+        void write(ByteBuf src) throws IOException {
+            while (src.isReadable()) {
+                if (!region.hasRemaining()) {
+                    map(size(), SEGMENT_SIZE);
+                }
+                final int n = Math.min(src.readableBytes(),
+                                       region.remaining());
+                region.put(src.nioBuffer(src.readerIndex(), n));
+                src.skipBytes(n);
+            }
+        }
+
+        private void map(long start, long length) throws IOException {
+            unmap();
+            region = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                 length);
+            regionStart = start;
+        }
+
+        private void unmap() {
+            if (region != null) {
+                freeMapping(region);
+                region = null;
+            }
+        }
+
+        /**
+         * Returns a buffer over the whole body. The file is deleted when the
+         * buffer is released.
+         */
+        ByteBuf finish() throws IOException {
+            final long size = size();
+            try {
+                unmap();
+                channel.truncate(size);
+                final ByteBuffer body = channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+                return new SpilledContent(body, file);
+            } catch (IOException ioe) {
+                discard();
+                throw ioe;
+            } finally {
+                channel.close();
+            }
+        }
+
+        void discard() {
+            unmap();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                /* nothing more to do */
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * A buffer over a mapped file that unmaps and deletes the file when it
+     * is deallocated
+     */
+    private static final class SpilledContent extends UnpooledDirectByteBuf {
+        private final ByteBuffer mapped;
+        private final File file;
+
+        SpilledContent(ByteBuffer mapped, File file) {
+            super(UnpooledByteBufAllocator.DEFAULT, mapped, mapped.capacity());
+            this.mapped = mapped;
+            this.file = file;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            freeMapping(mapped);
+            file.delete();
+        }
+    }
+
+    /**
+     * Releases a file mapping now rather than when the buffer is garbage
+     * collected. The JDK has no public way to do this, so Netty's internal
+     * cleaner is used. Until a mapping is released its pages stay mapped,
+     * and on Windows the file cannot be truncated or deleted.
+     */
+    private static void freeMapping(ByteBuffer mapped) {
+        PlatformDependent.freeDirectBuffer(mapped);
+    }
+}
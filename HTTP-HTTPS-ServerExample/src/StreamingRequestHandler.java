@@ -0,0 +1,21 @@
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * A RequestHandler that can take requests with streamed bodies. When the
+ * handler passed to HttpServer implements this interface, the server
+ * offers each request head to startStreaming before aggregation.
+ */
+public interface StreamingRequestHandler extends RequestHandler {
+
+    /**
+     * Offers a request head for streaming
+     *
+     * @return the receiver for the request body if it is routed to a
+     * StreamingService, or null if the request should be aggregated and
+     * passed to handleRequest as usual.
+     */
+    public StreamingService.StreamingRequest
+        startStreaming(HttpRequest request, ChannelHandlerContext ctx);
+}
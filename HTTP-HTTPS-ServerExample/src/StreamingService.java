@@ -0,0 +1,64 @@
+
+import java.util.concurrent.CompletableFuture;
+
+import oracle.nosql.common.contextlogger.LogContext;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * A Service that receives request bodies incrementally instead of as a
+ * single aggregated FullHttpRequest. Requests routed to a StreamingService
+ * bypass the HttpObjectAggregator, so the body is never buffered whole and
+ * is not limited by the server's maxRequestSize.
+ *
+ * All callbacks are made on the channel's event loop and must not block.
+ * Work that blocks should be handed off, and its completion reported through
+ * the returned futures.
+ */
+public interface StreamingService extends Service {
+
+    /**
+     * Starts a streamed request. Called once the request line and headers
+     * have been read, before any content.
+     *
+     * @return the receiver for this request's body
+     */
+    public StreamingRequest startRequest(HttpRequest request,
+                                         ChannelHandlerContext ctx,
+                                         LogContext lc);
+
+    /**
+     * Per-request receiver of a streamed body
+     */
+    public interface StreamingRequest {
+
+        /**
+         * Receives the next body chunk. The content is released after this
+         * returns, so it must be retained if it is used later.
+         *
+         * @return null or a completed future to continue reading. If the
+         * returned future is not complete, reads on the channel are paused
+         * until it completes, which applies backpressure to the client. An
+         * exceptionally completed future aborts the request and closes the
+         * channel.
+         */
+        public CompletableFuture<Void> onContent(HttpContent content);
+
+        /**
+         * Called after the last chunk has been received and accepted.
+         *
+         * @return the response to the request
+         */
+        public CompletableFuture<FullHttpResponse> onComplete();
+
+        /**
+         * Called if the request ends before onComplete, because the channel
+         * closed or a chunk could not be processed. Resources held for the
+         * request should be released.
+         */
+        public void onAbort(Throwable cause);
+    }
+}
@@ -0,0 +1,219 @@
+import java.lang.reflect.Method;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.Locale;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import oracle.nosql.common.sklogger.SkLogger;
+
+/**
+ * The socket transport used by HttpServer for its event loops and server
+ * channels.
+ *
+ * EPOLL uses the native Linux epoll transport that ships with netty-all.
+ * IO_URING uses the netty io_uring incubator transport. That transport is a
+ * separate jar, so it is loaded reflectively and is only available when the
+ * jar and its native library are on the classpath. NIO is the portable,
+ * selector-based transport and is always available.
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int numThreads) {
+            return new NioEventLoopGroup(numThreads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        /*
+         * StandardSocketOptions.SO_REUSEPORT only exists in Java 9+, and
+         * is only supported by some platforms.
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        ChannelOption<Boolean> reusePortOption() {
+            try {
+                final SocketOption<Boolean> opt = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT")
+                    .get(null);
+                return NioChannelOption.of(opt);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    },
+
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            try {
+                return Epoll.isAvailable();
+            } catch (Throwable t) {
+                /* native transport classes missing or failed to link */
+                return false;
+            }
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int numThreads) {
+            return new EpollEventLoopGroup(numThreads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        ChannelOption<Boolean> reusePortOption() {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+    },
+
+    IO_URING {
+        private static final String PKG = "io.netty.incubator.channel.uring.";
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                final Method m =
+                    Class.forName(PKG + "IOUring").getMethod("isAvailable");
+                return (Boolean) m.invoke(null);
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int numThreads) {
+            try {
+                return (EventLoopGroup)
+                    Class.forName(PKG + "IOUringEventLoopGroup")
+                    .getConstructor(int.class).newInstance(numThreads);
+            } catch (Exception e) {
+                throw new IllegalStateException(
+                    "Unable to create io_uring event loop group", e);
+            }
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            try {
+                return Class.forName(PKG + "IOUringServerSocketChannel")
+                    .asSubclass(ServerChannel.class);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(
+                    "Unable to load io_uring server channel", e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        ChannelOption<Boolean> reusePortOption() {
+            try {
+                return (ChannelOption<Boolean>)
+                    Class.forName(PKG + "IOUringChannelOption")
+                    .getField("SO_REUSEPORT").get(null);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /* the incubator transport only writes ByteBufs */
+        @Override
+        boolean supportsFileRegion() {
+            return false;
+        }
+    };
+
+    /**
+     * System property that can be used to select the transport when the
+     * caller does not pass one to HttpServer. Valid values are the enum
+     * names, case insensitive, or "auto".
+     */
+    public static final String TRANSPORT_PROPERTY = "httpserver.transport";
+
+    /**
+     * Returns true if this transport can be used in the current JVM
+     */
+    public abstract boolean isAvailable();
+
+    abstract EventLoopGroup newEventLoopGroup(int numThreads);
+
+    abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * Returns the SO_REUSEPORT server channel option for this transport, or
+     * null if it is not supported.
+     */
+    abstract ChannelOption<Boolean> reusePortOption();
+
+    /**
+     * Returns true if this transport's channels can write a FileRegion,
+     * which they send with sendfile
+     */
+    boolean supportsFileRegion() {
+        return true;
+    }
+
+    /**
+     * Returns the best available transport, preferring io_uring, then epoll,
+     * then NIO.
+     */
+    public static Transport best() {
+        if (IO_URING.isAvailable()) {
+            return IO_URING;
+        }
+        if (EPOLL.isAvailable()) {
+            return EPOLL;
+        }
+        return NIO;
+    }
+
+    /**
+     * Resolves the transport to use. A null requested transport means use
+     * the TRANSPORT_PROPERTY system property if set, or the best available
+     * transport otherwise. A property value that names no transport, or a
+     * transport that is not available in this JVM, falls back to NIO with a
+     * warning.
+     */
+    static Transport select(Transport requested, SkLogger logger) {
+        if (requested == null) {
+            final String prop = System.getProperty(TRANSPORT_PROPERTY);
+            if (prop == null || prop.equalsIgnoreCase("auto")) {
+                return best();
+            }
+            try {
+                requested = valueOf(prop.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                logger.warning("HttpServer " + TRANSPORT_PROPERTY + "=" +
+                               prop + " is not a transport, using " + NIO);
+                return NIO;
+            }
+        }
+        if (!requested.isAvailable()) {
+            logger.warning("HttpServer transport " + requested +
+                           " is not available, using " + NIO);
+            return NIO;
+        }
+        return requested;
+    }
+}
@@ -0,0 +1,477 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import oracle.kv.table.ReturnRow;
+import oracle.kv.table.Row;
+import oracle.kv.table.Table;
+import oracle.kv.table.TableAPI;
+import oracle.kv.table.TableOpExecutionException;
+import oracle.kv.table.TableOperation;
+import oracle.kv.table.TableOperationFactory;
+
+/**
+ * Writes rows to a table from a number of worker threads. Rows added by the
+ * loading thread are grouped by shard key, and a group of rows is written
+ * with a single TableAPI.execute call, which the store runs as one request
+ * on the shard that holds the key. A row whose shard key is not shared, as
+ * in a table whose shard key is its whole primary key, is written with a
+ * put. Each task handed to the workers holds up to a batch of rows.
+ *
+ * Rows added but not yet written are bounded: add blocks while
+ * maxInFlight rows are queued or being written, so the loader cannot run
+ * ahead of the store. Until the writer is finished, a report line with the
+ * rows written, the rate and the latency percentiles of write calls over
+ * the last interval is printed every report interval, and finish prints
+ * the same for the whole load.
+ *
+ * Rows may be added by several threads. A failed write is counted, and the
+ * first few are printed, but does not stop the load.
+ */
+public class BulkWriter {
+
+    /* rows held for grouping, in batches, before they are written anyway */
+    private static final int PENDING_BATCHES = 16;
+
+    /* failed write calls printed, the rest are only counted */
+    private static final int ERRORS_PRINTED = 10;
+
+    private final TableAPI tableAPI;
+    private final TableOperationFactory factory;
+    private final List<String> shardKey;
+    private final boolean grouped;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService reporter;
+
+    /* guarded by this */
+    private final Map<Object, List<Row>> pending =
+        new LinkedHashMap<Object, List<Row>>();
+    private int pendingRows;
+    private List<List<Row>> singles = new ArrayList<List<Row>>();
+
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger failedWrites = new AtomicInteger();
+    private final Latencies latencies = new Latencies();
+
+    /* guarded by latencies */
+    private final long[] totalLatencies = new long[Latencies.BUCKETS];
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+    private long lastReportRows;
+
+    /**
+     * @param threads the number of worker threads
+     * @param batchSize the most rows in a task, and in a group written at
+     * once
+     * @param maxInFlight the most rows added but not yet written
+     * @param reportInterval seconds between report lines, or 0 for none
+     */
+    public BulkWriter(TableAPI tableAPI,
+                      Table table,
+                      int threads,
+                      int batchSize,
+                      int maxInFlight,
+                      int reportInterval) {
+        if (threads < 1 || batchSize < 1) {
+            throw new IllegalArgumentException(
+                "Threads and batch size must be at least 1");
+        }
+        if (maxInFlight < batchSize) {
+            throw new IllegalArgumentException(
+                "In flight rows " + maxInFlight +
+                " is less than the batch size " + batchSize);
+        }
+        this.tableAPI = tableAPI;
+        this.factory = tableAPI.getTableOperationFactory();
+        this.shardKey = table.getShardKey();
+        this.grouped = shardKey.size() < table.getPrimaryKey().size();
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(maxInFlight);
+        final AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+                final Thread t = new Thread(
+                    r, "bulk-writer-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        if (reportInterval > 0) {
+            this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread t = new Thread(r, "bulk-writer-report");
+                    t.setDaemon(true);
+                    return t;
+                });
+            reporter.scheduleAtFixedRate(this::report, reportInterval,
+                                         reportInterval, TimeUnit.SECONDS);
+        } else {
+            this.reporter = null;
+        }
+    }
+
+    /**
+     * Adds a row to be written, blocking while too many rows are in flight
+     */
+    public synchronized void add(Row row) throws InterruptedException {
+        if (!grouped) {
+            /* each row is a group of its own */
+            singles.add(Collections.singletonList(row));
+            if (singles.size() >= batchSize) {
+                flush();
+            }
+            return;
+        }
+        final Object key = shardKeyOf(row);
+        List<Row> group = pending.get(key);
+        if (group == null) {
+            group = new ArrayList<Row>();
+            pending.put(key, group);
+        }
+        group.add(row);
+        pendingRows++;
+        if (group.size() >= batchSize) {
+            pending.remove(key);
+            pendingRows -= group.size();
+            submit(Collections.singletonList(group), group.size(), null);
+        } else if (pendingRows >= batchSize * PENDING_BATCHES) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds rows to be written, grouped by shard key among themselves rather
+     * than with rows added one at a time, blocking while too many rows are
+     * in flight. Once all of them have been written, or have failed,
+     * onWritten is called with the number that failed, on a worker thread or
+     * on this one if rows is empty.
+     */
+    public synchronized void addAll(List<Row> rows, LongConsumer onWritten)
+        throws InterruptedException {
+
+        final Tracker tracker = new Tracker(onWritten);
+        try {
+            if (!grouped) {
+                final List<List<Row>> groups =
+                    new ArrayList<List<Row>>(rows.size());
+                for (Row row : rows) {
+                    groups.add(Collections.singletonList(row));
+                }
+                submitGroups(groups, tracker);
+            } else {
+                final Map<Object, List<Row>> groups =
+                    new LinkedHashMap<Object, List<Row>>();
+                for (Row row : rows) {
+                    final Object key = shardKeyOf(row);
+                    List<Row> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<Row>();
+                        groups.put(key, group);
+                    }
+                    group.add(row);
+                }
+                submitGroups(groups.values(), tracker);
+            }
+        } finally {
+            tracker.release();
+        }
+    }
+
+    /**
+     * Hands all rows held for grouping to the workers
+     */
+    public synchronized void flush() throws InterruptedException {
+        if (!singles.isEmpty()) {
+            submit(singles, singles.size(), null);
+            singles = new ArrayList<List<Row>>(batchSize);
+        }
+        submitGroups(pending.values(), null);
+        pending.clear();
+        pendingRows = 0;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Submits groups in tasks of up to a batch of rows, splitting groups
+     * that are larger than that
+     */
+    private void submitGroups(Collection<List<Row>> groups, Tracker tracker)
+        throws InterruptedException {
+
+        List<List<Row>> task = new ArrayList<List<Row>>();
+        int taskRows = 0;
+        for (List<Row> group : groups) {
+            for (int i = 0; i < group.size(); i += batchSize) {
+                final List<Row> part = (group.size() <= batchSize ? group :
+                    group.subList(i, Math.min(i + batchSize, group.size())));
+                if (taskRows > 0 && taskRows + part.size() > batchSize) {
+                    submit(task, taskRows, tracker);
+                    task = new ArrayList<List<Row>>();
+                    taskRows = 0;
+                }
+                task.add(part);
+                taskRows += part.size();
+            }
+        }
+        if (taskRows > 0) {
+            submit(task, taskRows, tracker);
+        }
+    }
+
+    private Object shardKeyOf(Row row) {
+        if (shardKey.size() == 1) {
+            return row.get(shardKey.get(0));
+        }
+        final Object[] values = new Object[shardKey.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = row.get(shardKey.get(i));
+        }
+        return Arrays.asList(values);
+    }
+
+    private void submit(List<List<Row>> task, int rows, Tracker tracker)
+        throws InterruptedException {
+
+        inFlight.acquire(rows);
+        if (tracker != null) {
+            tracker.acquire();
+        }
+        try {
+            workers.execute(() -> {
+                    long failed = 0;
+                    try {
+                        for (List<Row> group : task) {
+                            if (!write(group)) {
+                                failed += group.size();
+                            }
+                        }
+                    } finally {
+                        inFlight.release(rows);
+                        if (tracker != null) {
+                            tracker.failed.add(failed);
+                            tracker.release();
+                        }
+                    }
+                });
+        } catch (RuntimeException re) {
+            inFlight.release(rows);
+            if (tracker != null) {
+                tracker.failed.add(rows);
+                tracker.release();
+            }
+            throw re;
+        }
+    }
+
+    /**
+     * Runs on a worker thread
+     *
+     * @return whether the rows were written
+     */
+    private boolean write(List<Row> group) {
+        final long start = System.nanoTime();
+        try {
+            if (group.size() == 1) {
+                tableAPI.put(group.get(0), null, null);
+            } else {
+                final List<TableOperation> ops =
+                    new ArrayList<TableOperation>(group.size());
+                for (Row row : group) {
+                    ops.add(factory.createPut(row, ReturnRow.Choice.NONE,
+                                               true));
+                }
+                tableAPI.execute(ops, null);
+            }
+            latencies.record(System.nanoTime() - start);
+            rowsWritten.add(group.size());
+            return true;
+        } catch (TableOpExecutionException | RuntimeException e) {
+            errors.add(group.size());
+            if (failedWrites.incrementAndGet() <= ERRORS_PRINTED) {
+                System.err.println("Writing " + group.size() +
+                                   " rows failed: " + e);
+            }
+            return false;
+        }
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    /**
+     * Returns the number of rows that could not be written
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Writes the rows still held, waits for all writes to finish and prints
+     * a summary of the whole load
+     */
+    public void finish() throws InterruptedException {
+        try {
+            flush();
+        } finally {
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for writes to finish");
+            }
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        synchronized (latencies) {
+            latencies.drainTo(totalLatencies);
+            final long elapsed = System.nanoTime() - startNanos;
+            System.out.println(
+                String.format("Wrote %,d rows in %.1f s, %,.0f rows/s, " +
+                              "write ms %s, %,d failed",
+                              rowsWritten.sum(), elapsed / 1e9,
+                              rowsWritten.sum() * 1e9 / Math.max(elapsed, 1),
+                              Latencies.percentiles(totalLatencies),
+                              errors.sum()));
+        }
+    }
+
+    /**
+     * Runs on the report thread
+     */
+    private void report() {
+        synchronized (latencies) {
+            final long now = System.nanoTime();
+            final long rows = rowsWritten.sum();
+            final long[] interval = new long[Latencies.BUCKETS];
+            latencies.drainTo(interval);
+            for (int i = 0; i < interval.length; i++) {
+                totalLatencies[i] += interval[i];
+            }
+            System.out.println(
+                String.format("%,d rows, %,.0f rows/s, write ms %s, " +
+                              "%,d failed",
+                              rows,
+                              (rows - lastReportRows) * 1e9 /
+                              Math.max(now - lastReportNanos, 1),
+                              Latencies.percentiles(interval),
+                              errors.sum()));
+            lastReportNanos = now;
+            lastReportRows = rows;
+        }
+    }
+
+    /**
+     * Calls back once all tasks of an addAll call have run. It holds one
+     * count for the call itself, so it cannot finish while tasks are still
+     * being submitted.
+     */
+    private static final class Tracker {
+        private final LongConsumer onWritten;
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        final LongAdder failed = new LongAdder();
+
+        Tracker(LongConsumer onWritten) {
+            this.onWritten = onWritten;
+        }
+
+        void acquire() {
+            outstanding.incrementAndGet();
+        }
+
+        void release() {
+            if (outstanding.decrementAndGet() == 0) {
+                onWritten.accept(failed.sum());
+            }
+        }
+    }
+
+    /**
+     * Counts of write latencies in buckets of about 12% width, in
+     * microseconds
+     */
+    private static final class Latencies {
+
+        /* sub-buckets in each power of two */
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int LINEAR = SUB * 2;
+        static final int BUCKETS = LINEAR + (63 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(nanos / 1000, 0)));
+        }
+
+        /**
+         * Adds the counts to the array and resets them
+         */
+        void drainTo(long[] into) {
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts.get(i) != 0) {
+                    into[i] += counts.getAndSet(i, 0);
+                }
+            }
+        }
+
+        private static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            final int exp = 63 - Long.numberOfLeadingZeros(micros);
+            final int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB - 1);
+            return LINEAR + (exp - SUB_BITS - 1) * SUB + sub;
+        }
+
+        /* the largest latency in a bucket */
+        private static long upperBound(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            final int exp = (index - LINEAR) / SUB + SUB_BITS + 1;
+            final long sub = (index - LINEAR) % SUB;
+            return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        static String percentiles(long[] counts) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return "-";
+            }
+            final double[] quantiles = { 0.5, 0.99, 0.999, 1.0 };
+            final String[] names = { "p50", "p99", "p99.9", "max" };
+            final StringBuilder sb = new StringBuilder();
+            long seen = 0;
+            int q = 0;
+            for (int i = 0; i < counts.length && q < quantiles.length; i++) {
+                seen += counts[i];
+                while (q < quantiles.length &&
+                       seen >= Math.ceil(quantiles[q] * total)) {
+                    sb.append(q == 0 ? "" : " ").append(names[q])
+                        .append(String.format(" %.2f", upperBound(i) / 1e3));
+                    q++;
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,1013 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import oracle.kv.table.FieldDef;
+import oracle.kv.table.Row;
+import oracle.kv.table.Table;
+
+/**
+ * Imports a CSV or JSON lines file into a table through a BulkWriter.
+ *
+ * The file is mapped in chunks of up to CHUNK_SIZE bytes, each cut at the
+ * end of its last line, and the chunks are parsed by a number of parser
+ * threads. A parser reads fields straight from the mapped bytes: numbers
+ * and booleans are converted without making a String, and a string field
+ * is decoded once into the String the row holds. Rows are handed to the
+ * writer in batches, and parsers block while it has too many rows in
+ * flight.
+ *
+ * Fields are converted to the types of the table's fields. A NUMBER is read
+ * from its decimal text, and a TIMESTAMP from ISO 8601 text in UTC, such as
+ * 2020-01-31T12:00:00.5 or 2020-01-31. BINARY, FIXED_BINARY, JSON and
+ * complex fields cannot be imported: a CSV column mapped to one is
+ * rejected up front, and a JSON member for one makes its record bad. In a
+ * CSV file the columns are named by a header line, or are the table's
+ * fields in order; columns that are not table fields are ignored. Fields may be
+ * quoted, but a record must be on one line. A JSON lines file has one flat
+ * object per line, whose members are matched to table fields by name. An
+ * empty CSV field or a JSON null leaves the field unset. Every primary key
+ * field must be set: a CSV header that does not name them all is rejected,
+ * and a record that leaves one unset is bad. A record that cannot be
+ * parsed is counted, and the first few are printed with their offsets, and
+ * skipped, so that it never reaches the writer.
+ *
+ * Every report interval the progress is printed and the checkpoint file is
+ * written with the resume offset: the end of the chunks before the first
+ * one whose rows are not all written. Chunks complete out of order, so
+ * some rows after the offset may already be written; importing from it
+ * again only puts them again. A chunk with rows that failed to be written
+ * holds the offset back until the import is run again.
+ */
+public class FileImporter {
+
+    public enum Format { CSV, JSON_LINES }
+
+    private static final int CHUNK_SIZE = 32 << 20;
+
+    /* the most rows handed to the writer at once, in writer batches */
+    private static final int WRITE_BATCHES = 16;
+
+    private static final int ERRORS_PRINTED = 10;
+
+    private final Table table;
+    private final BulkWriter writer;
+    private final Path file;
+    private final Format format;
+    private final boolean header;
+    private final int parsers;
+    private final Path checkpoint;
+    private final int reportInterval;
+
+    /* the table's fields, in schema order */
+    private final Column[] fields;
+
+    /* the primary key fields, in key order */
+    private final Column[] keyFields;
+
+    /* for a CSV file, the field of each column, or null to ignore it */
+    private Column[] columns;
+
+    /* chunks not yet covered by the resume offset, in file order */
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+    private final AtomicLong resumeOffset = new AtomicLong();
+    private final AtomicLong bytesParsed = new AtomicLong();
+    private final LongAdder rowsParsed = new LongAdder();
+    private final LongAdder badRecords = new LongAdder();
+    private long startOffset;
+    private long fileSize;
+
+    /* set once the start offset is known, before any chunk is parsed */
+    private volatile boolean started;
+
+    /**
+     * @param header whether the first line of a CSV file names its columns
+     * @param parsers the number of parser threads
+     * @param checkpoint the file the resume offset is written to
+     * @param reportInterval seconds between progress reports, or 0 for none
+     */
+    public FileImporter(Table table,
+                        BulkWriter writer,
+                        Path file,
+                        Format format,
+                        boolean header,
+                        int parsers,
+                        Path checkpoint,
+                        int reportInterval) {
+        if (parsers < 1) {
+            throw new IllegalArgumentException(
+                "Parsers must be at least 1");
+        }
+        this.table = table;
+        this.writer = writer;
+        this.file = file;
+        this.format = format;
+        this.header = header;
+        this.parsers = parsers;
+        this.checkpoint = checkpoint;
+        this.reportInterval = reportInterval;
+
+        final List<String> names = table.getFields();
+        final List<String> key = table.getPrimaryKey();
+        this.fields = new Column[names.size()];
+        this.keyFields = new Column[key.size()];
+        for (int i = 0; i < fields.length; i++) {
+            final int keyIndex = key.indexOf(names.get(i));
+            fields[i] = new Column(names.get(i),
+                                   table.getField(names.get(i)).getType(),
+                                   keyIndex);
+            if (keyIndex >= 0) {
+                keyFields[keyIndex] = fields[i];
+            }
+        }
+        if (format == Format.CSV && !header) {
+            /* every field is a column */
+            checkImportable(fields);
+        }
+        this.columns = fields;
+    }
+
+    private static boolean isImportable(FieldDef.Type type) {
+        switch (type) {
+        case INTEGER:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+        case NUMBER:
+        case BOOLEAN:
+        case STRING:
+        case ENUM:
+        case TIMESTAMP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static void checkImportable(Column[] mapped) {
+        for (Column column : mapped) {
+            if (column != null && !isImportable(column.type)) {
+                throw new IllegalArgumentException(
+                    "Field " + column.name + " of type " + column.type +
+                    " cannot be imported");
+            }
+        }
+    }
+
+    /**
+     * Imports the file, from the offset in the checkpoint file if resume is
+     * true, and returns once the parsed rows have been handed to the
+     * writer. Call BulkWriter.finish, then checkpoint, to wait for them to
+     * be written and record the final resume offset.
+     */
+    public void importFile(boolean resume)
+        throws IOException, InterruptedException {
+
+        final ExecutorService parsePool =
+            Executors.newFixedThreadPool(parsers, daemon("file-parser"));
+        ScheduledExecutorService reporter = null;
+        try (FileChannel channel =
+                 FileChannel.open(file, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            long offset = 0;
+            if (format == Format.CSV && header) {
+                offset = readHeader(channel);
+            }
+            if (resume) {
+                offset = Math.max(offset, readCheckpoint());
+            }
+            startOffset = offset;
+            resumeOffset.set(offset);
+            started = true;
+            System.out.println(
+                String.format("Importing %s from offset %,d of %,d",
+                              file, offset, fileSize));
+
+            if (reportInterval > 0) {
+                reporter = Executors.newSingleThreadScheduledExecutor(
+                    daemon("file-import-report"));
+                final long start = System.nanoTime();
+                reporter.scheduleAtFixedRate(() -> report(start),
+                                             reportInterval, reportInterval,
+                                             TimeUnit.SECONDS);
+            }
+
+            /* bounds the chunks mapped but not yet parsed */
+            final Semaphore mapped = new Semaphore(parsers * 2);
+            while (offset < fileSize) {
+                final long length = Math.min(CHUNK_SIZE, fileSize - offset);
+                final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, offset, length);
+                int end = (int) length;
+                if (offset + length < fileSize) {
+                    while (end > 0 && buffer.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException(
+                            "Record at offset " + offset + " of " + file +
+                            " is longer than " + CHUNK_SIZE + " bytes");
+                    }
+                }
+                final Chunk chunk = new Chunk(offset, offset + end);
+                synchronized (chunks) {
+                    chunks.add(chunk);
+                }
+                mapped.acquire();
+                final int limit = end;
+                parsePool.execute(() -> {
+                        try {
+                            new Parser(buffer, chunk).parse(limit);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            chunk.failed.increment();
+                        } catch (RuntimeException re) {
+                            System.err.println(
+                                "Parsing chunk at offset " + chunk.start +
+                                " failed: " + re);
+                            chunk.failed.increment();
+                        } finally {
+                            mapped.release();
+                            chunk.release();
+                        }
+                    });
+                offset += end;
+            }
+        } finally {
+            parsePool.shutdown();
+            while (!parsePool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for parsers to finish");
+            }
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Advances the resume offset over the chunks whose rows have all been
+     * written and writes it to the checkpoint file. Does nothing if the
+     * import did not get as far as reading the file.
+     *
+     * @return the resume offset
+     */
+    public long checkpoint() throws IOException {
+        if (!started) {
+            return resumeOffset.get();
+        }
+        synchronized (chunks) {
+            while (!chunks.isEmpty()) {
+                final Chunk chunk = chunks.peek();
+                if (!chunk.isDone() || chunk.failed.sum() != 0) {
+                    break;
+                }
+                resumeOffset.set(chunk.end);
+                chunks.poll();
+            }
+            final long offset = resumeOffset.get();
+            final Path temp = checkpoint.resolveSibling(
+                checkpoint.getFileName() + ".tmp");
+            Files.write(temp, Long.toString(offset).getBytes(
+                            StandardCharsets.US_ASCII));
+            Files.move(temp, checkpoint,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            return offset;
+        }
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.sum();
+    }
+
+    /**
+     * Returns the number of records that could not be parsed
+     */
+    public long getBadRecords() {
+        return badRecords.sum();
+    }
+
+    private long readCheckpoint() throws IOException {
+        final String text;
+        try {
+            text = new String(Files.readAllBytes(checkpoint),
+                              StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException nsfe) {
+            return 0;
+        }
+        try {
+            final long offset = Long.parseLong(text);
+            if (offset < 0 || offset > fileSize) {
+                throw new IOException("Resume offset " + offset +
+                                      " is outside " + file);
+            }
+            return offset;
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Checkpoint " + checkpoint +
+                                  " does not hold an offset: " + text);
+        }
+    }
+
+    /**
+     * Maps the header line to table fields
+     *
+     * @return the offset of the first record
+     */
+    private long readHeader(FileChannel channel) throws IOException {
+        final ByteBuffer buffer = channel.map(
+            FileChannel.MapMode.READ_ONLY, 0, Math.min(CHUNK_SIZE, fileSize));
+        int end = 0;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        final String line = StandardCharsets.UTF_8.decode(
+            (ByteBuffer) buffer.duplicate().limit(end)).toString().trim();
+        final String[] names = line.split(",");
+        final Column[] mapped = new Column[names.length];
+        int found = 0;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.length() > 1 && name.startsWith("\"") &&
+                name.endsWith("\"")) {
+                name = name.substring(1, name.length() - 1);
+            }
+            for (Column field : fields) {
+                if (field.name.equalsIgnoreCase(name)) {
+                    mapped[i] = field;
+                    found++;
+                }
+            }
+        }
+        if (found == 0) {
+            throw new IOException("No column of " + file + " is a field " +
+                                  "of the table: " + line);
+        }
+        for (Column keyField : keyFields) {
+            if (!Arrays.asList(mapped).contains(keyField)) {
+                throw new IOException("Primary key field " + keyField.name +
+                                      " is not a column of " + file + ": " +
+                                      line);
+            }
+        }
+        checkImportable(mapped);
+        columns = mapped;
+        return Math.min(end + 1, fileSize);
+    }
+
+    /**
+     * Runs on the report thread
+     */
+    private void report(long start) {
+        try {
+            final long offset = checkpoint();
+            final long parsed = bytesParsed.get();
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(
+                String.format("Parsed %,d MB (%.1f%%), %,.1f MB/s, " +
+                              "%,d rows, %,d bad records, resume offset %,d",
+                              (startOffset + parsed) >> 20,
+                              (startOffset + parsed) * 100.0 /
+                              Math.max(fileSize, 1),
+                              (parsed >> 20) / seconds, rowsParsed.sum(),
+                              badRecords.sum(), offset));
+        } catch (IOException ioe) {
+            System.err.println("Writing checkpoint " + checkpoint +
+                               " failed: " + ioe);
+        }
+    }
+
+    private void badRecord(long offset, String reason) {
+        badRecords.increment();
+        if (badRecords.sum() <= ERRORS_PRINTED) {
+            System.err.println("Record at offset " + offset + " of " + file +
+                               " skipped: " + reason);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        final AtomicInteger id = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, name + "-" + id.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * A table field and its name as lower case UTF-8, for matching
+     */
+    private static final class Column {
+        final String name;
+        final FieldDef.Type type;
+        final byte[] lowerName;
+
+        /* the index in the primary key, or -1 */
+        final int keyIndex;
+
+        Column(String name, FieldDef.Type type, int keyIndex) {
+            this.name = name;
+            this.type = type;
+            this.keyIndex = keyIndex;
+            this.lowerName =
+                name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A range of the file. It is done once it has been parsed and every
+     * batch of its rows has been written or has failed.
+     */
+    private static final class Chunk {
+        final long start;
+        final long end;
+        final LongAdder failed = new LongAdder();
+
+        /* one for parsing, and one for each batch not yet written */
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void acquire() {
+            outstanding.incrementAndGet();
+        }
+
+        void release() {
+            outstanding.decrementAndGet();
+        }
+
+        boolean isDone() {
+            return outstanding.get() == 0;
+        }
+    }
+
+    /**
+     * Parses the records of one chunk
+     */
+    private final class Parser {
+        private final ByteBuffer buffer;
+        private final Chunk chunk;
+        private final int batchRows = writer.getBatchSize() * WRITE_BATCHES;
+        private List<Row> batch = new ArrayList<Row>(batchRows);
+
+        /* the bytes of the chunk added to bytesParsed */
+        private int counted;
+
+        /* string bytes with quotes or escapes removed */
+        private byte[] scratch = new byte[256];
+
+        /* the primary key fields set in the record being parsed */
+        private final boolean[] keySet = new boolean[keyFields.length];
+
+        /* the JSON string last read: its range, or scratch if escaped */
+        private int stringStart;
+        private int stringEnd;
+        private boolean stringEscaped;
+
+        Parser(ByteBuffer buffer, Chunk chunk) {
+            this.buffer = buffer;
+            this.chunk = chunk;
+        }
+
+        void parse(int limit) throws InterruptedException {
+            try {
+                parseRecords(limit);
+            } finally {
+                bytesParsed.addAndGet(limit - counted);
+            }
+        }
+
+        private void parseRecords(int limit) throws InterruptedException {
+            int pos = 0;
+            while (pos < limit) {
+                int lineEnd = pos;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > pos && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > pos) {
+                    final Row row = table.createRow();
+                    Arrays.fill(keySet, false);
+                    try {
+                        if (format == Format.CSV) {
+                            parseCsv(row, pos, end);
+                        } else {
+                            parseJson(row, pos, end);
+                        }
+                        checkKey();
+                        batch.add(row);
+                        rowsParsed.increment();
+                        if (batch.size() >= batchRows) {
+                            send(lineEnd);
+                        }
+                    } catch (IllegalArgumentException iae) {
+                        badRecord(chunk.start + pos, iae.getMessage());
+                    }
+                }
+                pos = lineEnd + 1;
+            }
+            if (!batch.isEmpty()) {
+                send(limit);
+            }
+        }
+
+        /**
+         * Checks that the record just parsed set every primary key field,
+         * as a row without one cannot be written
+         */
+        private void checkKey() {
+            for (int i = 0; i < keySet.length; i++) {
+                if (!keySet[i]) {
+                    throw new IllegalArgumentException(
+                        "missing primary key field " + keyFields[i].name);
+                }
+            }
+        }
+
+        /**
+         * Hands the batch to the writer
+         *
+         * @param pos the position parsed up to, for progress reports
+         */
+        private void send(int pos) throws InterruptedException {
+            chunk.acquire();
+            try {
+                writer.addAll(batch, failed -> {
+                        chunk.failed.add(failed);
+                        chunk.release();
+                    });
+            } catch (RuntimeException re) {
+                chunk.failed.add(batch.size());
+                chunk.release();
+                throw re;
+            }
+            batch = new ArrayList<Row>(batchRows);
+            bytesParsed.addAndGet(pos - counted);
+            counted = pos;
+        }
+
+        private void parseCsv(Row row, int pos, int end) {
+            int column = 0;
+            while (true) {
+                if (column >= columns.length) {
+                    throw new IllegalArgumentException(
+                        "more than " + columns.length + " fields");
+                }
+                final Column field = columns[column++];
+                int next;
+                if (pos < end && buffer.get(pos) == '"') {
+                    /* copy the quoted field, with "" as " */
+                    int length = 0;
+                    int i = pos + 1;
+                    while (true) {
+                        if (i >= end) {
+                            throw new IllegalArgumentException(
+                                "unterminated quoted field");
+                        }
+                        final byte b = buffer.get(i++);
+                        if (b == '"') {
+                            if (i < end && buffer.get(i) == '"') {
+                                i++;
+                            } else {
+                                break;
+                            }
+                        }
+                        length = append(length, b);
+                    }
+                    if (i < end && buffer.get(i) != ',') {
+                        throw new IllegalArgumentException(
+                            "text after quoted field");
+                    }
+                    next = i;
+                    if (field != null) {
+                        setScratch(row, field, length);
+                    }
+                } else {
+                    next = pos;
+                    while (next < end && buffer.get(next) != ',') {
+                        next++;
+                    }
+                    if (field != null && next > pos) {
+                        set(row, field, pos, next);
+                    }
+                }
+                if (next >= end) {
+                    return;
+                }
+                pos = next + 1;
+            }
+        }
+
+        private void parseJson(Row row, int pos, int end) {
+            pos = skipSpace(pos, end);
+            if (pos >= end || buffer.get(pos) != '{') {
+                throw new IllegalArgumentException("not a JSON object");
+            }
+            pos = skipSpace(pos + 1, end);
+            if (pos < end && buffer.get(pos) == '}') {
+                return;
+            }
+            while (true) {
+                if (pos >= end || buffer.get(pos) != '"') {
+                    throw new IllegalArgumentException(
+                        "expected a member name");
+                }
+                pos = readString(pos, end);
+                final Column field = findField();
+                pos = skipSpace(pos, end);
+                if (pos >= end || buffer.get(pos) != ':') {
+                    throw new IllegalArgumentException("expected ':'");
+                }
+                pos = skipSpace(pos + 1, end);
+                if (pos >= end) {
+                    throw new IllegalArgumentException("missing value");
+                }
+                final byte b = buffer.get(pos);
+                if (b == '"') {
+                    pos = readString(pos, end);
+                    if (field != null) {
+                        if (stringEscaped) {
+                            setScratch(row, field, stringEnd);
+                        } else {
+                            set(row, field, stringStart, stringEnd);
+                        }
+                    }
+                } else if (b == '{' || b == '[') {
+                    throw new IllegalArgumentException(
+                        "nested values are not supported");
+                } else {
+                    int valueEnd = pos;
+                    while (valueEnd < end) {
+                        final byte c = buffer.get(valueEnd);
+                        if (c == ',' || c == '}' || c == ' ' || c == '\t') {
+                            break;
+                        }
+                        valueEnd++;
+                    }
+                    if (field != null && !isNull(pos, valueEnd)) {
+                        set(row, field, pos, valueEnd);
+                    }
+                    pos = valueEnd;
+                }
+                pos = skipSpace(pos, end);
+                if (pos < end && buffer.get(pos) == ',') {
+                    pos = skipSpace(pos + 1, end);
+                } else if (pos < end && buffer.get(pos) == '}') {
+                    return;
+                } else {
+                    throw new IllegalArgumentException("expected ',' or '}'");
+                }
+            }
+        }
+
+        private int skipSpace(int pos, int end) {
+            while (pos < end) {
+                final byte b = buffer.get(pos);
+                if (b != ' ' && b != '\t') {
+                    break;
+                }
+                pos++;
+            }
+            return pos;
+        }
+
+        private boolean isNull(int start, int end) {
+            return end - start == 4 && buffer.get(start) == 'n' &&
+                buffer.get(start + 1) == 'u' && buffer.get(start + 2) == 'l' &&
+                buffer.get(start + 3) == 'l';
+        }
+
+        /**
+         * Reads the JSON string starting with the quote at pos. If it has
+         * no escapes its contents are left in place, from stringStart to
+         * stringEnd, otherwise they are decoded into scratch, from 0 to
+         * stringEnd.
+         *
+         * @return the position after the closing quote
+         */
+        private int readString(int pos, int end) {
+            int i = pos + 1;
+            while (i < end) {
+                final byte b = buffer.get(i);
+                if (b == '"') {
+                    stringStart = pos + 1;
+                    stringEnd = i;
+                    stringEscaped = false;
+                    return i + 1;
+                }
+                if (b == '\\') {
+                    break;
+                }
+                i++;
+            }
+            int length = 0;
+            i = pos + 1;
+            while (true) {
+                if (i >= end) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                byte b = buffer.get(i++);
+                if (b == '"') {
+                    break;
+                }
+                if (b != '\\') {
+                    length = append(length, b);
+                    continue;
+                }
+                if (i >= end) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                b = buffer.get(i++);
+                switch (b) {
+                case 'b': length = append(length, (byte) '\b'); break;
+                case 'f': length = append(length, (byte) '\f'); break;
+                case 'n': length = append(length, (byte) '\n'); break;
+                case 'r': length = append(length, (byte) '\r'); break;
+                case 't': length = append(length, (byte) '\t'); break;
+                case 'u':
+                    int c = hex4(i, end);
+                    i += 4;
+                    if (Character.isHighSurrogate((char) c) &&
+                        i + 1 < end && buffer.get(i) == '\\' &&
+                        buffer.get(i + 1) == 'u') {
+                        final int low = hex4(i + 2, end);
+                        if (Character.isLowSurrogate((char) low)) {
+                            c = Character.toCodePoint((char) c, (char) low);
+                            i += 6;
+                        }
+                    }
+                    length = appendCodePoint(length, c);
+                    break;
+                default:
+                    length = append(length, b);
+                }
+            }
+            stringEnd = length;
+            stringEscaped = true;
+            return i;
+        }
+
+        private int hex4(int pos, int end) {
+            if (pos + 4 > end) {
+                throw new IllegalArgumentException("bad \\u escape");
+            }
+            int value = 0;
+            for (int i = pos; i < pos + 4; i++) {
+                final int digit = Character.digit(buffer.get(i), 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("bad \\u escape");
+                }
+                value = value << 4 | digit;
+            }
+            return value;
+        }
+
+        private int appendCodePoint(int length, int c) {
+            if (c < 0x80) {
+                return append(length, (byte) c);
+            }
+            if (c < 0x800) {
+                length = append(length, (byte) (0xc0 | c >> 6));
+            } else {
+                if (c < 0x10000) {
+                    length = append(length, (byte) (0xe0 | c >> 12));
+                } else {
+                    length = append(length, (byte) (0xf0 | c >> 18));
+                    length = append(length,
+                                    (byte) (0x80 | (c >> 12 & 0x3f)));
+                }
+                length = append(length, (byte) (0x80 | (c >> 6 & 0x3f)));
+            }
+            return append(length, (byte) (0x80 | (c & 0x3f)));
+        }
+
+        private int append(int length, byte b) {
+            if (length == scratch.length) {
+                final byte[] larger = new byte[length * 2];
+                System.arraycopy(scratch, 0, larger, 0, length);
+                scratch = larger;
+            }
+            scratch[length] = b;
+            return length + 1;
+        }
+
+        /**
+         * Returns the table field named by the string last read, or null
+         */
+        private Column findField() {
+            for (Column field : fields) {
+                final byte[] name = field.lowerName;
+                final int length = (stringEscaped ? stringEnd :
+                                    stringEnd - stringStart);
+                if (name.length != length) {
+                    continue;
+                }
+                int i = 0;
+                while (i < length) {
+                    byte b = (stringEscaped ? scratch[i] :
+                              buffer.get(stringStart + i));
+                    if (b >= 'A' && b <= 'Z') {
+                        b += 'a' - 'A';
+                    }
+                    if (b != name[i]) {
+                        break;
+                    }
+                    i++;
+                }
+                if (i == length) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Sets a field from bytes of the chunk
+         */
+        private void set(Row row, Column field, int start, int end) {
+            if (field.keyIndex >= 0) {
+                keySet[field.keyIndex] = true;
+            }
+            switch (field.type) {
+            case INTEGER:
+                final long value = parseLong(start, end);
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(
+                        field.name + " is out of range for an integer");
+                }
+                row.put(field.name, (int) value);
+                break;
+            case LONG:
+                row.put(field.name, parseLong(start, end));
+                break;
+            case BOOLEAN:
+                row.put(field.name, parseBoolean(field, start, end));
+                break;
+            default:
+                int length = 0;
+                for (int i = start; i < end; i++) {
+                    length = append(length, buffer.get(i));
+                }
+                setScratch(row, field, length);
+            }
+        }
+
+        /**
+         * Sets a field from the first length bytes of scratch
+         */
+        private void setScratch(Row row, Column field, int length) {
+            if (field.keyIndex >= 0) {
+                keySet[field.keyIndex] = true;
+            }
+            final String text =
+                new String(scratch, 0, length, StandardCharsets.UTF_8);
+            try {
+                switch (field.type) {
+                case INTEGER:
+                    row.put(field.name, Integer.parseInt(text.trim()));
+                    break;
+                case LONG:
+                    row.put(field.name, Long.parseLong(text.trim()));
+                    break;
+                case FLOAT:
+                    row.put(field.name, Float.parseFloat(text));
+                    break;
+                case DOUBLE:
+                    row.put(field.name, Double.parseDouble(text));
+                    break;
+                case BOOLEAN:
+                    if (!text.equalsIgnoreCase("true") &&
+                        !text.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException(
+                            field.name + " is not a boolean: " + text);
+                    }
+                    row.put(field.name, Boolean.parseBoolean(text));
+                    break;
+                case NUMBER:
+                    row.putNumber(field.name, new BigDecimal(text.trim()));
+                    break;
+                case ENUM:
+                    row.putEnum(field.name, text);
+                    break;
+                case TIMESTAMP:
+                    row.put(field.name, parseTimestamp(field, text.trim()));
+                    break;
+                case STRING:
+                    row.put(field.name, text);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        field.name + " of type " + field.type +
+                        " cannot be imported");
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException(
+                    field.name + " is not a number: " + text);
+            }
+        }
+
+        /**
+         * Parses an ISO 8601 date, or date and time, in UTC. A trailing Z
+         * is allowed, other offsets are not.
+         */
+        private Timestamp parseTimestamp(Column field, String text) {
+            String local = text;
+            if (local.endsWith("Z") || local.endsWith("z")) {
+                local = local.substring(0, local.length() - 1);
+            }
+            try {
+                final LocalDateTime time = (local.length() == 10 ?
+                    LocalDate.parse(local).atStartOfDay() :
+                    LocalDateTime.parse(local.replace(' ', 'T')));
+                return Timestamp.from(time.toInstant(ZoneOffset.UTC));
+            } catch (DateTimeParseException dtpe) {
+                throw new IllegalArgumentException(
+                    field.name + " is not a timestamp: " + text);
+            }
+        }
+
+        private long parseLong(int start, int end) {
+            int i = start;
+            final boolean negative = (i < end && buffer.get(i) == '-');
+            if (negative || (i < end && buffer.get(i) == '+')) {
+                i++;
+            }
+            if (i == end) {
+                throw new IllegalArgumentException("empty number");
+            }
+            /* accumulate negatively, so that Long.MIN_VALUE fits */
+            long value = 0;
+            for (; i < end; i++) {
+                final int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException(
+                        "not an integer at offset " + (chunk.start + i));
+                }
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    throw new IllegalArgumentException(
+                        "integer out of range at offset " +
+                        (chunk.start + start));
+                }
+                value = value * 10 - digit;
+            }
+            if (!negative) {
+                if (value == Long.MIN_VALUE) {
+                    throw new IllegalArgumentException(
+                        "integer out of range at offset " +
+                        (chunk.start + start));
+                }
+                value = -value;
+            }
+            return value;
+        }
+
+        private boolean parseBoolean(Column field, int start, int end) {
+            final int length = end - start;
+            if (length == 4 || length == 5) {
+                final String word = (length == 4 ? "true" : "false");
+                int i = 0;
+                while (i < length &&
+                       (buffer.get(start + i) | 0x20) == word.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return length == 4;
+                }
+            }
+            throw new IllegalArgumentException(field.name +
+                                               " is not a boolean");
+        }
+    }
+}
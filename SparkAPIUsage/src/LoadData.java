@@ -1,4 +1,4 @@
-
+import java.nio.file.Paths;
 
 import oracle.kv.KVStore;
 import oracle.kv.KVStoreConfig;
@@ -10,23 +10,248 @@ import oracle.kv.table.TableAPI;
 
 /*
  * Eclipse run this program to load data, mystore deployed at localhost:20000
+ *
+ * Rows of mytable are generated, or a CSV or JSON lines file is imported
+ * into a table, and written by a BulkWriter. To load a large table, for
+ * example:
+ *
+ *   java LoadData -rows 100000000 -threads 32 -inflight 50000
+ *
+ * or, to import a log export, and again after a failure to carry on from
+ * where it stopped:
+ *
+ *   java LoadData -input logs.csv -header -parsers 8 -threads 32
+ *   java LoadData -input logs.csv -header -parsers 8 -threads 32 -resume
  */
 public class LoadData {
-    public static void main(String[] args) {
+
+    /**
+     * The store name. Default value is mystore.
+     */
+    String storeName = "mystore";
+
+    /**
+     * Helper hosts of the store as host:port,... Default value is
+     * localhost:20000.
+     */
+    String helperHosts = "localhost:20000";
+
+    /**
+     * The number of mytable rows generated. Default value is 1000.
+     */
+    long rows = 1000;
+
+    /**
+     * A CSV or JSON lines file to import instead of generating rows.
+     */
+    String input = null;
+
+    /**
+     * The table the input file is imported into. Default value is mytable.
+     */
+    String tableName = "mytable";
+
+    /**
+     * The input file format. Default value is JSON_LINES for a .json or
+     * .jsonl file, otherwise CSV.
+     */
+    FileImporter.Format format = null;
+
+    /**
+     * Whether the first line of a CSV input file names its columns.
+     */
+    boolean header = false;
+
+    /**
+     * The number of threads parsing the input file. Default value is 4.
+     */
+    int parsers = 4;
+
+    /**
+     * Whether to import from the offset recorded in the checkpoint file,
+     * the input file name with .offset appended, rather than the start.
+     */
+    boolean resume = false;
+
+    /**
+     * The number of threads writing rows. Default value is 8.
+     */
+    int threads = 8;
+
+    /**
+     * The most rows written in one request, or handed to a writing thread at
+     * once. Default value is 100.
+     */
+    int batchSize = 100;
+
+    /**
+     * The most rows read or generated but not yet written. Default value is
+     * 10000.
+     */
+    int maxInFlight = 10000;
+
+    /**
+     * Seconds between progress reports. Default value is 10.
+     */
+    int reportInterval = 10;
+
+    public static void main(String[] args) throws Exception {
+        new LoadData(args).run();
+    }
+
+    public LoadData(String[] args) {
+
+        final int nArgs = args.length;
+        int argc = 0;
+
+        try {
+            while (argc < nArgs) {
+                final String thisArg = args[argc++];
+
+                if (thisArg.equals("-store")) {
+                    if (argc < nArgs) {
+                        storeName = args[argc++];
+                    }
+                } else if (thisArg.equals("-helpers")) {
+                    if (argc < nArgs) {
+                        helperHosts = args[argc++];
+                    }
+                } else if (thisArg.equals("-rows")) {
+                    if (argc < nArgs) {
+                        rows = Long.parseLong(args[argc++]);
+                    }
+                } else if (thisArg.equals("-input")) {
+                    if (argc < nArgs) {
+                        input = args[argc++];
+                    }
+                } else if (thisArg.equals("-table")) {
+                    if (argc < nArgs) {
+                        tableName = args[argc++];
+                    }
+                } else if (thisArg.equals("-format")) {
+                    if (argc < nArgs) {
+                        final String name = args[argc++];
+                        if (name.equalsIgnoreCase("csv")) {
+                            format = FileImporter.Format.CSV;
+                        } else if (name.equalsIgnoreCase("jsonl")) {
+                            format = FileImporter.Format.JSON_LINES;
+                        } else {
+                            usage("Unknown format: " + name);
+                        }
+                    }
+                } else if (thisArg.equals("-header")) {
+                    header = true;
+                } else if (thisArg.equals("-parsers")) {
+                    if (argc < nArgs) {
+                        parsers = Integer.parseInt(args[argc++]);
+                    }
+                } else if (thisArg.equals("-resume")) {
+                    resume = true;
+                } else if (thisArg.equals("-threads")) {
+                    if (argc < nArgs) {
+                        threads = Integer.parseInt(args[argc++]);
+                    }
+                } else if (thisArg.equals("-batch")) {
+                    if (argc < nArgs) {
+                        batchSize = Integer.parseInt(args[argc++]);
+                    }
+                } else if (thisArg.equals("-inflight")) {
+                    if (argc < nArgs) {
+                        maxInFlight = Integer.parseInt(args[argc++]);
+                    }
+                } else if (thisArg.equals("-report")) {
+                    if (argc < nArgs) {
+                        reportInterval = Integer.parseInt(args[argc++]);
+                    }
+                } else {
+                    usage("Unknown argument: " + thisArg);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            usage("Not a number: " + args[argc - 1]);
+        }
+        if (rows < 0 || rows > (long) Integer.MAX_VALUE + 1) {
+            usage("Row count out of range: " + rows);
+        }
+        if (input != null && format == null) {
+            final String name = input.toLowerCase();
+            format = (name.endsWith(".json") || name.endsWith(".jsonl") ?
+                      FileImporter.Format.JSON_LINES :
+                      FileImporter.Format.CSV);
+        }
+    }
+
+    private void usage(String message) {
+        System.out.println("\n" + message + "\n");
+        System.out.println("usage: " + getClass().getName());
+        System.out.println("\t-store <store name> (default: mystore) " +
+                           "-helpers <host:port,...> " +
+                           "(default: localhost:20000) " +
+                           "-rows <rows generated> (default: 1000) " +
+                           "-input <csv or json lines file> " +
+                           "(default: generate rows) " +
+                           "-table <table imported into> " +
+                           "(default: mytable) " +
+                           "-format <csv|jsonl> (default: by file name) " +
+                           "-header (first csv line names columns) " +
+                           "-parsers <parsing threads> (default: 4) " +
+                           "-resume (import from the last checkpoint) " +
+                           "-threads <writing threads> (default: 8) " +
+                           "-batch <rows per write> (default: 100) " +
+                           "-inflight <rows not yet written> " +
+                           "(default: 10000) " +
+                           "-report <seconds between reports> " +
+                           "(default: 10, 0 for none)");
+        System.exit(1);
+    }
+
+    public void run() throws Exception {
         final KVStoreConfig config =
-            new KVStoreConfig("mystore", "localhost:20000");
+            new KVStoreConfig(storeName, helperHosts.split(","));
         final KVStore store = KVStoreFactory.getStore(config);
-        StatementResult sr = store.executeSync(
-            "create table mytable (id integer, tsMillis long, " +
-            "logLevel string, hostId integer, message string, " +
-            "primary key(id))");
-        System.out.println(sr.getInfo());
-        final TableAPI tableAPI = store.getTableAPI();
-        Table table = tableAPI.getTable("mytable");
-        for (int i = 0; i < 1000; i++) {
+        try {
+            StatementResult sr = store.executeSync(
+                "create table if not exists mytable (id integer, " +
+                "tsMillis long, logLevel string, hostId integer, " +
+                "message string, primary key(id))");
+            System.out.println(sr.getInfo());
+            final TableAPI tableAPI = store.getTableAPI();
+            if (input != null) {
+                importFile(tableAPI);
+            } else {
+                final Table table = tableAPI.getTable("mytable");
+                final BulkWriter writer =
+                    new BulkWriter(tableAPI, table, threads, batchSize,
+                                   maxInFlight, reportInterval);
+                generateRows(table, writer);
+                writer.finish();
+            }
+
+            store.executeSync(
+                "create table if not exists hosttable " +
+                "(id integer, name string, primary key(id))");
+            final Table table = tableAPI.getTable("hosttable");
+            Row row = table.createRow();
+            row.put("id", 1);
+            row.put("name", "hostA");
+            tableAPI.put(row, null, null);
+            row = table.createRow();
+            row.put("id", 2);
+            row.put("name", "hostB");
+            tableAPI.put(row, null, null);
+        } finally {
+            store.close();
+        }
+    }
+
+    private void generateRows(Table table, BulkWriter writer)
+        throws InterruptedException {
+
+        final long start = System.currentTimeMillis();
+        for (long i = 0; i < rows; i++) {
             final Row row = table.createRow();
-            row.put("id", i);
-            row.put("tsMillis", System.currentTimeMillis() + i);
+            row.put("id", (int) i);
+            row.put("tsMillis", start + i);
             if (i % 2 == 0) {
                 row.put("hostId", 1);
             } else {
@@ -39,20 +264,32 @@ public class LoadData {
                 row.put("logLevel", "INFO");
                 row.put("message", "normal");
             }
-            tableAPI.put(row, null, null);
+            writer.add(row);
+        }
+    }
+
+    private void importFile(TableAPI tableAPI) throws Exception {
+        final Table table = tableAPI.getTable(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("No table " + tableName);
+        }
+        final BulkWriter writer =
+            new BulkWriter(tableAPI, table, threads, batchSize, maxInFlight,
+                           reportInterval);
+        final FileImporter importer =
+            new FileImporter(table, writer, Paths.get(input), format, header,
+                             parsers, Paths.get(input + ".offset"),
+                             reportInterval);
+        try {
+            importer.importFile(resume);
+        } finally {
+            writer.finish();
+            final long offset = importer.checkpoint();
+            System.out.println(
+                String.format("Parsed %,d rows, %,d bad records, " +
+                              "resume offset %,d",
+                              importer.getRowsParsed(),
+                              importer.getBadRecords(), offset));
         }
-        store.executeSync(
-            "create table hosttable " +
-            "(id integer, name string, primary key(id))");
-        table = tableAPI.getTable("hosttable");
-        Row row = table.createRow();
-        row.put("id", 1);
-        row.put("name", "hostA");
-        tableAPI.put(row, null, null);
-        row = table.createRow();
-        row.put("id", 2);
-        row.put("name", "hostB");
-        tableAPI.put(row, null, null);
-        store.close();
     }
 }
@@ -0,0 +1,237 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import oracle.kv.table.FieldDef;
+import oracle.kv.table.FieldValue;
+import oracle.kv.table.PrimaryKey;
+import oracle.kv.table.RecordDef;
+import oracle.kv.table.RecordValue;
+import oracle.kv.table.Table;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import scala.collection.JavaConverters;
+
+/**
+ * Converts rows of a KV table to Spark rows, with a schema derived from the
+ * table definition. A converter for each field is chosen once, from its
+ * type, and a row is converted by reading its values by position, so that
+ * no bean or reflection is needed and each value is copied once.
+ *
+ * Field types map to Spark types as follows:
+ *
+ *   INTEGER, LONG, FLOAT, DOUBLE, BOOLEAN -- the same type
+ *   STRING, ENUM -- StringType
+ *   JSON -- StringType, holding the value as JSON text
+ *   NUMBER -- DecimalType(38, 18), see below
+ *   BINARY, FIXED_BINARY -- BinaryType
+ *   TIMESTAMP -- TimestampType
+ *   ARRAY -- ArrayType of the element type, as an Object[]
+ *   MAP -- MapType from StringType to the element type, as a Scala map
+ *   RECORD -- StructType of the record's fields
+ *
+ * A NUMBER has arbitrary precision but a Spark decimal at most 38 digits.
+ * DecimalType(38, 18) keeps 18 digits after the point and so holds values
+ * below 10^20 in magnitude; Spark turns a larger value into null. Tables
+ * with larger numbers should convert them to strings first.
+ *
+ * Every column is nullable. The converter is serializable, to be used in
+ * functions run by Spark executors; the table it was created from is not
+ * kept.
+ */
+public class RowConverter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final StructType schema;
+    private final ValueConverter[] converters;
+
+    private RowConverter(StructType schema, ValueConverter[] converters) {
+        this.schema = schema;
+        this.converters = converters;
+    }
+
+    public static RowConverter forTable(Table table) {
+        final List<String> names = table.getFields();
+        final StructField[] fields = new StructField[names.size()];
+        final ValueConverter[] converters = new ValueConverter[names.size()];
+        for (int i = 0; i < fields.length; i++) {
+            final FieldDef def = table.getField(names.get(i));
+            fields[i] = DataTypes.createStructField(names.get(i),
+                                                    sparkType(def), true);
+            converters[i] = converter(def);
+        }
+        return new RowConverter(DataTypes.createStructType(fields),
+                                converters);
+    }
+
+    public StructType getSchema() {
+        return schema;
+    }
+
+    public Row convert(oracle.kv.table.Row row) {
+        final Object[] values = new Object[converters.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = convertValue(converters[i], row.get(i));
+        }
+        return RowFactory.create(values);
+    }
+
+    /**
+     * Returns a DataFrame of the rows read by TableInputFormat
+     */
+    public Dataset<Row> createDataFrame(
+        SparkSession session,
+        JavaPairRDD<PrimaryKey, oracle.kv.table.Row> rows) {
+
+        return session.createDataFrame(rows.values().map(this::convert),
+                                       schema);
+    }
+
+    private static Object convertValue(ValueConverter converter,
+                                       FieldValue value) {
+        if (value == null || value.isNull() || value.isJsonNull()) {
+            return null;
+        }
+        return converter.convert(value);
+    }
+
+    private static DataType sparkType(FieldDef def) {
+        switch (def.getType()) {
+        case INTEGER:
+            return DataTypes.IntegerType;
+        case LONG:
+            return DataTypes.LongType;
+        case FLOAT:
+            return DataTypes.FloatType;
+        case DOUBLE:
+            return DataTypes.DoubleType;
+        case NUMBER:
+            return DataTypes.createDecimalType(38, 18);
+        case BOOLEAN:
+            return DataTypes.BooleanType;
+        case STRING:
+        case ENUM:
+        case JSON:
+            return DataTypes.StringType;
+        case BINARY:
+        case FIXED_BINARY:
+            return DataTypes.BinaryType;
+        case TIMESTAMP:
+            return DataTypes.TimestampType;
+        case ARRAY:
+            return DataTypes.createArrayType(
+                sparkType(def.asArray().getElement()), true);
+        case MAP:
+            return DataTypes.createMapType(
+                DataTypes.StringType,
+                sparkType(def.asMap().getElement()), true);
+        case RECORD:
+            final RecordDef record = def.asRecord();
+            final StructField[] fields =
+                new StructField[record.getNumFields()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = DataTypes.createStructField(
+                    record.getFieldName(i),
+                    sparkType(record.getFieldDef(i)), true);
+            }
+            return DataTypes.createStructType(fields);
+        default:
+            throw new IllegalArgumentException(
+                "Fields of type " + def.getType() + " cannot be converted");
+        }
+    }
+
+    private static ValueConverter converter(FieldDef def) {
+        switch (def.getType()) {
+        case INTEGER:
+            return v -> v.asInteger().get();
+        case LONG:
+            return v -> v.asLong().get();
+        case FLOAT:
+            return v -> v.asFloat().get();
+        case DOUBLE:
+            return v -> v.asDouble().get();
+        case NUMBER:
+            return v -> v.asNumber().get();
+        case BOOLEAN:
+            return v -> v.asBoolean().get();
+        case STRING:
+            return v -> v.asString().get();
+        case ENUM:
+            return v -> v.asEnum().get();
+        case JSON:
+            return v -> v.toJsonString(false);
+        case BINARY:
+            return v -> v.asBinary().get();
+        case FIXED_BINARY:
+            return v -> v.asFixedBinary().get();
+        case TIMESTAMP:
+            return v -> v.asTimestamp().get();
+        case ARRAY: {
+            final ValueConverter element =
+                converter(def.asArray().getElement());
+            return v -> {
+                final List<FieldValue> list = v.asArray().toList();
+                final Object[] result = new Object[list.size()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = convertValue(element, list.get(i));
+                }
+                return result;
+            };
+        }
+        case MAP: {
+            final ValueConverter element =
+                converter(def.asMap().getElement());
+            return v -> {
+                final Map<String, FieldValue> map = v.asMap().getFields();
+                final Map<String, Object> result =
+                    new HashMap<String, Object>(map.size() * 4 / 3 + 1);
+                for (Map.Entry<String, FieldValue> e : map.entrySet()) {
+                    result.put(e.getKey(),
+                               convertValue(element, e.getValue()));
+                }
+
+                /* Spark takes a Scala map for a MapType, not a java.util one */
+                return JavaConverters.mapAsScalaMap(result);
+            };
+        }
+        case RECORD: {
+            final RecordDef record = def.asRecord();
+            final ValueConverter[] fields =
+                new ValueConverter[record.getNumFields()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = converter(record.getFieldDef(i));
+            }
+            return v -> {
+                final RecordValue value = v.asRecord();
+                final Object[] values = new Object[fields.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = convertValue(fields[i], value.get(i));
+                }
+                return RowFactory.create(values);
+            };
+        }
+        default:
+            throw new IllegalArgumentException(
+                "Fields of type " + def.getType() + " cannot be converted");
+        }
+    }
+
+    /**
+     * Converts a non-null value of one field type to its Spark value
+     */
+    private interface ValueConverter extends Serializable {
+        Object convert(FieldValue value);
+    }
+}
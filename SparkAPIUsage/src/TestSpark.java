@@ -1,5 +1,8 @@
 
 
+import oracle.kv.KVStore;
+import oracle.kv.KVStoreConfig;
+import oracle.kv.KVStoreFactory;
 import oracle.kv.hadoop.table.TableInputFormat;
 import oracle.kv.table.PrimaryKey;
 import oracle.kv.table.Row;
@@ -7,7 +10,6 @@ import oracle.kv.table.Row;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.SparkSession;
@@ -30,31 +32,34 @@ public class TestSpark {
         conf.set("oracle.kv.tableName", "mytable");
         conf.set("oracle.kv.hosts", "localhost:20000");
 
+        /* The table definitions give the DataFrame schemas */
+        final KVStore store = KVStoreFactory.getStore(
+            new KVStoreConfig("mystore", "localhost:20000"));
+        final RowConverter myTable;
+        final RowConverter hostTable;
+        try {
+            myTable = RowConverter.forTable(
+                store.getTableAPI().getTable("mytable"));
+            hostTable = RowConverter.forTable(
+                store.getTableAPI().getTable("hosttable"));
+        } finally {
+            store.close();
+        }
+
         JavaPairRDD<PrimaryKey, Row> rddPair =
            sc.newAPIHadoopRDD(conf, TableInputFormat.class,
                               PrimaryKey.class, Row.class);
 
-        JavaRDD<MyTable> rdd =
-                rddPair.map(
-                    x -> new MyTable(x._1().get("id").asInteger().get(),
-                                     x._2().get("tsMillis").asLong().get(),
-                                     x._2().get("logLevel").asString().get(),
-                                     x._2().get("hostId").asInteger().get(),
-                                     x._2().get("message").asString().get()));
-
         final SparkSession dfSession = SparkSession.builder().getOrCreate();
         Dataset<org.apache.spark.sql.Row> df =
-            dfSession.createDataFrame(rdd, MyTable.class);
+            myTable.createDataFrame(dfSession, rddPair);
 
         df.createOrReplaceTempView("mytable");
 
         conf.set("oracle.kv.tableName", "hosttable");
         rddPair = sc.newAPIHadoopRDD(conf, TableInputFormat.class,
                                      PrimaryKey.class, Row.class);
-        JavaRDD<HostTable> rddHost = rddPair.map(
-            x -> new HostTable(x._1().get("id").asInteger().get(),
-                               x._2().get("name").asString().get()));
-        df = dfSession.createDataFrame(rddHost, HostTable.class);
+        df = hostTable.createDataFrame(dfSession, rddPair);
 
         df.createOrReplaceTempView("hosttable");
         System.out.println("select * from mytable");
@@ -94,88 +99,4 @@ public class TestSpark {
         dfSession.close();
         sc.close();
     }
-
-    public static class MyTable {
-        private int id;
-        private long tsMillis;
-        private String logLevel;
-        private int hostId;
-        private String message;
-
-        public MyTable(int id,
-                long tsMillis,
-                String logLevel,
-                int hostId,
-                String message) {
-            super();
-            this.id = id;
-            this.tsMillis = tsMillis;
-            this.logLevel = logLevel;
-            this.hostId = hostId;
-            this.message = message;
-        }
-
-        public int getId() {
-            return id;
-        }
-
-        public void setId(int id) {
-            this.id = id;
-        }
-
-        public long getTsMillis() {
-            return tsMillis;
-        }
-
-        public void setTsMillis(long tsMillis) {
-            this.tsMillis = tsMillis;
-        }
-
-        public String getLogLevel() {
-            return logLevel;
-        }
-
-        public void setLogLevel(String logLevel) {
-            this.logLevel = logLevel;
-        }
-
-        public int getHostId() {
-            return hostId;
-        }
-
-        public void setHostId(int hostId) {
-            this.hostId = hostId;
-        }
-
-        public String getMessage() {
-            return message;
-        }
-
-        public void setMessage(String message) {
-            this.message = message;
-        }
-    }
-
-    public static class HostTable {
-        private int id;
-        private String name;
-        public HostTable(int id, String name) {
-            super();
-            this.id = id;
-            this.name = name;
-        }
-        public int getId() {
-            return id;
-        }
-        public void setId(int id) {
-            this.id = id;
-        }
-        public String getName() {
-            return name;
-        }
-        public void setName(String name) {
-            this.name = name;
-        }
-    }
 }
-